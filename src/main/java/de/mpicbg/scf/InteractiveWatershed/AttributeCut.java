@@ -0,0 +1,312 @@
+package de.mpicbg.scf.InteractiveWatershed;
+
+
+/*
+Author: Benoit Lombardot, Scientific Computing Facility, MPI-CBG, Dresden  
+
+Copyright 2017 Max Planck Institute of Molecular Cell Biology and Genetics, Dresden, Germany
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following 
+conditions are met:
+
+1 - Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+
+2 - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer 
+in the documentation and/or other materials provided with the distribution.
+
+3 - Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived 
+from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+
+/**
+ * Tree cuts on any combination of node features. A node meets the cut if each of its features is above
+ * the cut value of that feature, the labeling is then the one of TreeUtils.getLabeling: the most root nodes 
+ * meeting the cut with a child that does not are the label roots.
+ * TreeUtils assumes the features decrease from the roots to the leaves. Features that do not, as the area or 
+ * the mean intensity, can be filtered with MAX: the value of a node is replaced by the highest value of its
+ * subtree, so a node is kept as long as one of its descendants meets the cut. With EXTINCTION each node
+ * takes the extinction value of its branch, so that the feature decreases from the roots to the leaves as the dynamics.
+ * Cuts are evaluated on primitive arrays in a single pass on the nodes, the tree is not modified and several
+ * threads can use the same AttributeCut. Filtered features are computed again when a feature is set in the tree,
+ * values changed in place in a feature array are only seen once the array is set again with Tree.setFeature.
+ */
+public class AttributeCut {
+	
+	public enum Filtering
+	{
+		DIRECT,		// feature values are used as they are
+		MAX,		// each node takes the highest value of its subtree
+		EXTINCTION;	// MAX values are followed from the leaves up, at each merge the branch of the child with the 
+					// highest value continues (the lowest id if equal) and the other branch ends. Each node takes 
+					// the value at the top of its branch
+	}
+	
+	private final Tree tree;
+	// the nodes are handled by position in the breadth first order of TreeUtils.getLabelRoots, so that 
+	// a cut reads the arrays below, and the feature columns, in sequence 
+	private final int[] bfsOrder; // node at each position
+	private final int[] parentPos; // position of the parent, -1 for a root
+	private final int[] firstChildPos; // position of the first child, the second child follows, -1 for a leaf
+	private final int[] nChildren;
+	private final HashMap<String, FilteredColumn> columns = new HashMap<String, FilteredColumn>(); // by feature and filtering
+	
+	
+	public AttributeCut(Tree tree)
+	{
+		this.tree = tree;
+		final int numNodes = tree.getNumNodes();
+		final int[] child0 = tree.child0;
+		final int[] child1 = tree.child1;
+		
+		bfsOrder = new int[numNodes];
+		parentPos = new int[numNodes];
+		firstChildPos = new int[numNodes];
+		nChildren = new int[numNodes];
+		int tail = 0;
+		for( int root : tree.getRootIds() ){
+			parentPos[tail] = -1;
+			bfsOrder[tail++] = root;
+		}
+		for( int head=0; head<tail; head++ )
+		{
+			final int node = bfsOrder[head];
+			firstChildPos[head] = child0[node]>=0 || child1[node]>=0 ? tail : -1;
+			if( child0[node]>=0 ){
+				parentPos[tail] = head;
+				bfsOrder[tail++] = child0[node];
+			}
+			if( child1[node]>=0 ){
+				parentPos[tail] = head;
+				bfsOrder[tail++] = child1[node];
+			}
+			nChildren[head] = firstChildPos[head]<0 ? 0 : tail-firstChildPos[head];
+		}
+	}
+	
+	
+	/**
+	 * @return the values of a feature after filtering, by node id
+	 */
+	public double[] getColumn(String featureName, Filtering filtering)
+	{
+		final double[] column = getColumnByPosition(featureName, filtering);
+		final double[] values = new double[column.length];
+		for( int i=0; i<column.length; i++ )
+			values[bfsOrder[i]] = column[i];
+		return values;
+	}
+	
+	
+	// filtered feature values in breadth first order, computed once per feature and filtering and again
+	// when a feature is set in the tree
+	private double[] getColumnByPosition(String featureName, Filtering filtering)
+	{
+		final int version = tree.getFeatureVersion();
+		final Object source = tree.getColumn(featureName);
+		if( source == null )
+			throw new IllegalArgumentException("AttributeCut: the tree has no feature "+featureName);
+		
+		synchronized( columns )
+		{
+			final String key = featureName+"/"+filtering;
+			FilteredColumn filtered = columns.get(key);
+			if( filtered == null || filtered.version != version )
+			{
+				final double[] feature = source instanceof double[] ? (double[]) source : Tree.toDoubles(source);
+				double[] column = new double[bfsOrder.length];
+				for( int i=0; i<bfsOrder.length; i++ )
+					column[i] = feature[bfsOrder[i]];
+				if( filtering != Filtering.DIRECT ) // children are visited before their parent in reverse order
+					for( int i=bfsOrder.length-1; i>=0; i-- )
+						if( parentPos[i]>=0 && column[i] > column[parentPos[i]] )
+							column[parentPos[i]] = column[i];
+				if( filtering == Filtering.EXTINCTION )
+					column = getExtinctionValues(column);
+				filtered = new FilteredColumn(version, column);
+				columns.put(key, filtered);
+			}
+			return filtered.values;
+		}
+	}
+	
+	
+	/**
+	 * @param maxValues MAX filtered values in breadth first order
+	 * @return the extinction values in breadth first order: a root takes its value, the child continuing the branch 
+	 * of its parent takes the value of the parent and the other child its own value
+	 */
+	private double[] getExtinctionValues(double[] maxValues)
+	{
+		final double[] extinction = new double[maxValues.length];
+		for( int pos=0; pos<maxValues.length; pos++ ) // parents are visited before their children
+		{
+			final int p = parentPos[pos];
+			extinction[pos] = p>=0 && continuesBranch(pos, maxValues) ? extinction[p] : maxValues[pos];
+		}
+		return extinction;
+	}
+	
+	
+	// true if the node at pos continues the branch of its parent
+	private boolean continuesBranch(int pos, double[] maxValues)
+	{
+		final int first = firstChildPos[parentPos[pos]];
+		if( nChildren[parentPos[pos]] < 2 )
+			return true;
+		final int sibling = pos==first ? first+1 : first;
+		if( maxValues[pos] != maxValues[sibling] )
+			return maxValues[pos] > maxValues[sibling];
+		return bfsOrder[pos] < bfsOrder[sibling];
+	}
+	
+	
+	// filtered values of a feature and the feature version of the tree they were computed from
+	private static class FilteredColumn
+	{
+		final int version;
+		final double[] values;
+		
+		FilteredColumn(int version, double[] values)
+		{
+			this.version = version;
+			this.values = values;
+		}
+	}
+	
+	
+	/**
+	 * Same labeling as TreeUtils.getLabeling
+	 */
+	public TreeLabeling getLabeling(String featureName, double cut, boolean makeNewLabels)
+	{
+		return getLabeling(new String[] {featureName}, new double[] {cut}, Filtering.DIRECT, makeNewLabels);
+	}
+	
+	
+	/**
+	 * @param featureNames features of the cut
+	 * @param cuts a node meets the cut if featureNames[i] > cuts[i] for each i
+	 * @param filtering how the feature values are used
+	 * @param makeNewLabels if true labels are numbered from 1 in breadth first order, otherwise the id of the label root is used
+	 * @return the labeling of the tree nodes
+	 */
+	public TreeLabeling getLabeling(String[] featureNames, double[] cuts, Filtering filtering, boolean makeNewLabels)
+	{
+		return getLabelings(featureNames, new double[][] {cuts}, filtering, makeNewLabels)[0];
+	}
+	
+	
+	/**
+	 * Labelings for a batch of cuts on the same features, the feature columns are filtered once for the batch
+	 * @param featureNames features of the cuts
+	 * @param cutBatch for the labeling k a node meets the cut if featureNames[i] > cutBatch[k][i] for each i
+	 * @param filtering how the feature values are used
+	 * @param makeNewLabels if true labels are numbered from 1 in breadth first order, otherwise the id of the label root is used
+	 * @return the labeling of the tree nodes for each cut
+	 */
+	public TreeLabeling[] getLabelings(String[] featureNames, double[][] cutBatch, Filtering filtering, boolean makeNewLabels)
+	{
+		final double[][] columns = new double[featureNames.length][];
+		for( int i=0; i<featureNames.length; i++ )
+			columns[i] = getColumnByPosition(featureNames[i], filtering);
+		
+		final int numNodes = bfsOrder.length;
+		final boolean[] meetsCut = new boolean[numNodes];
+		final int[] labelByPos = new int[numNodes];
+		final int[] rootByPos = new int[numNodes];
+		TreeLabeling[] labelings = new TreeLabeling[cutBatch.length];
+		for( int k=0; k<cutBatch.length; k++ )
+		{
+			final double[] cuts = cutBatch[k];
+			if( cuts.length != columns.length )
+				throw new IllegalArgumentException("AttributeCut: "+cuts.length+" cut values for "+columns.length+" features");
+			
+			Arrays.fill(meetsCut, true);
+			for( int i=0; i<columns.length; i++ )
+			{
+				final double[] column = columns[i];
+				final double cut = cuts[i];
+				for( int pos=0; pos<numNodes; pos++ )
+					meetsCut[pos] &= column[pos] > cut;
+			}
+			final int nLabels = label(meetsCut, labelByPos, rootByPos, makeNewLabels);
+			
+			final int[] nodeIdToLabel = new int[numNodes];
+			final int[] labelRoot = new int[numNodes];
+			for( int pos=0; pos<numNodes; pos++ )
+			{
+				final int node = bfsOrder[pos];
+				nodeIdToLabel[node] = labelByPos[pos];
+				labelRoot[node] = rootByPos[pos];
+			}
+			labelings[k] = new TreeLabeling(nodeIdToLabel, labelRoot, nLabels, cuts.length==1 ? cuts[0] : Double.NaN);
+		}
+		return labelings;
+	}
+	
+	
+	/**
+	 * Label the tree from the nodes meeting the cut, in a single breadth first pass. A node is explored if it
+	 * meets the cut and its parent was explored but not labeled, the explored nodes that are leaves or have a
+	 * child not meeting the cut are label roots.
+	 * @param meetsCut for each position, true if the node meets the cut
+	 * @param labelByPos output, label at each position
+	 * @param rootByPos output, label root at each position, -1 if not labeled
+	 * @return the number of labels
+	 */
+	private int label(boolean[] meetsCut, int[] labelByPos, int[] rootByPos, boolean makeNewLabels)
+	{
+		final int numNodes = bfsOrder.length;
+		final int EXPLORED = -2;
+		int nLabels = 0;
+		for( int pos=0; pos<numNodes; pos++ )
+		{
+			final int p = parentPos[pos];
+			int label = 0;
+			int root = -1;
+			if( meetsCut[pos] && ( p<0 || rootByPos[p]==EXPLORED ) )
+			{
+				final int c = firstChildPos[pos];
+				final boolean childrenMeetCut = c<0 || ( meetsCut[c] && ( nChildren[pos]<2 || meetsCut[c+1] ) );
+				if( c<0 || !childrenMeetCut ){
+					final int node = bfsOrder[pos];
+					label = makeNewLabels ? nLabels+1 : node;
+					if( makeNewLabels || node>0 ) // label 0 is the background
+						nLabels++;
+					root = node;
+				}
+				else
+					root = EXPLORED;
+			}
+			else if( p>=0 && rootByPos[p]>=0 )
+			{
+				label = labelByPos[p];
+				root = rootByPos[p];
+			}
+			labelByPos[pos] = label;
+			rootByPos[pos] = root;
+		}
+		for( int pos=0; pos<numNodes; pos++ )
+			if( rootByPos[pos] == EXPLORED )
+				rootByPos[pos] = -1;
+		return nLabels;
+	}
+	
+	
+	public Tree getTree() {
+		return tree;
+	}
+	
+}
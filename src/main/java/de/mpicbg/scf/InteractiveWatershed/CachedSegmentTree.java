@@ -0,0 +1,123 @@
+package de.mpicbg.scf.InteractiveWatershed;
+
+
+/*
+Author: Benoit Lombardot, Scientific Computing Facility, MPI-CBG, Dresden  
+
+Copyright 2017 Max Planck Institute of Molecular Cell Biology and Genetics, Dresden, Germany
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following 
+conditions are met:
+
+1 - Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+
+2 - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer 
+in the documentation and/or other materials provided with the distribution.
+
+3 - Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived 
+from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+
+import net.imglib2.img.Img;
+import net.imglib2.type.numeric.integer.IntType;
+
+import de.mpicbg.scf.InteractiveWatershed.HWatershedLabeling.Connectivity;
+import de.mpicbg.scf.InteractiveWatershed.HWatershedLabeling.Quantization;
+
+
+/**
+ * Segment tree and leaf label map of an image as kept by the SegmentTreeService.
+ * Both are shared by all the users of the cache and must not be modified.
+ */
+public class CachedSegmentTree {
+	
+	private final Tree tree;
+	private final Img<IntType> labelMap;
+	private final float threshold;
+	private final Connectivity connectivity;
+	private final Quantization quantization;
+	private final int nLevels;
+	private final byte[] inputDigest;
+	private final long sizeInBytes;
+	
+	
+	/**
+	 * @param tree segment tree and its features
+	 * @param labelMap leaf label map of the tree
+	 * @param threshold threshold of the tree construction
+	 * @param connectivity connectivity of the tree construction
+	 * @param inputDigest content digest of the input image, see SegmentTreeFile.getContentDigest
+	 */
+	public CachedSegmentTree(Tree tree, Img<IntType> labelMap, float threshold, Connectivity connectivity, byte[] inputDigest)
+	{
+		this(tree, labelMap, threshold, connectivity, Quantization.NONE, 0, inputDigest);
+	}
+	
+	
+	/**
+	 * @param quantization quantization of the tree construction
+	 * @param nLevels number of flooding levels of the tree construction, 0 if quantization is NONE
+	 */
+	public CachedSegmentTree(Tree tree, Img<IntType> labelMap, float threshold, Connectivity connectivity, Quantization quantization, int nLevels, byte[] inputDigest)
+	{
+		this.tree = tree;
+		this.labelMap = labelMap;
+		this.threshold = threshold;
+		this.connectivity = connectivity;
+		this.quantization = quantization;
+		this.nLevels = nLevels;
+		this.inputDigest = inputDigest.clone();
+		this.sizeInBytes = getSizeInBytes(tree, labelMap);
+	}
+	
+	
+	/**
+	 * @return an estimate of the memory used by a tree and its label map: the tree arrays and 4 bytes per pixel
+	 */
+	public static long getSizeInBytes(Tree tree, Img<IntType> labelMap)
+	{
+		return tree.getSizeInBytes() + 4 * labelMap.size();
+	}
+	
+	
+	public Tree getTree() {
+		return tree;
+	}
+	
+	public Img<IntType> getLabelMap() {
+		return labelMap;
+	}
+	
+	public float getThreshold() {
+		return threshold;
+	}
+	
+	public Connectivity getConnectivity() {
+		return connectivity;
+	}
+	
+	public Quantization getQuantization() {
+		return quantization;
+	}
+	
+	public int getNumberOfLevels() {
+		return nLevels;
+	}
+	
+	public byte[] getInputDigest() {
+		return inputDigest.clone();
+	}
+	
+	public long getSizeInBytes() {
+		return sizeInBytes;
+	}
+	
+}
@@ -0,0 +1,350 @@
+package de.mpicbg.scf.InteractiveWatershed;
+
+
+/*
+Author: Benoit Lombardot, Scientific Computing Facility, MPI-CBG, Dresden  
+
+Copyright 2017 Max Planck Institute of Molecular Cell Biology and Genetics, Dresden, Germany
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following 
+conditions are met:
+
+1 - Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+
+2 - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer 
+in the documentation and/or other materials provided with the distribution.
+
+3 - Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived 
+from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import ij.IJ;
+import net.imglib2.img.Img;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.type.numeric.real.FloatType;
+
+import org.scijava.plugin.Plugin;
+import org.scijava.service.AbstractService;
+import org.scijava.service.Service;
+
+import de.mpicbg.scf.InteractiveWatershed.HWatershedLabeling.Connectivity;
+import de.mpicbg.scf.InteractiveWatershed.HWatershedLabeling.Quantization;
+
+
+/**
+ * Default SegmentTreeService. Trees are looked up in memory, then in the segment tree files of the disk cache
+ * directory if one is set, and are built (and saved) if they are not found. Caching is off by default: the memory
+ * budget is 0 and there is no disk cache directory, the trees are then built without computing the digest of the
+ * input and are not kept. Label maps reopened from a file are memory mapped but are counted in the budget as if
+ * they were on the heap.
+ */
+@Plugin(type = Service.class)
+public class DefaultSegmentTreeService extends AbstractService implements SegmentTreeService {
+	
+	private static final String TREE_FILE_SUFFIX = ".hwt";
+	private static final String TMP_FILE_SUFFIX = ".tmp";
+	private static final long TMP_FILE_MAX_AGE = 24L*3600*1000; // temporary files older than that are left overs of interrupted writes
+	
+	private long memoryBudget = 0;
+	private long memoryUsed = 0;
+	private File diskCacheDirectory = null;
+	private long diskCacheLimit = 2L<<30;
+	
+	// cached trees in access order, the least recently used first
+	private final LinkedHashMap<String, CachedSegmentTree> trees = new LinkedHashMap<String, CachedSegmentTree>(16, 0.75f, true);
+	
+	
+	@Override
+	public CachedSegmentTree getSegmentTree(Img<FloatType> input, float threshold, Connectivity connectivity)
+	{
+		return getSegmentTree(input, threshold, connectivity, Quantization.NONE, 0);
+	}
+	
+	
+	@Override
+	public CachedSegmentTree getSegmentTree(Img<FloatType> input, float threshold, Connectivity connectivity, Quantization quantization, int nLevels)
+	{
+		if( quantization == Quantization.NONE )
+			nLevels = 0;
+		final File directory = getDiskCacheDirectory();
+		if( getMemoryBudget() <= 0 && directory == null )
+			return buildSegmentTree(input, threshold, connectivity, quantization, nLevels, null, null);
+		
+		final byte[] inputDigest = SegmentTreeFile.getContentDigest(input);
+		final String key = getKey(input, inputDigest, threshold, connectivity, quantization, nLevels);
+		CachedSegmentTree segmentTree = get(key);
+		if( segmentTree != null )
+			return segmentTree;
+		
+		// the construction is done outside the lock, concurrent requests for the same tree may build it twice
+		File treeFile = getTreeFile(directory, inputDigest, threshold, connectivity, quantization, nLevels);
+		segmentTree = readTreeFile(treeFile, inputDigest, threshold, connectivity, quantization, nLevels, input);
+		if( segmentTree == null )
+		{
+			segmentTree = buildSegmentTree(input, threshold, connectivity, quantization, nLevels, inputDigest, treeFile);
+			if( segmentTree == null )
+				return null;
+		}
+		put(key, segmentTree);
+		return segmentTree;
+	}
+	
+	
+	// build a tree and save it to treeFile if it is not null and the tree fits in the disk cache
+	private CachedSegmentTree buildSegmentTree(Img<FloatType> input, float threshold, Connectivity connectivity, Quantization quantization, int nLevels, 
+			byte[] inputDigest, File treeFile)
+	{
+		HWatershedLabeling<FloatType> segmentTreeConstructor = new HWatershedLabeling<FloatType>(input, threshold, connectivity, quantization, nLevels);
+		Img<IntType> labelMap = segmentTreeConstructor.getLabelMapMaxTree();
+		if( labelMap == null )
+			return null;
+		Tree tree = segmentTreeConstructor.getTree();
+		CachedSegmentTree segmentTree = new CachedSegmentTree(tree, labelMap, threshold, connectivity, quantization, nLevels, inputDigest==null ? new byte[0] : inputDigest);
+		if( treeFile != null && segmentTree.getSizeInBytes() <= getDiskCacheLimit() )
+		{
+			try {
+				segmentTreeConstructor.save(treeFile, inputDigest);
+				cleanDiskCache(treeFile);
+			} catch (IOException e) {
+				IJ.log("H-Watershed: the segment tree could not be saved ("+e.getMessage()+")");
+			}
+		}
+		return segmentTree;
+	}
+	
+	
+	@Override
+	public CachedSegmentTree getCachedSegmentTree(Img<FloatType> input, float threshold, Connectivity connectivity)
+	{
+		return getCachedSegmentTree(input, threshold, connectivity, Quantization.NONE, 0);
+	}
+	
+	
+	@Override
+	public CachedSegmentTree getCachedSegmentTree(Img<FloatType> input, float threshold, Connectivity connectivity, Quantization quantization, int nLevels)
+	{
+		if( getMemoryUsed() == 0 )
+			return null;
+		if( quantization == Quantization.NONE )
+			nLevels = 0;
+		return get( getKey(input, SegmentTreeFile.getContentDigest(input), threshold, connectivity, quantization, nLevels) );
+	}
+	
+	
+	@Override
+	public synchronized void setMemoryBudget(long memoryBudget)
+	{
+		this.memoryBudget = memoryBudget;
+		evict(0);
+	}
+	
+	
+	@Override
+	public synchronized long getMemoryBudget() {
+		return memoryBudget;
+	}
+	
+	
+	@Override
+	public synchronized long getMemoryUsed() {
+		return memoryUsed;
+	}
+	
+	
+	@Override
+	public synchronized void clear()
+	{
+		trees.clear();
+		memoryUsed = 0;
+	}
+	
+	
+	@Override
+	public synchronized void setDiskCacheDirectory(File directory) {
+		this.diskCacheDirectory = directory;
+	}
+	
+	
+	@Override
+	public synchronized File getDiskCacheDirectory() {
+		return diskCacheDirectory;
+	}
+	
+	
+	@Override
+	public synchronized void setDiskCacheLimit(long diskCacheLimit)
+	{
+		this.diskCacheLimit = diskCacheLimit;
+		cleanDiskCache(null);
+	}
+	
+	
+	@Override
+	public synchronized long getDiskCacheLimit() {
+		return diskCacheLimit;
+	}
+	
+	
+	// files of a mapped label map can not be deleted on some systems, they are removed by a later clean up
+	@Override
+	public synchronized void clearDiskCache()
+	{
+		for( File file : listCacheFiles(diskCacheDirectory) )
+			file.delete();
+	}
+	
+	
+	private synchronized CachedSegmentTree get(String key)
+	{
+		return trees.get(key);
+	}
+	
+	
+	// trees larger than the budget are not kept
+	private synchronized void put(String key, CachedSegmentTree segmentTree)
+	{
+		CachedSegmentTree previous = trees.remove(key);
+		if( previous != null )
+			memoryUsed -= previous.getSizeInBytes();
+		
+		final long size = segmentTree.getSizeInBytes();
+		if( size > memoryBudget )
+			return;
+		evict(size);
+		trees.put(key, segmentTree);
+		memoryUsed += size;
+	}
+	
+	
+	// drop the least recently used trees until size more bytes fit in the budget
+	private void evict(long size)
+	{
+		Iterator<CachedSegmentTree> iterator = trees.values().iterator();
+		while( memoryUsed + size > memoryBudget && iterator.hasNext() )
+		{
+			memoryUsed -= iterator.next().getSizeInBytes();
+			iterator.remove();
+		}
+	}
+	
+	
+	// delete the least recently used tree files until the disk cache fits in its limit, and the left overs of interrupted writes.
+	// keep is not deleted
+	private synchronized void cleanDiskCache(File keep)
+	{
+		File[] files = listCacheFiles(diskCacheDirectory);
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File f1, File f2) {
+				return Long.compare(f1.lastModified(), f2.lastModified());
+			}
+		});
+		
+		final long now = System.currentTimeMillis();
+		long totalSize = 0;
+		for( File file : files )
+		{
+			if( file.getName().endsWith(TMP_FILE_SUFFIX) && now-file.lastModified() > TMP_FILE_MAX_AGE )
+				file.delete();
+			else
+				totalSize += file.length();
+		}
+		for( File file : files )
+		{
+			if( totalSize <= diskCacheLimit )
+				break;
+			if( !file.getName().endsWith(TREE_FILE_SUFFIX) || file.equals(keep) )
+				continue;
+			final long size = file.length();
+			if( file.delete() )
+				totalSize -= size;
+		}
+	}
+	
+	
+	// tree files and temporary files of the disk cache directory, none if directory is null
+	private static File[] listCacheFiles(File directory)
+	{
+		if( directory == null )
+			return new File[0];
+		File[] files = directory.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File file) {
+				return file.isFile() && ( file.getName().endsWith(TREE_FILE_SUFFIX) || file.getName().endsWith(TMP_FILE_SUFFIX) );
+			}
+		});
+		return files != null ? files : new File[0];
+	}
+	
+	
+	private static String getKey(Img<FloatType> input, byte[] inputDigest, float threshold, Connectivity connectivity, Quantization quantization, int nLevels)
+	{
+		long[] dims = new long[input.numDimensions()];
+		input.dimensions(dims);
+		return toHex(inputDigest) + "/" + Arrays.toString(dims) + "/" + Integer.toHexString(Float.floatToIntBits(threshold)) + "/" + connectivity 
+				+ "/" + quantization + "/" + nLevels;
+	}
+	
+	
+	private static String toHex(byte[] bytes)
+	{
+		StringBuilder hex = new StringBuilder(2*bytes.length);
+		for( byte b : bytes )
+			hex.append( Character.forDigit((b>>4) & 0xf, 16) ).append( Character.forDigit(b & 0xf, 16) );
+		return hex.toString();
+	}
+	
+	
+	// segment trees are named after the input digest and the construction parameters, null if there is no disk cache directory
+	private static File getTreeFile(File directory, byte[] inputDigest, float threshold, Connectivity connectivity, Quantization quantization, int nLevels)
+	{
+		if( directory == null || (!directory.isDirectory() && !directory.mkdirs()) )
+			return null;
+		String levels = quantization == Quantization.NONE ? "" : "_" + quantization.name().toLowerCase() + nLevels;
+		return new File(directory, toHex(inputDigest) + "_" + Integer.toHexString(Float.floatToIntBits(threshold)) + "_" + connectivity.name().toLowerCase() 
+				+ levels + TREE_FILE_SUFFIX);
+	}
+	
+	
+	// the saved tree if it exists and matches the input digest, dimensions and construction parameters, null otherwise
+	private static CachedSegmentTree readTreeFile(File treeFile, byte[] inputDigest, float threshold, Connectivity connectivity, Quantization quantization, int nLevels, 
+			Img<FloatType> input)
+	{
+		if( treeFile==null || !treeFile.isFile() )
+			return null;
+		try {
+			SegmentTreeFile savedTree = SegmentTreeFile.read(treeFile);
+			long[] dims = new long[input.numDimensions()];
+			input.dimensions(dims);
+			long[] savedDims = new long[savedTree.getLabelMap().numDimensions()];
+			savedTree.getLabelMap().dimensions(savedDims);
+			if( Arrays.equals(savedTree.getInputDigest(), inputDigest) && Float.floatToIntBits(savedTree.getThreshold()) == Float.floatToIntBits(threshold) 
+					&& savedTree.getConnectivity()==connectivity && savedTree.getQuantization()==quantization && savedTree.getNumberOfLevels()==nLevels 
+					&& Arrays.equals(dims, savedDims) )
+			{
+				treeFile.setLastModified(System.currentTimeMillis()); // the files are deleted in least recently used order
+				return new CachedSegmentTree(savedTree.getTree(), savedTree.getLabelMap(), threshold, connectivity, quantization, nLevels, inputDigest);
+			}
+		} catch (IOException e) {
+			IJ.log("H-Watershed: the saved segment tree could not be read ("+e.getMessage()+")");
+		}
+		return null;
+	}
+	
+}
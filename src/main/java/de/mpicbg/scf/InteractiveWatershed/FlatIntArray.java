@@ -0,0 +1,132 @@
+package de.mpicbg.scf.InteractiveWatershed;
+
+
+/*
+Author: Benoit Lombardot, Scientific Computing Facility, MPI-CBG, Dresden  
+
+Copyright 2017 Max Planck Institute of Molecular Cell Biology and Genetics, Dresden, Germany
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following 
+conditions are met:
+
+1 - Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+
+2 - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer 
+in the documentation and/or other materials provided with the distribution.
+
+3 - Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived 
+from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+
+
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.IntArray;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.type.numeric.integer.IntType;
+
+
+/**
+ * Flat index access to the primitive storage of an array or planar IntType image.
+ * The flat index is the one of Views.flatIterable, i.e. the first dimension varies fastest.
+ */
+public class FlatIntArray {
+	
+	private final int[] data; // storage if the image is made of a single array, null otherwise
+	private final int[][] planes;
+	private final int planeSize;
+	private final long size;
+	
+	
+	private FlatIntArray(int[][] planes, int planeSize, long size)
+	{
+		this.planes = planes;
+		this.planeSize = planeSize;
+		this.size = size;
+		this.data = planes.length==1 ? planes[0] : null;
+	}
+	
+	
+	/**
+	 * @return a flat access to img storage or null if img is not backed by primitive arrays
+	 */
+	public static FlatIntArray wrap(Img<IntType> img)
+	{
+		if( img instanceof ArrayImg )
+		{
+			Object access = ((ArrayImg<?,?>) img).update(null);
+			if( access instanceof IntArray )
+			{
+				int[] storage = ((IntArray) access).getCurrentStorageArray();
+				return new FlatIntArray( new int[][] {storage}, storage.length, img.size());
+			}
+		}
+		else if( img instanceof PlanarImg )
+		{
+			PlanarImg<?,?> planarImg = (PlanarImg<?,?>) img;
+			int nPlanes = planarImg.numSlices();
+			int[][] planes = new int[nPlanes][];
+			for(int i=0; i<nPlanes; i++)
+			{
+				Object access = planarImg.getPlane(i);
+				if( !(access instanceof IntArray) )
+					return null;
+				planes[i] = ((IntArray) access).getCurrentStorageArray();
+			}
+			return new FlatIntArray( planes, planes[0].length, img.size());
+		}
+		return null;
+	}
+	
+	
+	public int get(long idx)
+	{
+		if( data != null )
+			return data[(int)idx];
+		return planes[(int)(idx/planeSize)][(int)(idx%planeSize)];
+	}
+	
+	
+	public void set(long idx, int val)
+	{
+		if( data != null )
+			data[(int)idx] = val;
+		else
+			planes[(int)(idx/planeSize)][(int)(idx%planeSize)] = val;
+	}
+	
+	
+	public long size() {
+		return size;
+	}
+	
+	
+	public int getNumPlanes() {
+		return planes.length;
+	}
+	
+	
+	/**
+	 * @return the number of values of each plane but the last one
+	 */
+	public int getPlaneSize() {
+		return planeSize;
+	}
+	
+	
+	/**
+	 * @return the storage array of plane i, planes are stored one after the other in flat index order
+	 */
+	public int[] getPlane(int i) {
+		return planes[i];
+	}
+	
+}
@@ -0,0 +1,492 @@
+package de.mpicbg.scf.InteractiveWatershed;
+
+
+/*
+Author: Benoit Lombardot, Scientific Computing Facility, MPI-CBG, Dresden  
+
+Copyright 2017 Max Planck Institute of Molecular Cell Biology and Genetics, Dresden, Germany
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following 
+conditions are met:
+
+1 - Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+
+2 - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer 
+in the documentation and/or other materials provided with the distribution.
+
+3 - Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived 
+from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.imglib2.RandomAccess;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.view.Views;
+
+import de.mpicbg.scf.imgtools.image.neighborhood.ImageConnectivity;
+import de.mpicbg.scf.imgtools.ui.visualisation.ProgressDialog;
+
+
+/**
+ * Hierarchical queue flooding from the regional maxima. Pixels are flooded by decreasing level and in queue order within
+ * a level, two trees meeting at a pixel are merged with that pixel as the saddle.
+ * Regions of pixels above the threshold that are separated by pixels below it never meet, they are flooded in parallel
+ * and each one gives its own trees. A single region is flooded sequentially, the union-find engine gives the same tree
+ * with several threads in that case.
+ */
+class FloodingEngine implements TreeEngine {
+	
+	@Override
+	public boolean build(TreeBuilder builder)
+	{
+		final boolean wideIndices = builder.labelMap.size() > Integer.MAX_VALUE;
+		
+		// pixels below the threshold split the flooded pixels in regions that are flooded independently and give one tree each.
+		// if there is no such pixel everything is in one region and the parallel construction is not used
+		final boolean parallel = builder.numThreads > 1 && builder.min > builder.levelMin;
+		
+		HierarchicalFIFO Q = new HierarchicalFIFO( builder.min, builder.max, wideIndices );
+		builder.labelRegionalMaxima(Q);
+		
+		ProgressDialog.setStatusText("HWatershed: building label map and segment tree");
+		if( parallel )
+		{
+			if( !floodRegions(builder, Q, wideIndices) )
+				return false;
+			builder.setRootVolumes();
+			return true;
+		}
+		
+		Flooder flooder = new Flooder(builder, Q, true);
+		flooder.newNode = builder.nLeaves;
+		if( !flooder.flood() )
+			return false;
+		builder.setRootVolumes();
+		builder.renumberInternalNodes(flooder.newNode);
+		return true;
+	}
+	
+	
+	
+	/**
+	 * Flood in parallel the regions of connected pixels above the threshold. The flooding of a region never
+	 * reaches another region and processes the region pixels in the same order as the sequential flooding.
+	 * Each region gets one tree, trees are ordered by their smallest leaf and the internal nodes of a tree are
+	 * numbered consecutively in creation order, like the sequential flooding after renumberInternalNodes.
+	 * @param seeds queue of the seed pixels, emptied
+	 * @return false if the flooding was cancelled
+	 */
+	private static boolean floodRegions(final TreeBuilder builder, HierarchicalFIFO seeds, final boolean wideIndices)
+	{
+		final int min = builder.min;
+		final int max = builder.max;
+		final int base = builder.levelMin;
+		final int nLeaves = builder.nLeaves;
+		final long[] dimensions = builder.dimensions;
+		
+		// seed pixels by decreasing level, in scan order within a level
+		long[] seedIdxList = new long[1024];
+		int[] seedLevelList = new int[1024];
+		int nSeedPix = 0;
+		while( seeds.HasNext() )
+		{
+			if( nSeedPix == seedIdxList.length ){
+				seedIdxList = Arrays.copyOf(seedIdxList, 2*nSeedPix);
+				seedLevelList = Arrays.copyOf(seedLevelList, 2*nSeedPix);
+			}
+			seedIdxList[nSeedPix] = seeds.Next();
+			seedLevelList[nSeedPix] = seeds.getCurrent_level() + seeds.getMin();
+			nSeedPix++;
+		}
+		final long[] seedIdx = seedIdxList;
+		final int[] seedLevel = seedLevelList;
+		
+		// label the regions by a breadth first search from the seeds. A leaf whose plateau is only connected through
+		// the seed connectivity can touch several regions, these regions then belong to the same tree.
+		// visited seeds are flagged as dequeued until their tree is flooded, other visited pixels are marked with
+		// their level above max
+		final int ndim = dimensions.length;
+		final int nNeigh = builder.n_offset.length;
+		final int[] leafRegion = new int[nLeaves+1];
+		Arrays.fill(leafRegion, -1);
+		final UnionFind regions = new UnionFind(nSeedPix);
+		final long[] regionSize = new long[nSeedPix];
+		int nRegions = 0;
+		HierarchicalFIFO bfsQueue = new HierarchicalFIFO(0, 0, wideIndices);
+		RandomAccess<IntType> ra = builder.labelArray == null ? builder.labelMap.randomAccess() : null;
+		final long[] pos = new long[ndim];
+		final long[] nPos = new long[ndim];
+		for(int s=0; s<nSeedPix; s++)
+		{
+			final int seedCode = builder.getCode(seedIdx[s], ra, nPos);
+			if( isVisited(builder, seedCode) )
+				continue;
+			int region = nRegions++;
+			builder.setCode(seedIdx[s], seedCode-1, ra, nPos);
+			bfsQueue.add(seedIdx[s], 0);
+			while( bfsQueue.HasNext() )
+			{
+				final long pIdx = bfsQueue.Next();
+				regionSize[region]++;
+				final int pCode = builder.getCode(pIdx, ra, nPos);
+				if( pCode < base-1 ){
+					final int leaf = (base - pCode) >> 1;
+					if( leafRegion[leaf] < 0 )
+						leafRegion[leaf] = region;
+					else
+						regions.union(leafRegion[leaf], region);
+				}
+				
+				final boolean isBorder = builder.isBorder(pIdx);
+				if( isBorder )
+					HWatershedLabeling.getPosFromIdx(pIdx, pos, dimensions);
+				for( int i=0; i<nNeigh; i++)
+				{
+					if( isBorder && !HWatershedLabeling.isInBound(pos, builder.neigh[i], dimensions) )
+						continue;
+					final long nIdx = pIdx + builder.n_offset[i];
+					final int nCode = builder.getCode(nIdx, ra, nPos);
+					if( isVisited(builder, nCode) || (nCode >= base-1 && nCode < min) ) // visited, or not flooded
+						continue;
+					builder.setCode(nIdx, nCode < base-1 ? nCode-1 : nCode+builder.visitOffset, ra, nPos);
+					bfsQueue.add(nIdx, 0);
+				}
+			}
+		}
+		
+		// order the trees by their smallest leaf and give each one a range of internal node ids
+		final int[] regionTree = new int[nRegions];
+		Arrays.fill(regionTree, -1);
+		final int[] leafTree = new int[nLeaves+1];
+		int nTrees = 0;
+		for(int leaf=1; leaf<=nLeaves; leaf++)
+		{
+			int rep = regions.find(leafRegion[leaf]);
+			if( regionTree[rep] < 0 )
+				regionTree[rep] = nTrees++;
+			leafTree[leaf] = regionTree[rep];
+		}
+		final int[] firstNode = new int[nTrees+1];
+		final long[] treeSize = new long[nTrees];
+		final int[] treeSeedStart = new int[nTrees+1];
+		for(int leaf=1; leaf<=nLeaves; leaf++)
+			firstNode[leafTree[leaf]+1]++;
+		firstNode[0] = nLeaves+1;
+		for(int t=0; t<nTrees; t++)
+			firstNode[t+1] += firstNode[t] - 1; // a tree with k leaves has k-1 internal nodes
+		for(int r=0; r<nRegions; r++)
+			treeSize[regionTree[regions.find(r)]] += regionSize[r];
+		
+		// seeds of each tree, in queue order
+		final int[] seedTree = new int[nSeedPix];
+		for(int s=0; s<nSeedPix; s++)
+		{
+			seedTree[s] = leafTree[ (base - builder.getCode(seedIdx[s], ra, nPos)) >> 1 ];
+			treeSeedStart[seedTree[s]+1]++;
+		}
+		for(int t=0; t<nTrees; t++)
+			treeSeedStart[t+1] += treeSeedStart[t];
+		final int[] treeSeeds = new int[nSeedPix];
+		final int[] fillPos = Arrays.copyOf(treeSeedStart, nTrees);
+		for(int s=0; s<nSeedPix; s++)
+			treeSeeds[fillPos[seedTree[s]]++] = s;
+		
+		// largest trees first to balance the load
+		final Integer[] treeOrder = new Integer[nTrees];
+		for(int t=0; t<nTrees; t++)
+			treeOrder[t] = t;
+		Arrays.sort(treeOrder, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer t1, Integer t2) {
+				return Long.compare(treeSize[t2], treeSize[t1]);
+			}
+		});
+		
+		// flood the trees
+		final AtomicInteger nextTree = new AtomicInteger();
+		final int nTasks = Math.max(1, Math.min(builder.numThreads, nTrees));
+		final ExecutorService pool = builder.executor != null ? builder.executor : ParallelTasks.getSharedPool();
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		for(int k=0; k<nTasks; k++)
+		{
+			futures.add( pool.submit(new Runnable() {
+				@Override
+				public void run() {
+					Flooder flooder = new Flooder( builder, new HierarchicalFIFO(min, max, wideIndices), false );
+					RandomAccess<IntType> ra = builder.labelArray == null ? builder.labelMap.randomAccess() : null;
+					final long[] pos = new long[ndim];
+					int k;
+					while( !builder.cancelled && (k = nextTree.getAndIncrement()) < treeOrder.length )
+					{
+						final int tree = treeOrder[k];
+						for(int s=treeSeedStart[tree]; s<treeSeedStart[tree+1]; s++)
+						{
+							final long idx = seedIdx[treeSeeds[s]];
+							builder.setCode(idx, builder.getCode(idx, ra, pos)+1, ra, pos); // queued again
+							flooder.Q.add(idx, seedLevel[treeSeeds[s]]);
+						}
+						flooder.newNode = firstNode[tree]-1;
+						if( !flooder.flood() )
+							return;
+					}
+				}
+			}));
+		}
+		
+		try {
+			for(Future<?> future : futures)
+			{
+				while( true ){
+					try {
+						future.get(100, TimeUnit.MILLISECONDS);
+						break;
+					} catch (TimeoutException e) {
+						builder.updateProgress();
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			builder.cancelled = true; // the flooders stop at their next tree
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			throw new RuntimeException("HWatershed: the flooding failed", e.getCause());
+		}
+		
+		return !builder.cancelled;
+	}
+	
+	
+	
+	// true for the label map value of a pixel visited by the region search
+	private static boolean isVisited(TreeBuilder builder, int code)
+	{
+		return code > builder.max || ( code < builder.levelMin-1 && ((builder.levelMin-1-code) & 1)==0 );
+	}
+	
+	
+	
+	/**
+	 * Flooding of the pixels queued in Q. Each flooding thread has its own flooder, flooders working at the
+	 * same time never share a tree or a pixel.
+	 */
+	private static class Flooder
+	{
+		final TreeBuilder builder;
+		final HierarchicalFIFO Q;
+		final boolean reportProgress; // false if the progress bar is updated by another thread
+		int newNode; // last node created
+		private int processed = 0;
+		
+		Flooder(TreeBuilder builder, HierarchicalFIFO Q, boolean reportProgress)
+		{
+			this.builder = builder;
+			this.Q = Q;
+			this.reportProgress = reportProgress;
+		}
+		
+		
+		/**
+		 * @return false if the flooding was cancelled
+		 */
+		boolean flood()
+		{
+			if( builder.labelArray != null )
+				return floodArray(builder.labelArray);
+			return floodRandomAccess();
+		}
+		
+		
+		/**
+		 * Flooding on the primitive storage of the label map, pixels are only accessed through their flat index.
+		 * Pixels on the image border are flagged beforehand, for the others no bound checking is necessary.
+		 * @return false if the flooding was cancelled
+		 */
+		private boolean floodArray(FlatIntArray labels)
+		{
+			final TreeBuilder b = builder;
+			final int min = b.min;
+			final int max = b.max;
+			final int base = b.levelMin;
+			final int visitOffset = b.visitOffset;
+			final long[] dimensions = b.dimensions;
+			final long[][] neigh = b.neigh;
+			final long[] n_offset = b.n_offset;
+			final long[] borderMask = b.borderMask;
+			final boolean attributes = b.computeAttributes;
+			final int ndim = dimensions.length;
+			final int nNeigh = n_offset.length;
+			final long[] posCurrent = new long[ndim];
+			
+			while( Q.HasNext() )
+			{ 	
+				if( !countProcessed() )
+					return false;
+				
+				final long pIdx = Q.Next(); 
+				final double pVal = b.getLevelValue( Q.getCurrent_level() + Q.getMin() );
+				
+				final int pCode = labels.get(pIdx);
+				final int pLeaf = (base - pCode) >> 1;
+				int pNode = b.findTreeRoot(pLeaf);
+				labels.set(pIdx, pCode-1); // flag p as dequeued
+				
+				final boolean isBorder = ( borderMask[(int)(pIdx>>>6)] & (1L<<pIdx) ) != 0;
+				if( isBorder || attributes )
+					HWatershedLabeling.getPosFromIdx(pIdx, posCurrent, dimensions);
+				if( attributes ){
+					b.addToLeafAttributes(pLeaf, pVal, posCurrent);
+					b.addToComponent(pLeaf, 1, pVal);
+				}
+				
+				// loop on neighbors
+				for( int i=0; i<nNeigh; i++)
+				{
+					if( isBorder && !HWatershedLabeling.isInBound(posCurrent, neigh[i], dimensions) )
+						continue;
+					
+					final long nIdx = pIdx + n_offset[i];
+					final int nVal = labels.get(nIdx);
+					
+					if ( nVal != (base-1) ) // if n is in-bound
+					{
+						if( nVal<base-1 && ((base-1-nVal) & 1)==0 ) // n was dequeued, p is the lowest point 
+						{	
+							int nLeaf = (base - nVal) >> 1;
+							int nNode = b.findTreeRoot(nLeaf);
+							
+							if( nNode != pNode ) // 2 distincts nodes are meeting and p is the saddle : merge Nodes
+								pNode = b.mergeAtSaddle(++newNode, pNode, pLeaf, nNode, nLeaf, pVal);
+						}
+						
+						if ( nVal>=min ) // is not queued yet and is in bound?
+						{
+							Q.add( nIdx, nVal>max ? nVal-visitOffset : nVal ); // visited by the region search if above max
+							labels.set(nIdx, base - 2*pLeaf);
+						}
+					}
+					
+				} // end loop on neighbor
+				
+			} // end while
+			
+			return true;
+		}
+		
+		
+		/**
+		 * Flooding for label maps that are not backed by primitive arrays
+		 * @return false if the flooding was cancelled
+		 */
+		private boolean floodRandomAccess()
+		{
+			final TreeBuilder b = builder;
+			final int min = b.min;
+			final int max = b.max;
+			final int base = b.levelMin;
+			final int visitOffset = b.visitOffset;
+			final long[] dimensions = b.dimensions;
+			final long[] n_offset = b.n_offset;
+			final boolean attributes = b.computeAttributes;
+			final int ndim = dimensions.length;
+			final int nNeigh = n_offset.length;
+			long[][] dPosList = ImageConnectivity.getSuccessiveMove(b.neigh);
+			
+			// extend input and seeds to to deal with out of bound
+			IntType outOfBoundT = b.labelMap.firstElement().createVariable(); 
+			outOfBoundT.set(base-1);
+			RandomAccess< IntType > input_XRA = Views.extendValue(b.labelMap, outOfBoundT ).randomAccess();
+			RandomAccess< IntType > input_XRA2 = input_XRA.copyRandomAccess();
+			final long[] posCurrent = new long[ndim];
+			
+			while( Q.HasNext() )
+			{ 	
+				if( !countProcessed() )
+					return false;
+				
+				final long pIdx = Q.Next(); 
+				final double pVal = b.getLevelValue( Q.getCurrent_level() + Q.getMin() );
+				
+				HWatershedLabeling.getPosFromIdx(pIdx, posCurrent, dimensions);
+				input_XRA.setPosition(posCurrent);
+				IntType p = input_XRA.get();
+				final int pCode = p.get();
+				final int pLeaf = (base - pCode) >> 1;
+				int pNode = b.findTreeRoot(pLeaf);
+				p.set(pCode-1); // flag p as dequeued
+				if( attributes ){
+					b.addToLeafAttributes(pLeaf, pVal, posCurrent);
+					b.addToComponent(pLeaf, 1, pVal);
+				}
+				
+				// loop on neighbors			
+				input_XRA2.setPosition(posCurrent);
+				for( int i=0; i<nNeigh; i++)
+				{
+					final long nIdx = pIdx + n_offset[i];
+					
+					input_XRA2.move(dPosList[i]);
+					final IntType n = input_XRA2.get();
+					final int nVal = n.get();
+					
+					if ( nVal != (base-1) ) // if n is in-bound
+					{
+						if( nVal<base-1 && ((base-1-nVal) & 1)==0 ) // n was dequeued, p is the lowest point 
+						{	
+							int nLeaf = (base - nVal) >> 1;
+							int nNode = b.findTreeRoot(nLeaf);
+							
+							if( nNode != pNode ) // 2 distincts nodes are meeting and p is the saddle : merge Nodes
+								pNode = b.mergeAtSaddle(++newNode, pNode, pLeaf, nNode, nLeaf, pVal);
+						}
+						
+						if ( nVal>=min ) // is not queued yet and is in bound?
+						{
+							Q.add( nIdx, nVal>max ? nVal-visitOffset : nVal ); // visited by the region search if above max
+							n.set(base - 2*pLeaf);
+						}
+					}
+					
+				} // end loop on neighbor
+				
+			} // end while
+			
+			return true;
+		}
+		
+		
+		/**
+		 * Count one more processed pixel, the shared count is updated every PROGRESS_STEP pixels
+		 * @return false if the processing was cancelled
+		 */
+		private boolean countProcessed()
+		{
+			if( ++processed < TreeBuilder.PROGRESS_STEP )
+				return true;
+			processed = 0;
+			builder.pixProcessed.addAndGet(TreeBuilder.PROGRESS_STEP);
+			if( reportProgress )
+				return builder.updateProgress();
+			return !builder.cancelled;
+		}
+	}
+	
+}
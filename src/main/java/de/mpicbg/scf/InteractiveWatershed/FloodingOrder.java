@@ -0,0 +1,606 @@
+package de.mpicbg.scf.InteractiveWatershed;
+
+
+/*
+Author: Benoit Lombardot, Scientific Computing Facility, MPI-CBG, Dresden  
+
+Copyright 2017 Max Planck Institute of Molecular Cell Biology and Genetics, Dresden, Germany
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following 
+conditions are met:
+
+1 - Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+
+2 - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer 
+in the documentation and/or other materials provided with the distribution.
+
+3 - Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived 
+from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+
+
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import net.imglib2.RandomAccess;
+import net.imglib2.type.numeric.integer.IntType;
+
+
+/**
+ * Order in which FloodingEngine processes the pixels, computed with several threads and without the flooding.
+ * 
+ * The flooding processes the levels from the highest and the pixels of a level in queue order: first the seeds of the
+ * level in scan order, then the pixels queued by the pixels processed before, a pixel queuing its neighbors in neighbor
+ * order. The pixels of a level are therefore processed in layers, a layer being the pixels queued by the previous one.
+ * The pixels of a layer are split between the threads: each pixel claims its neighbors with its rank and queues those
+ * for which it has the smallest rank, in rank and neighbor order.
+ * A pixel can also reach unqueued pixels above its level: with the FACE connectivity a plateau whose higher neighbors
+ * are all diagonal has no seed and is only reached from below. The flooding processes the pixels above the level
+ * connected to such a neighbor, highest level first, right after the pixel. These excursions belong to the first
+ * pixel of the layer that reaches them and are replayed by its thread.
+ * A processed pixel gets the leaf of the pixel that queued it, which is written in the label map as by the flooding.
+ */
+class FloodingOrder {
+	
+	// smallest layer split between several threads
+	private static final int GRAIN = TreeBuilder.PROGRESS_STEP;
+	
+	// steps of the processing of a layer
+	private static final int FIND_EXCURSIONS = 0;
+	private static final int PROCESS = 1;
+	
+	private final TreeBuilder b;
+	private final int base;
+	// with the FULL connectivity of the seeds every pixel above a level is reached from a seed, there is no excursion
+	private final boolean excursionsPossible;
+	
+	/** processed pixels by rank */
+	final int[] order;
+	int nProcessed = 0;
+	/** state of each pixel: 0 if not queued, -1-r if queued by the pixel of rank r, r+1 if processed with rank r */
+	final AtomicIntegerArray rank;
+	/** rank of the first pixel processed at level min+l, the pixels of an excursion excepted */
+	final int[] levelRank;
+	/** rank and level of the pixels processed in an excursion, by increasing rank */
+	int[] excursionRank = new int[16];
+	int[] excursionLevel = new int[16];
+	int nExcursions = 0;
+	
+	/** queue of each level, the seeds followed by the queued pixels in queue order. Not used once the order is computed */
+	final int[] queue;
+	private final int[] queueStart;
+	private final int[] queueEnd;
+	// excursion pixels processed before each pixel of the current layer, null if there is no excursion
+	private int[] excursionsBefore;
+	
+	private final Worker[] workers;
+	private final RandomAccess<IntType> ra;
+	private final long[] nPos;
+	
+	
+	/**
+	 * Count the pixels of each level and list the seeds, the label map must hold the leaves, see TreeBuilder.labelRegionalMaxima
+	 * @param tileStart tiles of consecutive pixels counted in parallel, tileStart[nTiles] being the number of pixels
+	 */
+	FloodingOrder(final TreeBuilder b, final int[] tileStart)
+	{
+		this.b = b;
+		base = b.levelMin;
+		excursionsPossible = b.n_offset.length < (int)Math.pow(3, b.dimensions.length) - 1;
+		final int min = b.min;
+		final int nBins = b.max-min+1;
+		final int nTiles = tileStart.length-1;
+		final int n = tileStart[nTiles];
+		
+		// pixels and seeds of each level in each tile
+		final int[][] count = new int[nTiles][nBins];
+		final int[][] seedCount = new int[nTiles][nBins];
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for(int c=0; c<nTiles; c++)
+		{
+			final int tile = c;
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					final RandomAccess<IntType> ra = b.labelArray == null ? b.labelMap.randomAccess() : null;
+					final long[] pos = new long[b.dimensions.length];
+					for(int p=tileStart[tile]; p<tileStart[tile+1]; p++)
+					{
+						final int code = b.getCode(p, ra, pos);
+						if( code < base-1 ){
+							final int l = b.leafLevel[(base - code) >> 1] - min;
+							count[tile][l]++;
+							seedCount[tile][l]++;
+						}
+						else if( code >= min )
+							count[tile][code-min]++;
+					}
+					return null;
+				}
+			});
+		}
+		ParallelTasks.run(tasks, b.executor);
+		
+		// the queue of a level can hold all its pixels, the seeds are first in scan order
+		queueStart = new int[nBins];
+		queueEnd = new int[nBins];
+		int nFlooded = 0;
+		for(int l=nBins-1; l>=0; l--)
+		{
+			queueStart[l] = nFlooded;
+			int end = nFlooded;
+			for(int c=0; c<nTiles; c++){
+				final int nSeeds = seedCount[c][l];
+				seedCount[c][l] = end;
+				end += nSeeds;
+				nFlooded += count[c][l];
+			}
+			queueEnd[l] = end;
+		}
+		queue = new int[nFlooded];
+		tasks.clear();
+		for(int c=0; c<nTiles; c++)
+		{
+			final int tile = c;
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					final RandomAccess<IntType> ra = b.labelArray == null ? b.labelMap.randomAccess() : null;
+					final long[] pos = new long[b.dimensions.length];
+					final int[] next = seedCount[tile];
+					for(int p=tileStart[tile]; p<tileStart[tile+1]; p++)
+					{
+						final int code = b.getCode(p, ra, pos);
+						if( code < base-1 )
+							queue[ next[b.leafLevel[(base - code) >> 1] - min]++ ] = p;
+					}
+					return null;
+				}
+			});
+		}
+		ParallelTasks.run(tasks, b.executor);
+		
+		order = new int[n];
+		rank = new AtomicIntegerArray(n);
+		levelRank = new int[nBins];
+		workers = new Worker[b.labelArray == null ? 1 : Math.max(1, b.numThreads)];
+		for(int w=0; w<workers.length; w++)
+			workers[w] = new Worker();
+		ra = b.labelArray == null ? b.labelMap.randomAccess() : null;
+		nPos = new long[b.dimensions.length];
+	}
+	
+	
+	
+	/**
+	 * Process the levels from the highest, layer by layer
+	 * @return false if the processing was cancelled
+	 */
+	boolean compute()
+	{
+		for(int l=levelRank.length-1; l>=0; l--)
+		{
+			levelRank[l] = nProcessed;
+			int head = queueStart[l];
+			while( head < queueEnd[l] )
+			{
+				final int end = queueEnd[l];
+				processLayer(b.min+l, head, end);
+				head = end;
+				
+				b.pixProcessed.set(nProcessed);
+				if( !b.updateProgress() )
+					return false;
+			}
+		}
+		return true;
+	}
+	
+	
+	
+	/**
+	 * Process the pixels queue[from..to-1] of a layer at level, in parallel if the layer is large enough. The pixels
+	 * they queue are added to the queues of their levels.
+	 */
+	private void processLayer(final int level, final int from, final int to)
+	{
+		final int rankBase = nProcessed;
+		final int nChunks = (int) Math.max(1, Math.min(workers.length, (to-from)/GRAIN));
+		
+		// the excursions are claimed like the queued pixels, with the position of the pixel in the layer
+		int nExcursionPix = 0;
+		excursionsBefore = null;
+		if( excursionsPossible )
+		{
+			for(int c=0; c<nChunks; c++)
+				workers[c].excursions.clear();
+			run(FIND_EXCURSIONS, from, to, nChunks, level, rankBase);
+			for(int c=0; c<nChunks; c++)
+				if( workers[c].excursions.size() > 0 ){
+					nExcursionPix = assignExcursions(from, to, level, rankBase, nChunks);
+					break;
+				}
+		}
+		
+		run(PROCESS, from, to, nChunks, level, rankBase);
+		final int rankEnd = rankBase + (to-from) + nExcursionPix;
+		for(int c=0; c<nChunks; c++)
+		{
+			final Worker worker = workers[c];
+			for(int k=0; k<worker.excursionPix.size(); k++)
+				addExcursionPixel(worker.excursionPix.get(k), worker.excursionLevels.get(k));
+			worker.excursionPix.clear();
+			worker.excursionLevels.clear();
+		}
+		nProcessed = rankEnd;
+		
+		// the claims are listed by rank of the claiming pixel then by neighbor, the queue order
+		for(int c=0; c<nChunks; c++)
+		{
+			final IntList claimed = workers[c].claimed;
+			final IntList claimRank = workers[c].claimRank;
+			for(int k=0; k<claimed.size(); k++)
+			{
+				final int p = claimed.get(k);
+				if( rank.get(p) != -1-claimRank.get(k) ) // claimed by a smaller rank
+					continue;
+				final int l = b.getCode(p, ra, nPos) - b.min;
+				queue[ queueEnd[l]++ ] = p;
+			}
+			claimed.clear();
+			claimRank.clear();
+		}
+	}
+	
+	
+	
+	// run a step of the layer processing on chunks of [from, to), one worker per chunk
+	private void run(final int step, final int from, final int to, final int nChunks, final int level, final int rankBase)
+	{
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for(int c=0; c<nChunks; c++)
+		{
+			final Worker worker = workers[c];
+			final int start = (int)( from + (long)(to-from)*c/nChunks );
+			final int end = (int)( from + (long)(to-from)*(c+1)/nChunks );
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					if( step == FIND_EXCURSIONS )
+						worker.findExcursions(start, end, from, level, rankBase);
+					else
+						worker.process(start, end, from, level, rankBase);
+					return null;
+				}
+			});
+		}
+		ParallelTasks.run(tasks, b.executor);
+	}
+	
+	
+	
+	/**
+	 * Give each excursion reached from the layer to the first layer pixel claiming one of its pixels, the excursion
+	 * pixels are marked with the claim of that pixel. This is done on one thread, excursions are rare and small.
+	 * excursionsBefore receives the number of excursion pixels processed before each pixel of the layer.
+	 * @return the number of excursion pixels
+	 */
+	private int assignExcursions(int from, int to, int level, int rankBase, int nChunks)
+	{
+		final int max = b.max;
+		final int visitOffset = b.visitOffset;
+		final long[] dimensions = b.dimensions;
+		final long[] pos = new long[dimensions.length];
+		final int[] size = new int[to-from+1];
+		final IntList visited = new IntList();
+		for(int c=0; c<nChunks; c++)
+		{
+			final IntList entries = workers[c].excursions;
+			for(int e=0; e<entries.size(); e++)
+			{
+				final int q = entries.get(e);
+				final int qCode = b.getCode(q, ra, nPos);
+				if( qCode > max ) // visited from another entry
+					continue;
+				
+				// connected pixels above the level, marked with their level above max while the layer is explored
+				final int start = visited.size();
+				visited.add(q);
+				b.setCode(q, qCode+visitOffset, ra, nPos);
+				int owner = Integer.MAX_VALUE;
+				for(int k=start; k<visited.size(); k++)
+				{
+					final int p = visited.get(k);
+					final int state = rank.get(p);
+					if( state < 0 )
+						owner = Math.min(owner, -1-state);
+					final boolean isBorder = b.isBorder(p);
+					if( isBorder )
+						HWatershedLabeling.getPosFromIdx(p, pos, dimensions);
+					for(int i=0; i<b.n_offset.length; i++)
+					{
+						if( isBorder && !HWatershedLabeling.isInBound(pos, b.neigh[i], dimensions) )
+							continue;
+						final int nIdx = (int)(p + b.n_offset[i]);
+						final int nCode = b.getCode(nIdx, ra, nPos);
+						if( nCode > level && nCode <= max ){
+							b.setCode(nIdx, nCode+visitOffset, ra, nPos);
+							visited.add(nIdx);
+						}
+					}
+				}
+				for(int k=start; k<visited.size(); k++)
+					rank.set(visited.get(k), -1-owner);
+				size[owner-rankBase] += visited.size()-start;
+			}
+		}
+		for(int k=0; k<visited.size(); k++)
+		{
+			final int p = visited.get(k);
+			b.setCode(p, b.getCode(p, ra, nPos)-visitOffset, ra, nPos);
+		}
+		
+		int nBefore = 0;
+		for(int j=0; j<size.length; j++){
+			final int s = size[j];
+			size[j] = nBefore;
+			nBefore += s;
+		}
+		excursionsBefore = size;
+		return nBefore;
+	}
+	
+	
+	
+	private void addExcursionPixel(int r, int level)
+	{
+		if( nExcursions == excursionRank.length ){
+			excursionRank = Arrays.copyOf(excursionRank, 2*nExcursions);
+			excursionLevel = Arrays.copyOf(excursionLevel, 2*nExcursions);
+		}
+		excursionRank[nExcursions] = r;
+		excursionLevel[nExcursions++] = level;
+	}
+	
+	
+	
+	/**
+	 * Claim pixel p for the pixel of rank r, the smallest rank wins
+	 * @return false if p was claimed by a smaller rank or processed
+	 */
+	private boolean claim(int p, int r)
+	{
+		while( true )
+		{
+			final int state = rank.get(p);
+			if( state > 0 || ( state < 0 && -1-state <= r ) )
+				return false;
+			if( rank.compareAndSet(p, state, -1-r) )
+				return true;
+		}
+	}
+	
+	
+	
+	/**
+	 * Processing of a chunk of a layer, a worker is used by one thread at a time
+	 */
+	private class Worker
+	{
+		final RandomAccess<IntType> ra = b.labelArray == null ? b.labelMap.randomAccess() : null;
+		final long[] pos = new long[b.dimensions.length];
+		final long[] nPos = new long[b.dimensions.length];
+		final IntList excursions = new IntList(); // first pixels of the excursions claimed by the chunk
+		final IntList excursionPix = new IntList(); // rank and level of the excursion pixels processed by the chunk
+		final IntList excursionLevels = new IntList();
+		final IntList claimed = new IntList(); // pixels claimed by the chunk and their claim, in queue order
+		final IntList claimRank = new IntList();
+		final ExcursionQueue excursionQueue = new ExcursionQueue();
+		
+		
+		// claim the unqueued neighbors above the level
+		void findExcursions(int start, int end, int from, int level, int rankBase)
+		{
+			final int max = b.max;
+			for(int j=start; j<end; j++)
+			{
+				final int p = queue[j];
+				final boolean isBorder = setPosition(p);
+				for(int i=0; i<b.n_offset.length; i++)
+				{
+					if( isBorder && !HWatershedLabeling.isInBound(pos, b.neigh[i], b.dimensions) )
+						continue;
+					final int q = (int)(p + b.n_offset[i]);
+					final int qCode = b.getCode(q, ra, nPos);
+					if( qCode > level && qCode <= max ){
+						claim(q, rankBase + j-from);
+						excursions.add(q);
+					}
+				}
+			}
+		}
+		
+		
+		// give each layer pixel its rank and leaf, claim its neighbors and process its excursions
+		void process(int start, int end, int from, int level, int rankBase)
+		{
+			final int[] before = excursionsBefore;
+			for(int j=start; j<end; j++)
+			{
+				final int p = queue[j];
+				int r = rankBase + j-from + ( before==null ? 0 : before[j-from] );
+				final int pCode = b.getCode(p, ra, nPos);
+				final int leaf;
+				if( pCode < base-1 ) // seed
+					leaf = (base - pCode) >> 1;
+				else
+					leaf = (base - b.getCode(order[-1-rank.get(p)], ra, nPos)) >> 1;
+				final int label = base-1-2*leaf;
+				b.setCode(p, label, ra, nPos);
+				order[r] = p;
+				rank.set(p, r+1);
+				
+				final int excursionMark = -1-(rankBase + j-from);
+				claimNeighbors(p, r, level, before==null ? 0 : excursionMark, label);
+				while( !excursionQueue.isEmpty() )
+				{
+					final int qLevel = excursionQueue.peekLevel();
+					final int q = excursionQueue.poll();
+					r++;
+					order[r] = q;
+					rank.set(q, r+1);
+					excursionPix.add(r);
+					excursionLevels.add(qLevel);
+					claimNeighbors(q, r, level, excursionMark, label);
+				}
+			}
+		}
+		
+		
+		/**
+		 * Claim the unqueued neighbors of the pixel p of rank r at or below the level. The neighbors above the level 
+		 * marked with excursionMark are queued in the excursion queue and labeled, unless excursionMark is 0
+		 */
+		private void claimNeighbors(int p, int r, int level, int excursionMark, int label)
+		{
+			final int min = b.min;
+			final int max = b.max;
+			final boolean isBorder = setPosition(p);
+			for(int i=0; i<b.n_offset.length; i++)
+			{
+				if( isBorder && !HWatershedLabeling.isInBound(pos, b.neigh[i], b.dimensions) )
+					continue;
+				final int q = (int)(p + b.n_offset[i]);
+				final int qCode = b.getCode(q, ra, nPos);
+				if( qCode >= min && qCode <= level && claim(q, r) ){
+					claimed.add(q);
+					claimRank.add(r);
+				}
+				else if( excursionMark != 0 && qCode > level && qCode <= max && rank.get(q) == excursionMark ){
+					excursionQueue.add(q, qCode);
+					b.setCode(q, label, ra, nPos);
+				}
+			}
+		}
+		
+		
+		// set pos to the position of p if p is on the image border
+		private boolean setPosition(int p)
+		{
+			final boolean isBorder = b.isBorder(p);
+			if( isBorder )
+				HWatershedLabeling.getPosFromIdx(p, pos, b.dimensions);
+			return isBorder;
+		}
+	}
+	
+	
+	
+	/**
+	 * Queue of the pixels of an excursion, highest level first and in insertion order within a level as the 
+	 * HierarchicalFIFO of the flooding. A binary heap, excursions are small.
+	 */
+	private static class ExcursionQueue
+	{
+		private long[] keys = new long[16]; // level in the high bits, insertion number in the low bits
+		private int[] pixels = new int[16];
+		private int size = 0;
+		private int nAdded = 0;
+		
+		boolean isEmpty()
+		{
+			return size == 0;
+		}
+		
+		void add(int p, int level)
+		{
+			if( size == keys.length ){
+				keys = Arrays.copyOf(keys, 2*size);
+				pixels = Arrays.copyOf(pixels, 2*size);
+			}
+			// smallest key first: highest level then first added
+			final long key = ( -(long)level << 32 ) | nAdded++;
+			int k = size++;
+			while( k > 0 && keys[(k-1)/2] > key ){
+				keys[k] = keys[(k-1)/2];
+				pixels[k] = pixels[(k-1)/2];
+				k = (k-1)/2;
+			}
+			keys[k] = key;
+			pixels[k] = p;
+		}
+		
+		int peekLevel()
+		{
+			return (int) -(keys[0] >> 32);
+		}
+		
+		int poll()
+		{
+			final int p = pixels[0];
+			final long key = keys[--size];
+			final int pix = pixels[size];
+			int k = 0;
+			while( 2*k+1 < size ){
+				int child = 2*k+1;
+				if( child+1 < size && keys[child+1] < keys[child] )
+					child++;
+				if( keys[child] >= key )
+					break;
+				keys[k] = keys[child];
+				pixels[k] = pixels[child];
+				k = child;
+			}
+			keys[k] = key;
+			pixels[k] = pix;
+			if( size == 0 )
+				nAdded = 0;
+			return p;
+		}
+	}
+	
+	
+	
+	// growable list of ints
+	private static class IntList
+	{
+		private int[] data = new int[16];
+		private int size = 0;
+		
+		void add(int v)
+		{
+			if( size == data.length )
+				data = Arrays.copyOf(data, 2*size);
+			data[size++] = v;
+		}
+		
+		int get(int k)
+		{
+			return data[k];
+		}
+		
+		int size()
+		{
+			return size;
+		}
+		
+		void clear()
+		{
+			size = 0;
+		}
+	}
+	
+}
@@ -0,0 +1,144 @@
+package de.mpicbg.scf.InteractiveWatershed;
+
+
+/*
+Author: Benoit Lombardot, Scientific Computing Facility, MPI-CBG, Dresden  
+
+Copyright 2017 Max Planck Institute of Molecular Cell Biology and Genetics, Dresden, Germany
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following 
+conditions are met:
+
+1 - Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+
+2 - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer 
+in the documentation and/or other materials provided with the distribution.
+
+3 - Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived 
+from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+
+
+
+import de.mpicbg.scf.InteractiveWatershed.SegmentHierarchyToLabelMap.FloodingRank;
+
+
+/**
+ * Flooding rank of the pixels of a label map, for a fixed tree labelling and intensity threshold.
+ * 
+ * Peak flooding percentages are sampled on a regular grid of nSteps steps between 0 and 100 that contains
+ * the integer percentages. The rank of a pixel is the first step at which it gets its label, nSteps+1 if it
+ * never does, so that the label map of a percentage of the grid is a comparison of the ranks with its step.
+ * Ranks are stored on 8 bits (steps of 0.5%) or 16 bits (steps of 0.002%).
+ */
+public class FloodingRankMap {
+	
+	private static final int N_STEPS_8 = 200;
+	private static final int N_STEPS_16 = 50000;
+	
+	private final int nSteps;
+	private final byte[] ranks8;
+	private final short[] ranks16;
+	
+	
+	/**
+	 * @param size number of pixels
+	 * @param floodingRank BITS_8 or BITS_16
+	 */
+	public FloodingRankMap(int size, FloodingRank floodingRank)
+	{
+		if( floodingRank == FloodingRank.BITS_8 ){
+			nSteps = N_STEPS_8;
+			ranks8 = new byte[size];
+			ranks16 = null;
+		}
+		else if( floodingRank == FloodingRank.BITS_16 ){
+			nSteps = N_STEPS_16;
+			ranks8 = null;
+			ranks16 = new short[size];
+		}
+		else
+			throw new IllegalArgumentException("FloodingRankMap: no storage for flooding rank "+floodingRank);
+	}
+	
+	
+	public int getNumberOfSteps() {
+		return nSteps;
+	}
+	
+	public float getPercentFlooding(int step) {
+		return step*100f/nSteps;
+	}
+	
+	/**
+	 * @return the step of percentFlooding, -1 if percentFlooding is not on the grid
+	 */
+	public int getStep(float percentFlooding)
+	{
+		if( !(percentFlooding >= 0 && percentFlooding <= 100) )
+			return -1;
+		final int step = Math.round(percentFlooding*nSteps/100f);
+		return getPercentFlooding(step) == percentFlooding ? step : -1;
+	}
+	
+	
+	/**
+	 * @param value pixel intensity
+	 * @param threshold intensity threshold of the label map
+	 * @param imax Imax feature of the label root of the pixel
+	 * @return the first step at which the pixel is labelled, nSteps+1 if it is never labelled
+	 */
+	public int computeRank(float value, float threshold, float imax)
+	{
+		// the flooding level of a label only decreases with the percentage
+		if( !isLabelled(value, threshold, imax, nSteps) )
+			return nSteps+1;
+		
+		// start from the step of the relative height of the pixel in its label, then fix the rounding errors
+		int step = 0;
+		if( imax > threshold )
+			step = (int) Math.max(0, Math.min(nSteps, Math.ceil( nSteps*(imax-(double)value)/(imax-(double)threshold) )));
+		while( step > 0 && isLabelled(value, threshold, imax, step-1) )
+			step--;
+		while( !isLabelled(value, threshold, imax, step) )
+			step++;
+		return step;
+	}
+	
+	
+	private boolean isLabelled(float value, float threshold, float imax, int step)
+	{
+		return value >= SegmentHierarchyToLabelMap.getMinValue(threshold, imax, getPercentFlooding(step));
+	}
+	
+	
+	public int get(int idx)
+	{
+		return ranks8 != null ? ranks8[idx] & 0xff : ranks16[idx] & 0xffff;
+	}
+	
+	public void set(int idx, int rank)
+	{
+		if( ranks8 != null )
+			ranks8[idx] = (byte) rank;
+		else
+			ranks16[idx] = (short) rank;
+	}
+	
+	public long size() {
+		return ranks8 != null ? ranks8.length : ranks16.length;
+	}
+	
+	public long getSizeInBytes() {
+		return ranks8 != null ? ranks8.length : 2L*ranks16.length;
+	}
+	
+}
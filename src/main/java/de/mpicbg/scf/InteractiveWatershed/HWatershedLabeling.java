@@ -33,8 +33,14 @@ import de.mpicbg.scf.imgtools.image.create.labelmap.LocalMaximaLabeling;
 import de.mpicbg.scf.imgtools.image.neighborhood.ImageConnectivity;
 import de.mpicbg.scf.imgtools.ui.visualisation.ProgressDialog;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+
 import net.imglib2.Cursor;
 import net.imglib2.FinalInterval;
+import net.imglib2.IterableInterval;
 import net.imglib2.RandomAccess;
 import net.imglib2.algorithm.stats.ComputeMinMax;
 import net.imglib2.exception.IncompatibleTypeException;
@@ -139,34 +145,133 @@ public class HWatershedLabeling<T extends RealType<T>> {
 		}
 	}
 	
+	
+	/**
+	 * Conversion of the input intensities to the integer levels used for the flooding
+	 * NONE: values are truncated to integers, one level per integer between min and max 
+	 * LINEAR: a fixed number of equally spaced levels between min and max
+	 * EQUALIZED: a fixed number of levels containing approximately the same number of pixels   
+	 */
+	public enum Quantization
+	{
+		NONE,
+		LINEAR,
+		EQUALIZED;
+	}
+	
+	
+	/**
+	 * Algorithm building the segment tree and the leaf label map, each one is implemented by a TreeEngine
+	 * FLOODING: hierarchical queue flooding from the seeds, see FloodingEngine, flooded regions can be processed in parallel
+	 * UNION_FIND: see UnionFindEngine, pixels are put in the flooding order and merged with a union-find, which gives
+	 * the same tree and label map as FLOODING. The order and the merge candidates are computed in parallel even if there
+	 * is a single flooded region. Limited to images of less than 2^31 pixels and to connectivities of at most 32
+	 * neighbors, the FLOODING engine is used for the other images
+	 */
+	public enum Engine
+	{
+		FLOODING,
+		UNION_FIND;
+	}
+	
 	private Img<IntType> labelMapMaxTree;
 	private float threshold;
 	private Connectivity connectivity;
 	private boolean maxTreeIsBuilt=false;
 	private Tree maxTree;
 	private boolean  wasCancelled=false;
+	private IntensityQuantizer quantizer=null;
+	private int levelMin; // lowest and highest level of the label map before the flooding
+	private int levelMax;
+	private int numThreads = Runtime.getRuntime().availableProcessors();
+	private ExecutorService executor = null; // null for the pool shared by the instances, see ParallelTasks
+	private Engine engine = Engine.FLOODING;
+	private boolean computeAttributes = false;
 	
 	
 	public HWatershedLabeling(Img<T> input, float threshold, Connectivity connectivity)
+	{
+		this(input, threshold, connectivity, Quantization.NONE, 0);
+	}
+	
+	
+	/**
+	 * @param input image to flood, it is not modified
+	 * @param threshold pixels below threshold are not flooded
+	 * @param connectivity connectivity of the flooding
+	 * @param quantization how input values are converted to flooding levels, use LINEAR or EQUALIZED for real valued images
+	 * @param nLevels number of flooding levels, ignored if quantization is NONE
+	 */
+	public HWatershedLabeling(Img<T> input, float threshold, Connectivity connectivity, Quantization quantization, int nLevels)
+	{
+		this(input, threshold, connectivity, quantization, nLevels, null);
+	}
+	
+	
+	/**
+	 * @param input image to flood, it is not modified
+	 * @param threshold pixels below threshold are not flooded
+	 * @param connectivity connectivity of the flooding
+	 * @param quantization how input values are converted to flooding levels, use LINEAR or EQUALIZED for real valued images
+	 * @param nLevels number of flooding levels, ignored if quantization is NONE
+	 * @param labelMapFactory factory of the label map used during the flooding, for instance a disk cached cell image
+	 * factory for images that do not fit in memory. If null the factory of the input is used.
+	 * Besides the label map the FLOODING engine only keeps the queue of the flooding front, the seed pixels and the
+	 * arrays of the tree nodes in memory, see TreeBuilder. The input is not kept once the label map is filled.
+	 * The UNION_FIND engine keeps arrays over all the pixels in memory.
+	 */
+	public HWatershedLabeling(Img<T> input, float threshold, Connectivity connectivity, Quantization quantization, int nLevels, ImgFactory<IntType> labelMapFactory)
 	{
 		int nDims = input.numDimensions();
 		long[] dims = new long[nDims];
 		input.dimensions(dims);
-		ImgFactory<IntType> imgFactoryIntType=null;
-		try {
-			imgFactoryIntType = input.factory().imgFactory( new IntType() );
-		} catch (IncompatibleTypeException e) {
-			e.printStackTrace();
+		ImgFactory<IntType> imgFactoryIntType=labelMapFactory;
+		if( imgFactoryIntType == null )
+		{
+			try {
+				imgFactoryIntType = input.factory().imgFactory( new IntType() );
+			} catch (IncompatibleTypeException e) {
+				e.printStackTrace();
+			}
 		}
 		
 		if ( imgFactoryIntType != null )
 		{
 			this.labelMapMaxTree = imgFactoryIntType.create(dims, new IntType(0));
-			Cursor<IntType> c_label = labelMapMaxTree.cursor();
-			Cursor<T>       c_input = input.cursor();
-			while( c_input.hasNext() )
+			
+			// the label map and the input are visited in the same order, cell by cell if both have the same cell layout
+			IterableInterval<T> inputIt = input;
+			IterableInterval<IntType> labelIt = labelMapMaxTree;
+			if( !input.iterationOrder().equals( labelMapMaxTree.iterationOrder() ) )
+			{
+				inputIt = Views.flatIterable(input);
+				labelIt = Views.flatIterable(labelMapMaxTree);
+			}
+			
+			if( quantization == Quantization.NONE )
+			{
+				int vMin = Integer.MAX_VALUE;
+				int vMax = Integer.MIN_VALUE;
+				Cursor<IntType> c_label = labelIt.cursor();
+				Cursor<T>       c_input = inputIt.cursor();
+				while( c_input.hasNext() )
+				{
+					final int v = (int) c_input.next().getRealFloat();
+					c_label.next().set( v );
+					if( v < vMin )
+						vMin = v;
+					if( v > vMax )
+						vMax = v;
+				}
+				levelMin = vMin;
+				levelMax = vMax;
+			}
+			else
 			{
-				c_label.next().setInteger( (int) c_input.next().getRealFloat() );
+				quantizer = new IntensityQuantizer(input, quantization, nLevels);
+				quantizer.quantize(inputIt, labelIt);
+				levelMin = quantizer.getMinLevel();
+				levelMax = quantizer.getMaxLevel();
 			}
 		}
 		
@@ -187,6 +292,95 @@ public class HWatershedLabeling<T extends RealType<T>> {
 		createMaxTree2();
 		return labelMapMaxTree;
 	}
+	
+	/**
+	 * Set the number of threads used to build the tree, the tree and the label map do not depend on it.
+	 * The FLOODING engine floods in parallel the regions separated by the threshold, there is no gain if the threshold
+	 * is below the image minimum. The UNION_FIND engine also uses the threads within a single region: the pixels of a
+	 * level are ordered in parallel and the image is split in tiles that are reduced to their merge candidates in
+	 * parallel, the merges are then replayed in order on one thread.
+	 * @param numThreads number of threads, 1 for a sequential construction
+	 */
+	public void setNumThreads(int numThreads) {
+		if( numThreads < 1 )
+			throw new IllegalArgumentException("HWatershed: the number of threads must be at least 1");
+		this.numThreads = numThreads;
+	}
+	
+	public int getNumThreads() {
+		return numThreads;
+	}
+	
+	/**
+	 * Set the executor of the parallel tasks, for instance the one of the application. By default the tasks run on 
+	 * a pool of threads shared by the instances and kept between calls, see ParallelTasks.
+	 * @param executor executor of the tasks, null for the shared pool
+	 */
+	public void setExecutorService(ExecutorService executor) {
+		this.executor = executor;
+	}
+	
+	public ExecutorService getExecutorService() {
+		return executor;
+	}
+	
+	/**
+	 * Set the algorithm building the tree, FLOODING by default
+	 */
+	public void setEngine(Engine engine) {
+		this.engine = engine;
+	}
+	
+	public Engine getEngine() {
+		return engine;
+	}
+	
+	/**
+	 * If set, the following region attributes are measured while the tree is built and added to the tree features:
+	 * "area" the number of pixels, "bboxMin"+d and "bboxMax"+d the bounding box in dimension d, "sumIntensity", 
+	 * "sumSqIntensity" and "meanIntensity". The region of a node is made of the pixels flooded by the leaves below it
+	 * and the intensity of a pixel is the value of its flooding level.
+	 * "volume" is the integral of intensity above the saddle where the node merged, over the pixels flooded in its tree
+	 * before that saddle was reached. As for the dynamics, the volume of an internal node is the highest volume of its
+	 * children and the volume of a root is measured above the threshold. Attributes are not measured by default.
+	 */
+	public void setComputeAttributes(boolean computeAttributes) {
+		this.computeAttributes = computeAttributes;
+	}
+	
+	public boolean getComputeAttributes() {
+		return computeAttributes;
+	}
+	
+	/**
+	 * Write the tree, its features and the label map to a file that SegmentTreeFile.read can reopen without construction
+	 * @param inputDigest digest identifying the input image, see SegmentTreeFile.getContentDigest
+	 */
+	public void save(File file, byte[] inputDigest) throws IOException {
+		createMaxTree2();
+		if( maxTree == null )
+			throw new IOException("HWatershed: no tree to save, the construction was cancelled");
+		if( quantizer == null )
+			SegmentTreeFile.write(file, maxTree, labelMapMaxTree, threshold, connectivity, inputDigest);
+		else
+			SegmentTreeFile.write(file, maxTree, labelMapMaxTree, threshold, connectivity, quantizer.getQuantization(), quantizer.getNumberOfLevels(), inputDigest);
+	}
+	
+	/**
+	 * @return the quantizer used to build the flooding levels, null if quantization is NONE
+	 */
+	public IntensityQuantizer getQuantizer() {
+		return quantizer;
+	}
+	
+	
+	// intensity of a flooding level
+	private double getLevelValue(int level)
+	{
+		if( quantizer == null )
+			return level;
+		return quantizer.getValue(level);
+	}
 
 
 	@Deprecated
@@ -487,321 +681,188 @@ public class HWatershedLabeling<T extends RealType<T>> {
 		ProgressDialog.setStatusText("HWatershed: Initialisation");
 		ProgressDialog.setProgress( 0 );
 		
-		IntType Tmin = labelMapMaxTree.randomAccess().get().createVariable();
-		IntType Tmax = Tmin.createVariable();		
-		ComputeMinMax.computeMinMax(labelMapMaxTree, Tmin, Tmax);
-		float min = Math.max(threshold, Tmin.getRealFloat());
-		float max = Tmax.getRealFloat();
-		
-		// get local maxima (8/26 connected by default)
-		LocalMaximaLabeling maxLabeler = new LocalMaximaLabeling();
-		Img<IntType> seed = maxLabeler.LocalMaxima(labelMapMaxTree,min);	
-		IntType TnSeeds = new IntType(0);
-		IntType Tdummy = new IntType(0);
-		ComputeMinMax.computeMinMax(seed, Tdummy, TnSeeds);
-		int nLeaves = (int) TnSeeds.getRealFloat();
-		
-		
-		// create a priority queue
-		HierarchicalFIFO Q = new HierarchicalFIFO( (int)min, (int)max);
-		
-		int ndim = labelMapMaxTree.numDimensions();
-		long[] dimensions = new long[ndim]; labelMapMaxTree.dimensions(dimensions);
-		
-		// create a flat iterable cursor
-		long[] minInt = new long[ ndim ], maxInt = new long[ ndim ];
-		for ( int d = 0; d < ndim; ++d ){   minInt[ d ] = 0 ;    maxInt[ d ] = dimensions[d] - 1 ;  }
-		FinalInterval interval = new FinalInterval( minInt, maxInt );
-		final Cursor< IntType > input_cursor = Views.flatIterable( Views.interval( labelMapMaxTree, interval)).cursor();
-		final Cursor< IntType > seed_cursor = Views.flatIterable( Views.interval( seed, interval)).cursor();
-		
-		// initialize tree and node features arrays
-		double[] hCriteria = new double[2*nLeaves];
-		double[] Imax = new double[2*nLeaves];
-		int[] parent = new int[2*nLeaves];
-		int[][] children = new int[2*nLeaves][];
-		for(int i=0; i<hCriteria.length; i++)
-		{
-			children[i] = new int[] {-1,-1};
-			parent[i]=i;
-			hCriteria[i]=0;
-			Imax[i]=0;
+		// min is the lowest flooded level, min-1 marks pixels that are out of bound or below threshold
+		// (the level range was measured when the label map was filled)
+		final int min;
+		final float minValue;
+		if( quantizer == null ){
+			minValue = Math.max(threshold, levelMin);
+			min = (int) Math.ceil(minValue);
 		}
-		
-		// fill the queue
-		int idx=-1;
-		int pixToProcessCount = 0;
-		while( input_cursor.hasNext() )
-		{
-			++idx;
-			IntType pInput = input_cursor.next();
-			float pVal = pInput.getRealFloat();
-			float valSeed = seed_cursor.next().getRealFloat(); 
-			if ( pVal>=min)
-			{
-				pixToProcessCount++;
-				if ( valSeed>0)
-				{
-					Q.add( idx, (int)pVal );
-					pInput.setReal(min-1-valSeed);
-					Imax[(int)valSeed]= pVal;
-				}
-			}
-			else
-			{
-				pInput.setReal(min-1);
-			}
+		else{
+			// the level holding the threshold is flooded entirely, its value can be below the threshold
+			min = Math.max(quantizer.getThresholdLevel(threshold), levelMin);
+			minValue = min <= levelMax ? (float) getLevelValue(min) : threshold;
 		}
-		
-		
-		// extend input and seeds to to deal with out of bound
-		IntType outOfBoundT = labelMapMaxTree.firstElement().createVariable(); 
-		outOfBoundT.setReal(min-1);
-		RandomAccess< IntType > input_XRA = Views.extendValue(labelMapMaxTree, outOfBoundT ).randomAccess();
-		RandomAccess< IntType > input_XRA2 = input_XRA.copyRandomAccess();
-		
-		// define the connectivity
-		long[][] neigh = ImageConnectivity.getConnectivityPos(ndim, connectivity.getConn() );
-		int[] n_offset = ImageConnectivity.getIdxOffsetToCenterPix(neigh, dimensions);
-		long[][] dPosList = ImageConnectivity.getSuccessiveMove(neigh);
-		int nNeigh = n_offset.length;
-		
-		
-		boolean[] isDequeued = new boolean[(int)labelMapMaxTree.size()];
-		for (int i=0; i<isDequeued.length; i++)
-			isDequeued[i]=false;
+		final int max = levelMax;
 		
 		/////////////////////////////////////////////////////////////////////////////////////
 		// building the watershed and the tree //////////////////////////////////////////////
-		ProgressDialog.setStatusText("HWatershed: building label map and segment tree");
-		
-		int newNode = nLeaves;
-		int pixProcessed = 0;
-		int prevPercentDone = 0;
-		while( Q.HasNext() )
-		{ 	
-			
-			pixProcessed++;
-			final int percentDone = (pixProcessed*100)/pixToProcessCount;
-			if( percentDone != prevPercentDone ){
-				prevPercentDone = percentDone;
-				ProgressDialog.setProgress( percentDone*0.01f );
-				if (ProgressDialog.wasCancelled())
-				{
-					labelMapMaxTree=null;
-					maxTree = null;
-					ProgressDialog.reset();
-					ProgressDialog.finish();
-					wasCancelled=true;
-					return;
-				}
-			}
-			
-			
-			final int pIdx = (int) Q.Next(); 
-			final int pVal = Q.getCurrent_level() + Q.getMin();
-			
-			final long[] posCurrent = new long[ndim];
-			getPosFromIdx((long)pIdx, posCurrent, dimensions);
-			input_XRA.setPosition(posCurrent);
-			IntType p = input_XRA.get();
-			int pLeaf = (int)(min - 1 - p.getRealFloat());
-			int pNode = findRoot(pLeaf, parent);
-			//System.out.println("pLeaf "+ pLeaf +" , pNode "+ pNode );
-			isDequeued[pIdx]=true;
-			
-			// loop on neighbors			
-			input_XRA2.setPosition(posCurrent);
-			for( int i=0; i<nNeigh; i++)
-			{
-				final int nIdx = pIdx + n_offset[i];
-				
-				input_XRA2.move(dPosList[i]);
-				final IntType n = input_XRA2.get();
-				final float nVal = n.getRealFloat();
-				
-				if ( nVal != (min-1) ) // if n is in-bound
-				{
-					if( isDequeued[nIdx] ) // p is the lowest point 
-					{	
-						int nLeaf = (int)(min - 1 - nVal);
-						int nNode = findRoot(nLeaf, parent);
-						
-						if( nNode != pNode ) // 2 distincts nodes are meeting and p is the saddle : merge Nodes
-						{
-							
-							newNode++;
-							double Hn = Imax[nNode]-pVal;
-							hCriteria[nNode] = Hn;
-							double Hp = Imax[pNode]-pVal;
-							hCriteria[pNode] = Hp;
-
-							//System.out.println("nLeaf "+ nLeaf +" , nNode "+ nNode +" , Hn "+ Hn );
-							//System.out.println("pLeaf "+ pLeaf +" , pNode "+ pNode +" , Hp "+ Hp );
-
-							//merge the node with smallest H with first neighbor node that has higher dynamics
-							int node1, node2;
-							double H1, H2;
-							if (Hp == Hn){
-								node1 = pNode;
-								node2 = nNode;
-							}
-							else if ( Hp < Hn ){
-								node1 = pNode;
-								node2 = nLeaf;
-								H1 = Hp;
-								H2 = hCriteria[node2];
-								while( H2 <= H1 )
-								{	
-									node2 = parent[node2];
-									H2 = hCriteria[node2];
-								}
-								
-								double HMerge;
-								if( parent[node2]==node2 )
-									HMerge = Double.POSITIVE_INFINITY;
-								else
-									HMerge = Math.min( hCriteria[children[parent[node2]][0]], hCriteria[children[parent[node2]][1]] );
-								
-								while( H1 > HMerge )
-								{
-									node2 = parent[node2];
-									H2 = hCriteria[node2];
-									if( parent[node2]==node2 )
-										HMerge = Double.POSITIVE_INFINITY;
-									else
-										HMerge = Math.min( hCriteria[children[parent[node2]][0]], hCriteria[children[parent[node2]][1]] );
-								}
-							}
-							else{ // if( Hn <= Hp )
-								node1 = nNode;
-								node2 = pLeaf;
-								H1 = Hn;
-								
-								H2 = hCriteria[node2];
-								while( H2 <= H1 )
-								{	
-									node2 = parent[node2];
-									H2 = hCriteria[node2];
-								}
-								double HMerge;
-								if( parent[node2]==node2 )
-									HMerge = Double.POSITIVE_INFINITY;
-								else
-									HMerge = Math.min( hCriteria[children[parent[node2]][0]], hCriteria[children[parent[node2]][1]] );
-								
-								while( H1 > HMerge )
-								{
-									node2 = parent[node2];
-									H2 = hCriteria[node2];
-									if( parent[node2]==node2 )
-										HMerge = Double.POSITIVE_INFINITY;
-									else
-										HMerge = Math.min( hCriteria[children[parent[node2]][0]], hCriteria[children[parent[node2]][1]] );
-								}
-							}
-							mergeNodes(node1, node2, newNode, parent, children);
-							pNode=findRoot(newNode, parent);
-							//System.out.println("node1 "+ node1 +" , node2 "+ node2 +" , newNode "+ newNode +" , maxNode "+ (2*nLeaves) );
-
-							Imax[newNode]= Math.max(Imax[node1], Imax[node2]);
-							hCriteria[newNode] =  Math.max(hCriteria[node1], hCriteria[node2]); //Imax[newNode]-pVal;
-							//
-						}
-					}
-					
-					if ( nVal>=min ) // is not queued yet and is in bound?
-					{
-						Q.add( nIdx, (int)nVal );
-						n.setReal(min -1 - pLeaf);
-					}
-				}
-				
-				
-			} // end loop on neighbor
-			
-		} // end while
-		
-		// for root nodes adjust there height to Imax(rootLabel)-min. 
-		for(int i=0 ; i<parent.length; i++)
+		TreeBuilder builder = new TreeBuilder(labelMapMaxTree, min, max, levelMin, minValue, quantizer, connectivity, computeAttributes, numThreads, executor);
+		TreeEngine treeEngine = engine == Engine.UNION_FIND && UnionFindEngine.supports(builder) ? new UnionFindEngine() : new FloodingEngine();
+		if( !treeEngine.build(builder) )
 		{
-			if( hCriteria[i]>0 & parent[i]==i)
-			{
-				hCriteria[i] = Imax[i]-min;
-			}
+			labelMapMaxTree=null;
+			maxTree = null;
+			ProgressDialog.reset();
+			ProgressDialog.finish();
+			wasCancelled=true;
+			return;
 		}
 		
 		//////////////////////////////////////////////////////////////////////////////////
 		// final pass on the label image /////////////////////////////////////////////////
-		ProgressDialog.setStatusText("HWatershed: final pass");
-		
-		
-		// convert the input to label image (label L is stored in input with value min-1-L all other value should be equal to min-1 )
-		final IntType minT = labelMapMaxTree.firstElement().createVariable();
-        minT.setReal(min-1);
-        final IntType minusOneT = labelMapMaxTree.firstElement().createVariable();
-        minusOneT.setReal(-1);
-        Cursor<IntType> input_cursor2 = labelMapMaxTree.cursor();
-        while( input_cursor2.hasNext() )
-		{
-        	IntType p = input_cursor2.next();
-        	if (p.getRealFloat()>=(min-1) )
-        	{
-        		p.setReal(0);
-        	}
-        	else
-        	{
-        		p.sub(minT);
-            	p.mul(minusOneT);
-        	}
-		}
-		
-        maxTree = new Tree(parent, children);
-        maxTree.setFeature("dynamics", hCriteria );
-        maxTree.setFeature("Imax", Imax );
-        
-        
+		maxTree = builder.createTree();
         
         maxTreeIsBuilt=true;
         
         ProgressDialog.finish();
         wasCancelled=false;
         return;
-        // at the end, input was tranformed to a label image
-        // hCriteria contains the dynamics of each peak
-        // parent link nodes to their parent node, if label L has no parent, parent[L]=0 
-        // these can be used to build any hMap on the fly.
+        // at the end, the label map was tranformed to a label image
+        // the tree dynamics contain the dynamics of each peak
+        // parent link nodes to their parent node, these can be used to build any hMap on the fly.
 	}
 	
 	
-	protected static void mergeNodes(int node1, int node2, int newNode, int[] parent, int[][] children)
+	
+	/**
+	 * Starting from leaf, find the first node with a dynamics higher than H1 and whose merging
+	 * dynamics is also higher than H1 
+	 */
+	protected static int findMergeNode(int leaf, double H1, int[] parent, int[] child0, int[] child1, double[] hCriteria)
+	{
+		int node2 = leaf;
+		double H2 = hCriteria[node2];
+		while( H2 <= H1 )
+		{	
+			node2 = parent[node2];
+			H2 = hCriteria[node2];
+		}
+		
+		double HMerge;
+		if( parent[node2]==node2 )
+			HMerge = Double.POSITIVE_INFINITY;
+		else
+			HMerge = Math.min( hCriteria[child0[parent[node2]]], hCriteria[child1[parent[node2]]] );
+		
+		while( H1 > HMerge )
+		{
+			node2 = parent[node2];
+			if( parent[node2]==node2 )
+				HMerge = Double.POSITIVE_INFINITY;
+			else
+				HMerge = Math.min( hCriteria[child0[parent[node2]]], hCriteria[child1[parent[node2]]] );
+		}
+		return node2;
+	}
+	
+	
+	
+	/**
+	 * Flag the pixels for which at least one neighbor is out of the image 
+	 * @return a bit mask indexed by flat pixel index
+	 */
+	protected static long[] getBorderMask(long[] dimensions, long[][] neigh)
+	{
+		final int ndim = dimensions.length;
+		long[] extent = new long[ndim];
+		for( long[] n : neigh )
+			for(int d=0; d<ndim; d++)
+				extent[d] = Math.max(extent[d], Math.abs(n[d]));
+		
+		long size = 1;
+		for(int d=0; d<ndim; d++)
+			size *= dimensions[d];
+		long[] mask = new long[(int)((size+63)>>>6)];
+		
+		// visit the image line by line along the first dimension
+		final long lineLength = dimensions[0];
+		final long[] pos = new long[ndim];
+		for(long lineStart=0; lineStart<size; lineStart+=lineLength)
+		{
+			getPosFromIdx(lineStart, pos, dimensions);
+			boolean lineIsBorder = false;
+			for(int d=1; d<ndim; d++)
+				if( pos[d]<extent[d] || pos[d]>=dimensions[d]-extent[d] )
+					lineIsBorder = true;
+			
+			for(long x=0; x<lineLength; x++)
+				if( lineIsBorder || x<extent[0] || x>=lineLength-extent[0] )
+				{
+					long idx = lineStart + x;
+					mask[(int)(idx>>>6)] |= 1L<<idx;
+				}
+		}
+		return mask;
+	}
+	
+	
+	
+	/**
+	 * @return the flat index offset of each neighbor move
+	 */
+	protected static long[] getFlatOffsets(long[][] neigh, long[] dimensions)
+	{
+		long[] offsets = new long[neigh.length];
+		for(int i=0; i<neigh.length; i++)
+		{
+			long stride = 1;
+			for(int d=0; d<dimensions.length; d++)
+			{
+				offsets[i] += neigh[i][d]*stride;
+				stride *= dimensions[d];
+			}
+		}
+		return offsets;
+	}
+	
+	
+	
+	protected static boolean isInBound(long[] pos, long[] move, long[] dimensions)
+	{
+		for(int d=0; d<dimensions.length; d++)
+		{
+			long x = pos[d]+move[d];
+			if( x<0 || x>=dimensions[d] )
+				return false;
+		}
+		return true;
+	}
+	
+	
+	protected static void mergeNodes(int node1, int node2, int newNode, int[] parent, int[] child0, int[] child1)
 	{
 		
 		// update children of parent(node1) if needed
 		int par1 = parent[node1];
 		if( par1 != node1){ // node1 is not a root
-			for(int i=0; i<2; i++){
-				if ( children[par1][i] == node1  ){
-					children[par1][i] = newNode;
-					parent[newNode] = par1;
-				}
+			if ( child0[par1] == node1  ){
+				child0[par1] = newNode;
+				parent[newNode] = par1;
+			}
+			if ( child1[par1] == node1  ){
+				child1[par1] = newNode;
+				parent[newNode] = par1;
 			}
 		}
 							
 		// update children of parent(node2) if needed
 		int par2 = parent[node2];
 		if( par2 != node2){ // node2 is not a root
-			for(int i=0; i<2; i++){
-				if ( children[par2][i] == node2  ){	
-					children[par2][i] = newNode;
-					parent[newNode] = par2;
-				}
+			if ( child0[par2] == node2  ){	
+				child0[par2] = newNode;
+				parent[newNode] = par2;
+			}
+			if ( child1[par2] == node2  ){	
+				child1[par2] = newNode;
+				parent[newNode] = par2;
 			}
 		}
 		parent[node1] = newNode;
 		parent[node2] = newNode;
-		children[newNode][0] = node1;
-		children[newNode][1] = node2;
+		child0[newNode] = node1;
+		child1[newNode] = node2;
 		
 		return;
 	}
@@ -857,7 +918,7 @@ public class HWatershedLabeling<T extends RealType<T>> {
 		
 		int[] parents = maxTreeConstructor.getTree().getParentsAsArray();
 		Map<Integer,Node> treeNodes = maxTreeConstructor.getTree().getNodes();
-		double[] dynamics =  maxTreeConstructor.getTree().getFeature("dynamics");
+		double[] dynamics =  maxTreeConstructor.getTree().getFeatureCopy("dynamics");
 		for( Node node : treeNodes.values())
 		{
 			int id = node.getId();
@@ -874,7 +935,7 @@ public class HWatershedLabeling<T extends RealType<T>> {
 		
 		//System.out.println("Parents: " + Arrays.toString(parents));
 		
-		double[] attributes = maxTreeConstructor.getTree().getFeature("dynamics");
+		double[] attributes = maxTreeConstructor.getTree().getFeatureCopy("dynamics");
 		System.out.println("Attributes: " + Arrays.toString(attributes));
 		
 		
@@ -44,6 +44,7 @@ import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
 
 import de.mpicbg.scf.InteractiveWatershed.HWatershedLabeling.Connectivity;
+import de.mpicbg.scf.InteractiveWatershed.HWatershedLabeling.Quantization;
 
 
 @Plugin(type = Op.class, name="H-Watershed", menuPath = "SCF>Labeling>H-Watershed", headless = true, label="H-Watershed", visible=true)
@@ -67,6 +68,16 @@ public class HWatershed_Plugin extends AbstractOp  {
 	@Parameter( label="peak flooding (in %)")
 	private Float peakFlooding;
 	
+	// Linear or Equalized flood real valued images on nLevels levels instead of truncating the intensities to integers
+	@Parameter( label="Quantization", choices = { "None", "Linear", "Equalized" }, required = false)
+	private String quantization = "None";
+	
+	@Parameter( label="Number of levels", min="2", required = false)
+	private Integer nLevels = 256;
+	
+	@Parameter
+	private SegmentTreeService segmentTreeService;
+	
 	
 	@Override
 	public void run() {
@@ -81,12 +92,15 @@ public class HWatershed_Plugin extends AbstractOp  {
 			IJ.error("The Interactive Watershed plugin handles only graylevel 2D/3D images \n Current image has more dimensions." );
 		}
 		
-		// build the segment tree
-		HWatershedLabeling<FloatType> segmentTreeConstructor = new HWatershedLabeling<FloatType>(imgIN, thresh, Connectivity.FACE);
-		Tree hSegmentTree = segmentTreeConstructor.getTree();
+		// get the segment tree built with the threshold, from the cache if it was already built for the same image and parameters
+		CachedSegmentTree segmentTree = segmentTreeService.getSegmentTree(imgIN, thresh, Connectivity.FACE, Quantization.valueOf(quantization.toUpperCase()), nLevels);
+		if( segmentTree == null ){
+			return;
+		}
+		Tree hSegmentTree = segmentTree.getTree();
 		
 		// segment tree to label map  
-		Img<IntType> hSegmentMap = segmentTreeConstructor.getLabelMapMaxTree();
+		Img<IntType> hSegmentMap = segmentTree.getLabelMap();
 		SegmentHierarchyToLabelMap<FloatType> segmentTreeLabeler = new SegmentHierarchyToLabelMap<FloatType>( hSegmentTree, hSegmentMap, imgIN );
 		
 		boolean makeNewLabels = true;
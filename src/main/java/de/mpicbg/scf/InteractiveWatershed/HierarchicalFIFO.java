@@ -26,11 +26,25 @@ ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSI
 */
 
 
-import java.util.ArrayList;
-import java.util.LinkedList;
-
+import java.util.Arrays;
+
+
+/**
+ * Priority queue with one FIFO per grey level, the highest level being served first.
+ * 
+ * Indices are stored in int chunks (long chunks for images of more than Integer.MAX_VALUE
+ * pixels) taken from a shared pool, each level being a linked list of chunks. Levels only
+ * get a chunk when something is queued at that level. The first chunk of a level is small
+ * and the following ones grow up to MAX_CHUNK_SIZE, so a wide level range with few indices
+ * per level stays cheap. Emptied chunks go back to the pool, so adding an element never
+ * allocates an object once the pool has grown to the size of the flooding front.
+ */
 public class HierarchicalFIFO {
 	
+	private static final int MIN_CHUNK_SIZE = 16;
+	private static final int MAX_CHUNK_SIZE = 1024;
+	private static final int N_SIZE_CLASSES = Integer.numberOfTrailingZeros(MAX_CHUNK_SIZE / MIN_CHUNK_SIZE) + 1;
+	
 	private int current_level;
 	public int getCurrent_level() {
 		return current_level;
@@ -44,15 +58,54 @@ public class HierarchicalFIFO {
 	private final int min;
 	//private final int max;
 	private int max_level;
-	private ArrayList<LinkedList<Integer>> QueueList; 
+	
+	// per level: first and last chunk of the level list, -1 if the level is empty 
+	private final int[] headChunk;
+	private final int[] tailChunk;
+	
+	// chunk pool, nextChunk links the chunks of a level list and the free chunks of a size class together
+	private final boolean longIndices;
+	private int[][] chunks;
+	private long[][] longChunks;
+	private int[] nextChunk;
+	private int[] readPos;
+	private int[] writePos;
+	private byte[] sizeClass;
+	private int nChunks = 0;
+	private long poolSize = 0;
+	private final int[] freeChunk = new int[N_SIZE_CLASSES];
 	
 	
 	public HierarchicalFIFO(int min, int max)
+	{
+		this(min, max, false);
+	}
+	
+	
+	/**
+	 * @param min lowest level
+	 * @param max highest level
+	 * @param longIndices if true indices are stored as long, necessary if indices can exceed Integer.MAX_VALUE 
+	 */
+	public HierarchicalFIFO(int min, int max, boolean longIndices)
 	{
 		int nbin = max - min + 1;
-		QueueList = new ArrayList<LinkedList<Integer>>(nbin);
-		for(int i=0; i<nbin; i++)
-			QueueList.add( new LinkedList<Integer>() );
+		headChunk = new int[nbin];
+		tailChunk = new int[nbin];
+		Arrays.fill(headChunk, -1);
+		Arrays.fill(tailChunk, -1);
+		
+		this.longIndices = longIndices;
+		if( longIndices )
+			longChunks = new long[16][];
+		else
+			chunks = new int[16][];
+		nextChunk = new int[16];
+		readPos = new int[16];
+		writePos = new int[16];
+		sizeClass = new byte[16];
+		Arrays.fill(freeChunk, -1);
+		
 		this.min = min;
 		//this.max = max;
 		this.max_level = nbin-1;
@@ -63,22 +116,109 @@ public class HierarchicalFIFO {
 	public void add(long idx, int val)
 	{
 		int level = val - min ;
-		QueueList.get(level).add( (int) idx  );
+		int chunk = tailChunk[level];
+		if( chunk < 0 ){
+			chunk = newChunk(0);
+			headChunk[level] = chunk;
+			tailChunk[level] = chunk;
+		}
+		else if( writePos[chunk] == chunkSize(chunk) ){
+			int chunk2 = newChunk( Math.min(sizeClass[chunk]+1, N_SIZE_CLASSES-1) );
+			nextChunk[chunk] = chunk2;
+			tailChunk[level] = chunk2;
+			chunk = chunk2;
+		}
+		if( longIndices )
+			longChunks[chunk][writePos[chunk]++] = idx;
+		else
+			chunks[chunk][writePos[chunk]++] = (int) idx;
 		current_level = Math.max(current_level,level); // would crash if level>max_level
 	}
 	
 	public boolean HasNext()
 	{
-		while( QueueList.get(current_level).isEmpty() & current_level>0)
+		while( headChunk[current_level]<0 & current_level>0)
 			current_level--;
 		
-		return !QueueList.get(current_level).isEmpty();
+		return headChunk[current_level]>=0;
 	}
 	
 	public long Next()
 	{	
-		return QueueList.get(current_level).poll();	
+		final int level = current_level;
+		final int chunk = headChunk[level];
+		final int pos = readPos[chunk];
+		final long idx = longIndices ? longChunks[chunk][pos] : chunks[chunk][pos];
+		
+		if( chunk == tailChunk[level] && pos+1 == writePos[chunk] ){ // level is now empty
+			releaseChunk(chunk);
+			headChunk[level] = -1;
+			tailChunk[level] = -1;
+		}
+		else if( pos+1 == chunkSize(chunk) ){ // move to the next chunk of the level
+			headChunk[level] = nextChunk[chunk];
+			releaseChunk(chunk);
+		}
+		else{
+			readPos[chunk] = pos+1;
+		}
+		return idx;
+	}
+	
+	
+	/**
+	 * @return the number of index slots allocated by the chunk pool
+	 */
+	long getPoolSize()
+	{
+		return poolSize;
+	}
+	
+	
+	private int chunkSize(int chunk)
+	{
+		return MIN_CHUNK_SIZE << sizeClass[chunk];
+	}
+	
+	
+	private int newChunk(int size)
+	{
+		int chunk;
+		if( freeChunk[size] >= 0 ){
+			chunk = freeChunk[size];
+			freeChunk[size] = nextChunk[chunk];
+		}
+		else{
+			if( nChunks == nextChunk.length ){
+				if( longIndices )
+					longChunks = Arrays.copyOf(longChunks, 2*nChunks);
+				else
+					chunks = Arrays.copyOf(chunks, 2*nChunks);
+				nextChunk = Arrays.copyOf(nextChunk, 2*nChunks);
+				readPos = Arrays.copyOf(readPos, 2*nChunks);
+				writePos = Arrays.copyOf(writePos, 2*nChunks);
+				sizeClass = Arrays.copyOf(sizeClass, 2*nChunks);
+			}
+			chunk = nChunks++;
+			sizeClass[chunk] = (byte) size;
+			if( longIndices )
+				longChunks[chunk] = new long[chunkSize(chunk)];
+			else
+				chunks[chunk] = new int[chunkSize(chunk)];
+			poolSize += chunkSize(chunk);
+		}
+		nextChunk[chunk] = -1;
+		readPos[chunk] = 0;
+		writePos[chunk] = 0;
+		return chunk;
+	}
+	
+	
+	private void releaseChunk(int chunk)
+	{
+		nextChunk[chunk] = freeChunk[sizeClass[chunk]];
+		freeChunk[sizeClass[chunk]] = chunk;
 	}
 
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,261 @@
+package de.mpicbg.scf.InteractiveWatershed;
+
+
+/*
+Author: Benoit Lombardot, Scientific Computing Facility, MPI-CBG, Dresden  
+
+Copyright 2017 Max Planck Institute of Molecular Cell Biology and Genetics, Dresden, Germany
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following 
+conditions are met:
+
+1 - Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+
+2 - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer 
+in the documentation and/or other materials provided with the distribution.
+
+3 - Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived 
+from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+
+
+import net.imglib2.Cursor;
+import net.imglib2.IterableInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.IntType;
+
+import de.mpicbg.scf.InteractiveWatershed.HWatershedLabeling.Quantization;
+
+
+/**
+ * Map real intensities to a bounded number of integer levels for the flooding.
+ * 
+ * Levels are ordered as the intensities, each level is represented by the smallest
+ * intensity it contains so that, as with the integer truncation of the default mode,
+ * a pixel value is never below the value of its level. The quantization error is 
+ * measured while the levels are written.
+ */
+public class IntensityQuantizer {
+
+	private static final int N_HISTOGRAM_BINS_MIN = 65536; 
+	
+	private final Quantization quantization;
+	private final int nLevels;
+	
+	private float vMin;
+	private float vMax;
+	private double scale;
+	private int[] binToLevel; // histogram bin to level mapping, only used for equalized quantization  
+	
+	private float[] levelValue;
+	private int minLevel; // lowest and highest non empty levels
+	private int maxLevel;
+	
+	private long nPixels = 0;
+	private double maxError = 0;
+	private double sumError = 0;
+	private double sumSqError = 0;
+	
+	
+	/**
+	 * @param input image to quantize
+	 * @param quantization LINEAR for equally spaced levels, EQUALIZED for levels with equal pixel counts
+	 * @param nLevels number of level available for the flooding 
+	 */
+	public <T extends RealType<T>> IntensityQuantizer(IterableInterval<T> input, Quantization quantization, int nLevels)
+	{
+		if( nLevels < 1 )
+			throw new IllegalArgumentException("the number of quantization levels should be positive: "+ nLevels);
+		
+		this.quantization = quantization;
+		this.nLevels = nLevels;
+		
+		vMin = Float.POSITIVE_INFINITY;
+		vMax = Float.NEGATIVE_INFINITY;
+		for( T pixel : input )
+		{
+			float val = pixel.getRealFloat();
+			if( val < vMin )
+				vMin = val;
+			if( val > vMax )
+				vMax = val;
+		}
+		
+		if( quantization == Quantization.EQUALIZED )
+		{
+			int nBins = Math.max(N_HISTOGRAM_BINS_MIN, 16*nLevels);
+			scale = vMax > vMin ? nBins/((double)vMax-vMin) : 0;
+			long[] histogram = new long[nBins];
+			for( T pixel : input )
+				histogram[ getBin( pixel.getRealFloat(), nBins ) ]++;
+			
+			binToLevel = new int[nBins];
+			long nBelow = 0;
+			long nTotal = input.size();
+			for(int b=0; b<nBins; b++)
+			{
+				binToLevel[b] = (int) ( ((double)nBelow * nLevels) / nTotal );
+				nBelow += histogram[b];
+			}
+		}
+		else
+		{
+			scale = vMax > vMin ? nLevels/((double)vMax-vMin) : 0;
+		}
+	}
+	
+	
+	
+	/**
+	 * Write the level of each input pixel to output and measure the quantization error. 
+	 * Input and output are expected to have the same iteration order.
+	 */
+	public <T extends RealType<T>> void quantize(IterableInterval<T> input, IterableInterval<IntType> output)
+	{
+		double[] levelMin = new double[nLevels];
+		double[] levelMax = new double[nLevels];
+		double[] levelSum = new double[nLevels];
+		double[] levelSumSq = new double[nLevels];
+		long[] levelCount = new long[nLevels];
+		for(int l=0; l<nLevels; l++){
+			levelMin[l] = Double.POSITIVE_INFINITY;
+			levelMax[l] = Double.NEGATIVE_INFINITY;
+		}
+		
+		Cursor<T> c_input = input.cursor();
+		Cursor<IntType> c_output = output.cursor();
+		while( c_input.hasNext() )
+		{
+			final float val = c_input.next().getRealFloat();
+			final int level = getLevel(val);
+			c_output.next().setInteger( level );
+			
+			levelCount[level]++;
+			levelSum[level] += val;
+			levelSumSq[level] += (double)val*val;
+			if( val < levelMin[level] )
+				levelMin[level] = val;
+			if( val > levelMax[level] )
+				levelMax[level] = val;
+		}
+		
+		// level values are the smallest value of each level, empty levels take the value of the level below
+		levelValue = new float[nLevels];
+		nPixels = 0;
+		maxError = 0;
+		sumError = 0;
+		sumSqError = 0;
+		minLevel = nLevels;
+		maxLevel = -1;
+		for(int l=0; l<nLevels; l++)
+		{
+			if( levelCount[l]==0 ){
+				levelValue[l] = l>0 ? levelValue[l-1] : vMin;
+				continue;
+			}
+			minLevel = Math.min(minLevel, l);
+			maxLevel = l;
+			final double v0 = levelMin[l];
+			levelValue[l] = (float)v0;
+			nPixels += levelCount[l];
+			maxError = Math.max(maxError, levelMax[l]-v0);
+			sumError += levelSum[l] - levelCount[l]*v0;
+			sumSqError += levelSumSq[l] - 2*v0*levelSum[l] + levelCount[l]*v0*v0;
+		}
+	}
+	
+	
+	
+	/**
+	 * @return the level of a value, values out of the input range are mapped to the first or last level
+	 */
+	public int getLevel(float val)
+	{
+		if( quantization == Quantization.EQUALIZED )
+			return binToLevel[ getBin(val, binToLevel.length) ];
+		
+		return getBin(val, nLevels);
+	}
+	
+	
+	private int getBin(float val, int nBins)
+	{
+		int bin = (int) ( (val-vMin)*scale );
+		if( bin < 0 )
+			return 0;
+		if( bin >= nBins )
+			return nBins-1;
+		return bin;
+	}
+	
+	
+	/**
+	 * @return the lowest level holding pixels above or equal to threshold, nLevels if there is none.
+	 * When threshold falls inside a level that level is returned, so that no pixel above the threshold 
+	 * is left out of the flooding, its pixels below threshold are then flooded as well
+	 */
+	public int getThresholdLevel(float threshold)
+	{
+		if( threshold > vMax )
+			return nLevels;
+		return getLevel(threshold);
+	}
+	
+	
+	public float getValue(int level)
+	{
+		return levelValue[level];
+	}
+	
+	/**
+	 * @return the lowest level of the last quantized image
+	 */
+	public int getMinLevel() {
+		return minLevel;
+	}
+	
+	/**
+	 * @return the highest level of the last quantized image
+	 */
+	public int getMaxLevel() {
+		return maxLevel;
+	}
+	
+	public int getNumberOfLevels() {
+		return nLevels;
+	}
+	
+	public Quantization getQuantization() {
+		return quantization;
+	}
+	
+	/**
+	 * @return the largest difference between a pixel value and the value of its level
+	 */
+	public double getMaxError() {
+		return maxError;
+	}
+	
+	/**
+	 * @return the average difference between pixel values and the value of their level
+	 */
+	public double getMeanError() {
+		return nPixels>0 ? sumError/nPixels : 0;
+	}
+	
+	/**
+	 * @return the root mean square difference between pixel values and the value of their level
+	 */
+	public double getRMSError() {
+		return nPixels>0 ? Math.sqrt( Math.max(0, sumSqError/nPixels) ) : 0;
+	}
+	
+}
@@ -26,6 +26,7 @@ ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSI
 */
 
 
+import java.awt.Color;
 import java.awt.Component;
 import java.awt.Scrollbar;
 import java.awt.event.AdjustmentEvent;
@@ -49,6 +50,8 @@ import ij.gui.ImageCanvas;
 import ij.gui.ImageRoi;
 import ij.gui.ImageWindow;
 import ij.gui.Overlay;
+import ij.gui.Plot;
+import ij.gui.PlotWindow;
 import ij.gui.ScrollbarWithLabel;
 import ij.measure.Calibration;
 import ij.plugin.LutLoader;
@@ -83,6 +86,7 @@ import org.scijava.ItemIO;
 import org.scijava.ItemVisibility;
 
 import de.mpicbg.scf.InteractiveWatershed.HWatershedLabeling.Connectivity;
+import de.mpicbg.scf.InteractiveWatershed.SegmentHierarchyToLabelMap.FloodingRank;
 
 
 /**
@@ -122,13 +126,25 @@ public class Interactive_HWatershed extends InteractiveCommand implements Previe
 	@Parameter(label = "View image", style = ChoiceWidget.LIST_BOX_STYLE, persist = false) // persist is important otherwise it keep the value used previously independant what is set manually
 	private String imageToDisplayName;
 	
+	@Parameter(label = "Fast threshold updates", callback="fastUpdates_callback" ) // keeps the whole label map, 12 bytes per pixel
+	private boolean fastUpdates = false;
+	
 	@Parameter(label = "export", callback="exportButton_callback" )
 	private Button exportButton;
 	
+	@Parameter(label = "segment count", callback="segmentCountButton_callback" )
+	private Button segmentCountButton;
+	
+	@Parameter(label = "next plateau", callback="nextPlateauButton_callback" )
+	private Button nextPlateauButton;
+	
 	
 	//@Parameter
 	//private EventService eventService;
 	
+	@Parameter
+	private SegmentTreeService segmentTreeService;
+	
 	
 	int[] pos= new int[] { 1, 1, 1};
 	double[] spacing = new double[] { 1, 1, 1};
@@ -147,12 +163,18 @@ public class Interactive_HWatershed extends InteractiveCommand implements Previe
 	float minI, maxI; 				// min and max intensity of the input image
 	int nDims; 						// dimensionnality of the input image
 	SegmentHierarchyToLabelMap<FloatType> segmentTreeLabeler;
+	Img<IntType> fullSegmentation; // label map of the whole image for the current seed dynamics, null if it is not kept
+	
+	// with fastUpdates the whole label map and the leaf pixel index, 12 bytes per pixel, are kept for images up to that size
+	static final long FULL_SEGMENTATION_MAX_SIZE = 1L<<25;
 
 	ImagePlus impSegmentationDisplay; // the result window interactively updated
 	ImagePlus imp_curSeg; // container of the current labelMap slice
 	
 	ImageListener impListener;
 	
+	PlotWindow segmentCountWindow; // plot of the number of segments versus the seed dynamics
+	
 	
 	
 	
@@ -203,10 +225,10 @@ public class Interactive_HWatershed extends InteractiveCommand implements Previe
 		///////////////////////////////////////////////////////////////////////////
 		// create the HSegmentTree ////////////////////////////////////////////////
 		
-		float threshold = Float.NEGATIVE_INFINITY;
-		HWatershedLabeling<FloatType> segmentTreeConstructor = new HWatershedLabeling<FloatType>(input, threshold, Connectivity.FACE);
-		Tree hSegmentTree = segmentTreeConstructor.getTree();
-		Img<IntType> hSegmentMap = segmentTreeConstructor.getLabelMapMaxTree();
+		// a tree already built for the same image content is taken from the segment tree service
+		CachedSegmentTree segmentTree = segmentTreeService.getSegmentTree(input, Float.NEGATIVE_INFINITY, Connectivity.FACE);
+		Tree hSegmentTree = segmentTree==null ? null : segmentTree.getTree();
+		Img<IntType> hSegmentMap = segmentTree==null ? null : segmentTree.getLabelMap();
 		if ( hSegmentMap==null ){
 			initInterupted=true;
 			IJ.error("H-Watershed construction was manually interupted, please close the interactive watershed dialog.");
@@ -219,6 +241,8 @@ public class Interactive_HWatershed extends InteractiveCommand implements Previe
 			return;
 		}
 		segmentTreeLabeler = new SegmentHierarchyToLabelMap<FloatType>( hSegmentTree, hSegmentMap, input );
+		segmentTreeLabeler.setFloodingRank( FloodingRank.BITS_8 ); // peak flooding slider moves only compare the ranks
+		updateLeafPixelIndex();
 		
 		
 		
@@ -226,7 +250,7 @@ public class Interactive_HWatershed extends InteractiveCommand implements Previe
 		///////////////////////////////////////////////////////////////////////////
 		// Initialize the UI //////////////////////////////////////////////////////
 
-		double[] dynamics = hSegmentTree.getFeature("dynamics");
+		double[] dynamics = hSegmentTree.getFeatureCopy("dynamics");
 		maxI = (float) Arrays.stream(dynamics).max().getAsDouble();
 		minI = (float) Arrays.stream(dynamics).min().getAsDouble(); ;
 		
@@ -323,6 +347,13 @@ public class Interactive_HWatershed extends InteractiveCommand implements Previe
 	
 	
 	
+	// inverse of getHMin, slider position of a seed dynamics 
+	private float getHMinLog(double hMin){
+		return (float)Math.log(hMin-minI+1);
+	}
+	
+	
+	
 	private float getThresh(){
 		return (float)Math.exp(thresh_log)+minI-1;
 	}
@@ -443,13 +474,8 @@ public class Interactive_HWatershed extends InteractiveCommand implements Previe
 		// update labelMap slice to visualize
 		if( changed.get("thresh") || changed.get("pos") || changed.get("peakFlooding") || changed.get("displayOrient"))
 		{
-			Img<IntType> img_currentSegmentation = segmentTreeLabeler.getLabelMap(getThresh(), peakFlooding, displayOrient, pos[displayOrient]-1);
-			RandomAccessibleInterval<IntType> rai_currentSegmentation =  Views.dropSingletonDimensions(img_currentSegmentation);
-			
+			RandomAccessibleInterval<IntType> rai_currentSegmentation =  Views.dropSingletonDimensions( getCurrentSegmentation() );
 			
-			long[] dimTest = new long[img_currentSegmentation.numDimensions()];
-			img_currentSegmentation.dimensions(dimTest);
-			//System.out.println("img_currentSegmentation "+ArrayUtils.toString( dimTest ) );
 			//System.out.println("slicing direction "+ displayOrient);
 			//System.out.println("pos[slicingDir] "+ pos[displayOrient]);
 			
@@ -459,6 +485,7 @@ public class Interactive_HWatershed extends InteractiveCommand implements Previe
 		{
 			boolean makeNewLabels = true ; 
 			int nLabels = segmentTreeLabeler.updateTreeLabeling( getHMin() , makeNewLabels );
+			fullSegmentation = null; // the seed dynamics slider only computes the displayed slice
 			segDispRange[0] = 0;
 			segDispRange[1] = nLabels;
 			Img<IntType> img_currentSegmentation = segmentTreeLabeler.getLabelMap(getThresh(), peakFlooding, displayOrient, pos[displayOrient]-1);
@@ -839,6 +866,57 @@ public class Interactive_HWatershed extends InteractiveCommand implements Previe
 	
 	
 	
+	/**
+	 * @return the label map of the displayed slice. If the leaf pixel index is kept, the slice is taken from the whole 
+	 * label map updated in place, so that moving the threshold or the peak flooding only visits the pixels that change
+	 * and moving the slice does not compute anything
+	 */
+	private RandomAccessibleInterval<IntType> getCurrentSegmentation(){
+		
+		if( segmentTreeLabeler.getLeafPixelIndex() == null )
+			return segmentTreeLabeler.getLabelMap(getThresh(), peakFlooding, displayOrient, pos[displayOrient]-1);
+		
+		if( fullSegmentation == null || segmentTreeLabeler.updateLabelMap(getThresh(), peakFlooding) == null )
+			fullSegmentation = segmentTreeLabeler.getUpdatableLabelMap(getThresh(), peakFlooding);
+		if( nDims > 2 )
+			return Views.hyperSlice(fullSegmentation, displayOrient, pos[displayOrient]-1);
+		return fullSegmentation;
+	}
+	
+	
+	
+	protected void fastUpdates_callback(){
+		
+		if( initInterupted || !initDone ){
+			return;
+		}
+		
+		updateLeafPixelIndex();
+	}
+	
+	
+	
+	/**
+	 * Build the leaf pixel index if fastUpdates is set, so that threshold and peak flooding slider moves only visit the
+	 * pixels that change, remove it otherwise. The index is not built for images above FULL_SEGMENTATION_MAX_SIZE pixels
+	 */
+	private void updateLeafPixelIndex(){
+		
+		fullSegmentation = null;
+		if( fastUpdates && segmentTreeLabeler.intensity0.size() > FULL_SEGMENTATION_MAX_SIZE ){
+			IJ.showStatus("Fast threshold updates are not available for images above "+FULL_SEGMENTATION_MAX_SIZE+" pixels");
+			fastUpdates = false;
+			getInfo().getMutableInput("fastUpdates", Boolean.class).setValue(this, fastUpdates);
+		}
+		
+		if( !fastUpdates )
+			segmentTreeLabeler.setLeafPixelIndex(null);
+		else if( segmentTreeLabeler.getLeafPixelIndex() == null )
+			segmentTreeLabeler.setLeafPixelIndex( new LeafPixelIndex(segmentTreeLabeler.segmentMap0, segmentTreeLabeler.intensity0, segmentTreeLabeler.segmentTree0.getNumNodes()) );
+	}
+	
+	
+	
 	protected void exportButton_callback(){
 		
 		if( initInterupted ){
@@ -879,6 +957,80 @@ public class Interactive_HWatershed extends InteractiveCommand implements Previe
 	}
 	
 	
+	/**
+	 * Plot the number of segments as a function of the seed dynamics for the current intensity threshold,
+	 * in slider units. Flat steps are the seed dynamics ranges in which the segmentation does not change.
+	 */
+	protected void segmentCountButton_callback(){
+		
+		if( initInterupted || !initDone ){
+			return;
+		}
+		
+		LabelCountCurve curve = segmentTreeLabeler.getLabelCountCurve( getThresh() );
+		final float xMax = getHMinLog(maxI);
+		double[] x = new double[2*curve.getNumberOfSteps()];
+		double[] y = new double[2*curve.getNumberOfSteps()];
+		int n = 0;
+		for(int step=0; step<curve.getNumberOfSteps(); step++)
+		{
+			double start = Math.max(0, getHMinLog( Math.max(curve.getStepStart(step), minI) ));
+			double end = Math.min(xMax, getHMinLog( Math.min(curve.getStepEnd(step), maxI) ));
+			if( end < start || start > xMax )
+				continue;
+			x[n] = start;   y[n++] = curve.getStepCount(step);
+			x[n] = end;     y[n++] = curve.getStepCount(step);
+		}
+		
+		Plot plot = new Plot(imp0.getTitle()+" - segment count", "Seed dynamics (slider position)", "Number of segments");
+		plot.addPoints( Arrays.copyOf(x, n), Arrays.copyOf(y, n), Plot.LINE);
+		plot.setColor(Color.RED);
+		double count = curve.getNumberOfLabels( getHMin() );
+		plot.drawLine(hMin_log, 0, hMin_log, count);
+		
+		if( segmentCountWindow != null )
+			segmentCountWindow.close();
+		segmentCountWindow = plot.show();
+	}
+	
+	
+	
+	/**
+	 * Move the seed dynamics to the middle of the longest plateau of the segment count above the current seed dynamics.
+	 * Plateau lengths are measured in slider units.
+	 */
+	protected void nextPlateauButton_callback(){
+		
+		if( initInterupted || !initDone ){
+			return;
+		}
+		
+		LabelCountCurve curve = segmentTreeLabeler.getLabelCountCurve( getThresh() );
+		final float xMax = getHMinLog(maxI);
+		final double hMin = getHMin();
+		double bestLength = 0;
+		float bestPosition = hMin_log;
+		for(int step=curve.getStep(hMin)+1; step<curve.getNumberOfSteps(); step++)
+		{
+			if( curve.getStepStart(step) > maxI || curve.getStepCount(step) == 0 )
+				break;
+			double start = getHMinLog( curve.getStepStart(step) );
+			double end = Math.min(xMax, getHMinLog( Math.min(curve.getStepEnd(step), maxI) ));
+			if( end - start > bestLength ){
+				bestLength = end - start;
+				bestPosition = (float)(0.5*(start+end));
+			}
+		}
+		if( bestPosition == hMin_log )
+			return;
+		
+		hMin_log = bestPosition;
+		final MutableModuleItem<Float> hMinItem = getInfo().getMutableInput("hMin_log", Float.class);
+		hMinItem.setValue(this, hMin_log);
+		preview();
+	}
+	
+	
 	@Override
 	public void cancel(){
 		// this function in never called in interactive command
@@ -0,0 +1,121 @@
+package de.mpicbg.scf.InteractiveWatershed;
+
+
+/*
+Author: Benoit Lombardot, Scientific Computing Facility, MPI-CBG, Dresden  
+
+Copyright 2017 Max Planck Institute of Molecular Cell Biology and Genetics, Dresden, Germany
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following 
+conditions are met:
+
+1 - Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+
+2 - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer 
+in the documentation and/or other materials provided with the distribution.
+
+3 - Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived 
+from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+
+import java.util.Arrays;
+
+
+/**
+ * Number of labels of a tree cut as a function of the cut value, see TreeCutIndex.getLabelCountCurve.
+ * The curve is a step function: step i starts at getStepStart(i), included, and ends at the start of the
+ * next step, excluded. Consecutive steps have different label counts, long steps are the cut ranges in 
+ * which the segmentation does not change.
+ */
+public class LabelCountCurve {
+	
+	private final double[] stepStart; // increasing, the first step may start at -infinity
+	private final int[] stepCount;
+	
+	
+	/**
+	 * @param stepStart start of each step in increasing order, the array is used as is, not copied
+	 * @param stepCount number of labels in each step, the array is used as is, not copied
+	 */
+	protected LabelCountCurve(double[] stepStart, int[] stepCount)
+	{
+		this.stepStart = stepStart;
+		this.stepCount = stepCount;
+	}
+	
+	
+	public int getNumberOfSteps() {
+		return stepStart.length;
+	}
+	
+	
+	public double getStepStart(int step) {
+		return stepStart[step];
+	}
+	
+	
+	/**
+	 * @return the start of the next step, +infinity for the last step
+	 */
+	public double getStepEnd(int step) {
+		return step+1 < stepStart.length ? stepStart[step+1] : Double.POSITIVE_INFINITY;
+	}
+	
+	
+	public int getStepCount(int step) {
+		return stepCount[step];
+	}
+	
+	
+	/**
+	 * @return the step containing cut, -1 if cut is before the first step
+	 */
+	public int getStep(double cut)
+	{
+		int low = 0, high = stepStart.length;
+		while( low < high )
+		{
+			int mid = (low+high) >>> 1;
+			if( stepStart[mid] <= cut )
+				low = mid+1;
+			else
+				high = mid;
+		}
+		return low-1;
+	}
+	
+	
+	/**
+	 * @return the number of labels of the cut, in O(log(number of steps))
+	 */
+	public int getNumberOfLabels(double cut)
+	{
+		int step = getStep(cut);
+		return step < 0 ? 0 : stepCount[step];
+	}
+	
+	
+	/**
+	 * @return a copy of the step starts
+	 */
+	public double[] getStepStarts() {
+		return Arrays.copyOf(stepStart, stepStart.length);
+	}
+	
+	
+	/**
+	 * @return a copy of the step label counts
+	 */
+	public int[] getStepCounts() {
+		return Arrays.copyOf(stepCount, stepCount.length);
+	}
+	
+}
@@ -0,0 +1,173 @@
+package de.mpicbg.scf.InteractiveWatershed;
+
+
+/*
+Author: Benoit Lombardot, Scientific Computing Facility, MPI-CBG, Dresden  
+
+Copyright 2017 Max Planck Institute of Molecular Cell Biology and Genetics, Dresden, Germany
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following 
+conditions are met:
+
+1 - Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+
+2 - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer 
+in the documentation and/or other materials provided with the distribution.
+
+3 - Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived 
+from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+
+
+
+import java.util.Arrays;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.view.Views;
+
+
+/**
+ * Pixels of each leaf of a label map sorted by decreasing intensity.
+ * 
+ * The flat indices and intensities of the pixels of leaf L are stored at positions leafStart[L] to leafStart[L+1]-1 of 
+ * two primitive arrays. The pixels of a leaf at or above an intensity cutoff are a prefix of its list, so that moving
+ * the cutoff only visits the pixels between the two cutoffs. Pixels with a NaN intensity are at the end of the lists.
+ */
+public class LeafPixelIndex {
+	
+	private final int[] leafStart;
+	private final int[] pixels;
+	private final float[] values;
+	
+	
+	/**
+	 * @param leafMap leaf of each pixel, the leaves are numbered from 0 to nLeaves-1
+	 * @param intensity intensity of each pixel, same dimensions as leafMap
+	 * @param nLeaves number of leaf ids, for instance the number of nodes of the tree
+	 */
+	public <T extends RealType<T>> LeafPixelIndex(RandomAccessibleInterval<IntType> leafMap, RandomAccessibleInterval<T> intensity, int nLeaves)
+	{
+		final long size = Views.flatIterable(leafMap).size();
+		if( size > Integer.MAX_VALUE )
+			throw new IllegalArgumentException("LeafPixelIndex: images of more than Integer.MAX_VALUE pixels are not supported");
+		
+		// count the pixels of each leaf
+		leafStart = new int[nLeaves+1];
+		for( IntType leaf : Views.flatIterable(leafMap) )
+			leafStart[ leaf.get()+1 ]++;
+		for(int l=0; l<nLeaves; l++)
+			leafStart[l+1] += leafStart[l];
+		
+		// pixels of each leaf in flat order
+		pixels = new int[(int)size];
+		values = new float[(int)size];
+		final int[] next = Arrays.copyOf(leafStart, nLeaves);
+		Cursor<IntType> cursorLeaf = Views.flatIterable(leafMap).cursor();
+		Cursor<T> cursorImg = Views.flatIterable(intensity).cursor();
+		for(int idx=0; idx<size; idx++)
+		{
+			final int i = next[ cursorLeaf.next().get() ]++;
+			pixels[i] = idx;
+			values[i] = cursorImg.next().getRealFloat();
+		}
+		
+		// sort each leaf by decreasing intensity, pixels of equal intensity stay in flat order
+		int maxCount = 0;
+		for(int l=0; l<nLeaves; l++)
+			maxCount = Math.max(maxCount, leafStart[l+1]-leafStart[l]);
+		final long[] keys = new long[maxCount];
+		final int[] sortedPixels = new int[maxCount];
+		final float[] sortedValues = new float[maxCount];
+		for(int l=0; l<nLeaves; l++)
+		{
+			final int start = leafStart[l];
+			final int count = leafStart[l+1]-start;
+			for(int k=0; k<count; k++)
+				keys[k] = ((long)getSortKey(values[start+k]) << 32) | k;
+			Arrays.sort(keys, 0, count);
+			for(int k=0; k<count; k++){
+				final int j = start + (int)keys[k];
+				sortedPixels[k] = pixels[j];
+				sortedValues[k] = values[j];
+			}
+			System.arraycopy(sortedPixels, 0, pixels, start, count);
+			System.arraycopy(sortedValues, 0, values, start, count);
+		}
+	}
+	
+	
+	// int that increases when the value decreases, NaN being the largest
+	private static int getSortKey(float value)
+	{
+		if( Float.isNaN(value) )
+			return Integer.MAX_VALUE;
+		final int bits = Float.floatToIntBits(value);
+		return ~( bits ^ ((bits >> 31) & 0x7fffffff) );
+	}
+	
+	
+	public int getNumberOfLeaves() {
+		return leafStart.length-1;
+	}
+	
+	/**
+	 * @return the position of the first pixel of leaf in the index
+	 */
+	public int getStart(int leaf) {
+		return leafStart[leaf];
+	}
+	
+	/**
+	 * @return the position after the last pixel of leaf in the index
+	 */
+	public int getEnd(int leaf) {
+		return leafStart[leaf+1];
+	}
+	
+	/**
+	 * @return the flat index in the leaf map of the pixel at position i of the index
+	 */
+	public int getPixel(int i) {
+		return pixels[i];
+	}
+	
+	public float getValue(int i) {
+		return values[i];
+	}
+	
+	
+	/**
+	 * @return the number of pixels of leaf whose intensity is at or above cutoff, 0 if cutoff is NaN
+	 */
+	public int getCount(int leaf, float cutoff)
+	{
+		final int start = leafStart[leaf];
+		int low = start, high = leafStart[leaf+1];
+		while( low < high )
+		{
+			final int mid = (low+high) >>> 1;
+			if( values[mid] >= cutoff )
+				low = mid+1;
+			else
+				high = mid;
+		}
+		return low-start;
+	}
+	
+	
+	public long getSizeInBytes() {
+		return 4L*leafStart.length + 4L*pixels.length + 4L*values.length;
+	}
+	
+}
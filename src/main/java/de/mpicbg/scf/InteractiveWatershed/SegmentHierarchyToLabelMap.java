@@ -26,13 +26,18 @@ ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSI
 */
 
 
-import java.util.HashSet;
-import java.util.Set;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
 
 import net.imglib2.Cursor;
-import net.imglib2.IterableInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.converter.Converter;
+import net.imglib2.converter.Converters;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.util.Pair;
 import net.imglib2.view.Views;
 import net.imglib2.img.Img;
 
@@ -40,22 +45,57 @@ import net.imglib2.img.Img;
 // if pos is updated tree labeling does not change
 // if hMin is updated the segmentMap slice is constant but still need to be relabeled. currently we don't keep a copy and have to redo the clicking
 
-// ideally multithread the copy of the segmentMap hyperslice (look how to optimize that)
-// as well as the filling of the labelMap 
-
 // the code definitely needs review there might be some confusion between input data and hyperslice
 
 
 public class SegmentHierarchyToLabelMap <T extends RealType<T>> {
 
+	/**
+	 * Storage of the flooding ranks used to update a label map when only the peak flooding changes, see FloodingRankMap
+	 */
+	public static enum FloodingRank{
+		NONE,
+		BITS_8,
+		BITS_16;
+	}
+
 	Tree segmentTree0;
+	float[] Imax; // Imax feature of the tree nodes, read once at the first rendering
 	Img<IntType> segmentMap0;
 	Img<T> intensity0;
 	
+	TreeCutIndex cutIndex; // built at the first labelling, makes the relabelling independent of the tree depth
+	AttributeCut attributeCut; // built at the first labelling on other features than the dynamics
 	int[] nodeIdToLabel;  // current tree labelling
+	int[] labelRoot;
+	int nLabels;
+	float currentHMin;
+	boolean isIncremental; // true if the current labelling is a dynamics cut labeled with node ids
+	int labelingVersion; // incremented at each update of the labelling
+	
+	Img<IntType> segmentMap; // label map of the current hyperslice
+	RandomAccessibleInterval<IntType> leafMap; // current hyperslice
+	long leafMapOffset; // flat index of the current hyperslice in segmentMap0, -1 if it is not a contiguous range
+	RandomAccessibleInterval<T> intensity; // current hyperslice
+	int regionDim; // hyperplane of the current hyperslice, -1 for the full map
+	long regionPos;
+	
+	FloodingRank floodingRank = FloodingRank.NONE;
+	FloodingRankMap rankMap; // flooding ranks of the current hyperslice for rankThreshold and rankVersion of the labelling
+	int rankVersion = -1;
+	float rankThreshold;
+	int rankDim;
+	long rankPos;
 	
-	Img<IntType> segmentMap; // current hyperslice
-	IterableInterval<T> intensity; // current hyperslice
+	LeafPixelIndex leafPixelIndex;
+	Img<IntType> fullLabelMap; // last updatable label map, owned by the labeler, updateLabelMap changes it in place
+	int fullLabelMapVersion; // labelling version and pixel cutoffs of each node of fullLabelMap 
+	float[] fullLabelMapMinValue;
+	
+	// label maps are filled by chunks of at least MIN_CHUNK_SIZE pixels, a 2D slice is usually a single chunk
+	private static final long MIN_CHUNK_SIZE = 1<<16;
+	private int numThreads = Runtime.getRuntime().availableProcessors();
+	private ExecutorService executor = null; // null for the pool shared by the instances, see ParallelTasks
 	
 	
 	public SegmentHierarchyToLabelMap(Tree segmentTree, Img<IntType> segmentMap0, Img<T> intensity0 ){
@@ -69,46 +109,229 @@ public class SegmentHierarchyToLabelMap <T extends RealType<T>> {
 
 	public int updateTreeLabeling(float hMin ){
 		boolean makeNewLabels = false;
-		nodeIdToLabel =  TreeUtils.getTreeLabeling(segmentTree0, "dynamics", hMin, makeNewLabels  );
-		return getNumberOfLabels();
+		return updateTreeLabeling(hMin, makeNewLabels);
 	}
 
 	public int updateTreeLabeling(float hMin, boolean makeNewLabels ){
-		nodeIdToLabel =  TreeUtils.getTreeLabeling(segmentTree0, "dynamics", hMin, makeNewLabels  );
+		if( cutIndex == null )
+			cutIndex = new TreeCutIndex(segmentTree0, "dynamics");
+		setLabeling( cutIndex.getLabeling(hMin, makeNewLabels) );
+		currentHMin = hMin;
+		isIncremental = !makeNewLabels;
+		return getNumberOfLabels();
+	}
+	
+	/**
+	 * Label the tree on any combination of features, see AttributeCut
+	 * @param featureNames features of the cut, for instance "dynamics" and "area"
+	 * @param cuts a node meets the cut if featureNames[i] > cuts[i] for each i
+	 * @param filtering MAX or EXTINCTION for features that do not decrease from the roots to the leaves
+	 * @param makeNewLabels if true labels are numbered from 1, otherwise the id of the label root is used
+	 * @return the number of labels
+	 */
+	public int updateTreeLabeling(String[] featureNames, double[] cuts, AttributeCut.Filtering filtering, boolean makeNewLabels ){
+		if( attributeCut == null )
+			attributeCut = new AttributeCut(segmentTree0);
+		setLabeling( attributeCut.getLabeling(featureNames, cuts, filtering, makeNewLabels) );
+		isIncremental = false;
 		return getNumberOfLabels();
 	}
 	
-	private int getNumberOfLabels(){
-		Set<Integer> labelSet = new HashSet<Integer>();
-		if( nodeIdToLabel != null )
-			for( int val : nodeIdToLabel)
-				if( val>0)
-					labelSet.add(val);
-		return labelSet.size();
+	private void setLabeling(TreeLabeling labeling){
+		nodeIdToLabel = labeling.getLabels();
+		labelRoot = labeling.getLabelRoots();
+		nLabels = labeling.getNumberOfLabels();
+		labelingVersion++;
+	}
+	
+	/**
+	 * Move the current labelling to hMin, only the subtrees whose label changes are relabelled. 
+	 * Labels are the node ids as with makeNewLabels = false, a labelling made with new labels or on other features is recomputed.
+	 * @param hMin new seed dynamics
+	 * @return the labels that gained or lost nodes, null if the whole labelling was recomputed
+	 */
+	public int[] updateTreeLabelingIncremental(float hMin ){
+		if( nodeIdToLabel == null || !isIncremental ){
+			updateTreeLabeling(hMin, false);
+			return null;
+		}
+		int[] changedLabels = cutIndex.updateLabeling(nodeIdToLabel, labelRoot, currentHMin, hMin);
+		currentHMin = hMin;
+		labelingVersion++;
+		nLabels = cutIndex.getNumberOfLabels(hMin);
+		if( nodeIdToLabel.length>0 && cutIndex.isLabelRoot(0, hMin) ) // label 0 is the background 
+			nLabels--;
+		return changedLabels;
+	}
+	
+	/**
+	 * Number of labels as a function of the seed dynamics hMin, for the labels visible above an intensity threshold.
+	 * The curve is computed at once for all hMin, its long steps are the hMin ranges giving the same segmentation.
+	 * A label is visible if the Imax feature of its root is above threshold, i.e. if its highest level is above threshold.
+	 * This matches the label maps as long as levels are not above the values they hold, which holds for non negative images.
+	 * @param threshold intensity threshold, Float.NEGATIVE_INFINITY to count all the labels
+	 */
+	public LabelCountCurve getLabelCountCurve(float threshold){
+		if( cutIndex == null )
+			cutIndex = new TreeCutIndex(segmentTree0, "dynamics");
+		double[] Imax = segmentTree0.getFeatureCopy("Imax");
+		if( Imax.length>0 )
+			Imax[0] = Double.NaN; // node 0 is the background
+		return cutIndex.getLabelCountCurve(Imax, threshold);
+	}
+	
+	public int getNumberOfLabels(){
+		return nodeIdToLabel != null ? nLabels : 0;
+	}
+	
+	/**
+	 * Set the number of threads used to fill the label maps, the label maps do not depend on it.
+	 * @param numThreads number of threads, 1 for a sequential filling
+	 */
+	public void setNumThreads(int numThreads) {
+		if( numThreads < 1 )
+			throw new IllegalArgumentException("HWatershed: the number of threads must be at least 1");
+		this.numThreads = numThreads;
 	}
 	
+	public int getNumThreads() {
+		return numThreads;
+	}
+	
+	/**
+	 * Set the executor of the parallel tasks, for instance the one of the application. By default the tasks run on 
+	 * a pool of threads shared by the instances and kept between calls, see ParallelTasks.
+	 * @param executor executor of the tasks, null for the shared pool
+	 */
+	public void setExecutorService(ExecutorService executor) {
+		this.executor = executor;
+	}
+	
+	public ExecutorService getExecutorService() {
+		return executor;
+	}
+	
+	/**
+	 * Keep the flooding ranks of the label map pixels once a label map is requested twice with the same labelling,
+	 * threshold and hyperslice. Further requests that only change the peak flooding, to a percentage on the grid of
+	 * the ranks, compare the ranks to the percentage instead of testing the pixel intensities.
+	 * The label maps do not depend on it.
+	 * @param floodingRank NONE to test the intensities at each request
+	 */
+	public void setFloodingRank(FloodingRank floodingRank) {
+		this.floodingRank = floodingRank;
+		rankMap = null;
+	}
+	
+	public FloodingRank getFloodingRank() {
+		return floodingRank;
+	}
+	
+	/**
+	 * Set the index of the leaf pixels sorted by intensity used by updateLabelMap, see LeafPixelIndex
+	 * @param leafPixelIndex index of the leaf map of this labeler, null to remove it
+	 */
+	public void setLeafPixelIndex(LeafPixelIndex leafPixelIndex) {
+		this.leafPixelIndex = leafPixelIndex;
+		fullLabelMap = null;
+		fullLabelMapMinValue = null;
+	}
+	
+	public LeafPixelIndex getLeafPixelIndex() {
+		return leafPixelIndex;
+	}
+	
+	/**
+	 * @return a new label map of the whole image for the current tree labelling, the labeler does not change it later.
+	 * See getUpdatableLabelMap for a label map that updateLabelMap changes in place
+	 */
 	public Img<IntType> getLabelMap( float threshold, float percentFlooding){
 		
-		intensity = (IterableInterval<T>) intensity0;
+		leafMap = segmentMap0;
+		intensity = intensity0;
+		leafMapOffset = 0;
+		regionDim = -1;
+		regionPos = 0;
 		
-		int nDims = segmentMap0.numDimensions();
-		long[] dims = new long[nDims];
+		long[] dims = new long[segmentMap0.numDimensions()];
 		segmentMap0.dimensions(dims);
 		segmentMap = segmentMap0.factory().create(dims, segmentMap0.firstElement().createVariable() );
-		Cursor<IntType> cursor = segmentMap.cursor();
-		Cursor<IntType> cursor0 = segmentMap0.cursor();
-		while(cursor0.hasNext()){
-			cursor.next().set( cursor0.next().get() );
-		}
-		
 		
-		Img<IntType> labelMap = fillLabelMap(threshold, percentFlooding);
+		return fillLabelMap(threshold, percentFlooding);
+	}
+	
+	
+	
+	/**
+	 * Same as getLabelMap(threshold, percentFlooding) but the label map belongs to the labeler: the next updateLabelMap
+	 * calls change it in place, until getUpdatableLabelMap is called again. Keep a copy of it for later use.
+	 */
+	public Img<IntType> getUpdatableLabelMap( float threshold, float percentFlooding){
 		
+		Img<IntType> labelMap = getLabelMap(threshold, percentFlooding);
+		fullLabelMap = leafPixelIndex != null ? labelMap : null;
+		fullLabelMapVersion = labelingVersion;
+		fullLabelMapMinValue = leafPixelIndex != null ? getNodeToMinValue( threshold, percentFlooding ) : null;
 		return labelMap;
 	}
 	
 	
 	
+	/**
+	 * Update in place the label map returned by the last getUpdatableLabelMap call to new threshold and
+	 * peak flooding values. With the leaf pixel index only the pixels whose intensity is between the previous and the new
+	 * cutoff of their leaf are visited, the result is the same as a new getLabelMap call.
+	 * @return the positions, along the last dimension, of the hyperplanes that changed in increasing order (the slices of 
+	 * a 3D stack), null if the map could not be updated: there is no leaf pixel index, the labelling changed since the last
+	 * updatable label map or the label map is not an array or planar image. getUpdatableLabelMap has to be called in that case
+	 */
+	public long[] updateLabelMap( float threshold, float percentFlooding ){
+		
+		if( leafPixelIndex == null || fullLabelMap == null || fullLabelMapVersion != labelingVersion )
+			return null;
+		final FlatIntArray labels = FlatIntArray.wrap(fullLabelMap);
+		if( labels == null )
+			return null;
+		
+		final int[] nodeToLabel = getNodeToLabel();
+		final float[] nodeToMinValue = getNodeToMinValue( threshold, percentFlooding );
+		final int nDims = fullLabelMap.numDimensions();
+		final long planeSize = fullLabelMap.size() / fullLabelMap.dimension(nDims-1);
+		final boolean[] dirty = new boolean[(int)fullLabelMap.dimension(nDims-1)];
+		int nDirty = 0;
+		
+		final int nLeaves = Math.min(leafPixelIndex.getNumberOfLeaves(), nodeToMinValue.length);
+		for(int leaf=0; leaf<nLeaves; leaf++)
+		{
+			if( Float.compare(fullLabelMapMinValue[leaf], nodeToMinValue[leaf]) == 0 )
+				continue;
+			final int start = leafPixelIndex.getStart(leaf);
+			final int nOld = leafPixelIndex.getCount(leaf, fullLabelMapMinValue[leaf]);
+			final int nNew = leafPixelIndex.getCount(leaf, nodeToMinValue[leaf]);
+			// pixels between the two cutoffs gain or lose the label of their leaf
+			final int label = nNew > nOld ? nodeToLabel[leaf] : 0;
+			for(int i=start+Math.min(nOld, nNew); i<start+Math.max(nOld, nNew); i++)
+			{
+				final int pixel = leafPixelIndex.getPixel(i);
+				labels.getPlane( pixel / labels.getPlaneSize() )[ pixel % labels.getPlaneSize() ] = label;
+				final int plane = (int)(pixel / planeSize);
+				if( !dirty[plane] ){
+					dirty[plane] = true;
+					nDirty++;
+				}
+			}
+		}
+		fullLabelMapMinValue = nodeToMinValue;
+		
+		long[] dirtyPlanes = new long[nDirty];
+		for(int p=0, k=0; p<dirty.length; p++)
+			if( dirty[p] )
+				dirtyPlanes[k++] = p;
+		return dirtyPlanes;
+	}
+	
+	
+	
 	
 	public Img<IntType> getLabelMap( float threshold, float percentFlooding, int dim, long pos){
 		
@@ -116,40 +339,25 @@ public class SegmentHierarchyToLabelMap <T extends RealType<T>> {
 		
 		if (nDims>2)
 		{	
-			long[] dimensions = new long[nDims];
-			segmentMap0.dimensions(dimensions);
-			long[] newDimensions = new long[nDims-1];
-			int count = 0;
-			for ( int d = 0; d < nDims ; ++d )
-			{
-				if(d!=dim){
-					newDimensions[count] = dimensions[d];
-					count++;
-				}
-				//else
-					//newDimensions[d] = 1;
-			}
-			segmentMap = segmentMap0.factory().create(newDimensions, segmentMap0.firstElement().createVariable());
-			Cursor<IntType> cursor = segmentMap.cursor();
-			Cursor<IntType> cursor0 = Views.hyperSlice(segmentMap0, dim, pos).cursor();
-			
-			while ( cursor.hasNext() )
-				cursor.next().set( cursor0.next().get() );
-			
-			intensity = (IterableInterval<T>) Views.hyperSlice(intensity0, dim, pos);
+			leafMap = Views.hyperSlice(segmentMap0, dim, pos);
+			intensity = Views.hyperSlice(intensity0, dim, pos);
+			// hyperplanes of the last dimension are contiguous in flat order
+			leafMapOffset = dim==nDims-1 ? pos * (segmentMap0.size()/segmentMap0.dimension(dim)) : -1;
+			regionDim = dim;
+			regionPos = pos;
 		}
 		else{
-			long[] dims = new long[nDims];
-			segmentMap0.dimensions(dims);
-			segmentMap = segmentMap0.factory().create(dims, segmentMap0.firstElement().createVariable() );
-			Cursor<IntType> cursor = segmentMap.cursor();
-			Cursor<IntType> cursor0 = segmentMap0.cursor();
-			while(cursor0.hasNext()){
-				cursor.next().set( cursor0.next().get() );
-			}
-			intensity = (IterableInterval<T>) intensity0;
+			leafMap = segmentMap0;
+			intensity = intensity0;
+			leafMapOffset = 0;
+			regionDim = -1;
+			regionPos = 0;
 		}
 		
+		long[] dims = new long[leafMap.numDimensions()];
+		leafMap.dimensions(dims);
+		segmentMap = segmentMap0.factory().create(dims, segmentMap0.firstElement().createVariable() );
+		
 		Img<IntType> labelMap = fillLabelMap( threshold, percentFlooding);
 		
 		return labelMap;
@@ -157,41 +365,296 @@ public class SegmentHierarchyToLabelMap <T extends RealType<T>> {
 	
 	
 	
+	/**
+	 * Label map of the current tree labelling computed on read from the leaf map and the intensity, nothing is
+	 * allocated but two lookup tables. The view keeps the labelling of the time it was created, later updates 
+	 * of the labelling do not change it. Pixels are computed again at each access.
+	 * @param threshold pixels below threshold are labeled 0
+	 * @param percentFlooding percentage of each label height, from its highest pixel, that is labelled 
+	 */
+	public RandomAccessibleInterval<IntType> getLabelMapView( float threshold, float percentFlooding){
+		
+		final int[] nodeToLabel = getNodeToLabel();
+		final float[] nodeToMinValue = getNodeToMinValue( threshold, percentFlooding );
+		RandomAccessibleInterval<Pair<IntType,T>> leafAndIntensity = Views.interval( Views.pair(segmentMap0, intensity0), segmentMap0 );
+		return Converters.convert(leafAndIntensity, new LabelConverter<T>(nodeToLabel, nodeToMinValue), new IntType() );
+	}
 	
-	protected Img<IntType> fillLabelMap( float threshold, float percentFlooding ){
+	
+	/**
+	 * Same as getLabelMapView(threshold, percentFlooding) restricted to the hyperplane dim = pos
+	 */
+	public RandomAccessibleInterval<IntType> getLabelMapView( float threshold, float percentFlooding, int dim, long pos){
+		
+		return Views.hyperSlice( getLabelMapView(threshold, percentFlooding), dim, pos );
+	}
+	
+	
+	
+	// label of each node for the current labelling, 0 for the nodes without label
+	private int[] getNodeToLabel(){
+		
+		final int nNode = nodeIdToLabel.length;
+		int[] nodeToLabel = new int[nNode];
+		for(int i=0; i<nNode; i++)
+			nodeToLabel[i] = labelRoot[i] >= 0 ? nodeIdToLabel[i] : 0;
+		return nodeToLabel;
+	}
+	
+	
+	private float[] getImax(){
+		if( Imax == null ){
+			double[] values = segmentTree0.getFeatureCopy("Imax");
+			Imax = new float[values.length];
+			for(int i=0; i<values.length; i++)
+				Imax[i] = (float)values[i];
+		}
+		return Imax;
+	}
+	
+	
+	// smallest intensity for which a pixel of each node gets the node label: the threshold or the flooding level
+	// of its label root if it is higher, +infinity for the nodes without label
+	private float[] getNodeToMinValue( float threshold, float percentFlooding ){
 		
-		double[] Imax = segmentTree0.getFeature("Imax");
+		final float[] Imax = getImax();
 		
 		int nNode = Imax.length;
 		float[] peakThresholds = new float[nNode];
 		for(int i=0;i<nNode; i++)
-			peakThresholds[i] =  threshold + ((float)Imax[i]-threshold)*(1f-percentFlooding/100f);
+			peakThresholds[i] =  getMinValue(threshold, Imax[i], percentFlooding);
+		
+		float[] nodeToMinValue = new float[nNode];
+		for(int i=0; i<nNode; i++)
+		{
+			final int root = labelRoot[i];
+			nodeToMinValue[i] = root >= 0 ? peakThresholds[root] : Float.POSITIVE_INFINITY;
+		}
+		return nodeToMinValue;
+	}
+	
+	
+	// smallest intensity labelled in a label of highest intensity imax 
+	static float getMinValue( float threshold, float imax, float percentFlooding ){
+		
+		return Math.max(threshold, threshold + (imax-threshold)*(1f-percentFlooding/100f) );
+	}
+	
+	
+	
+	/**
+	 * Write the label of each pixel of leafMap to segmentMap, the three images are visited in flat order.
+	 * The flat range is split in chunks filled by numThreads threads, the result does not depend on it
+	 */
+	protected Img<IntType> fillLabelMap( float threshold, float percentFlooding ){
+		
+		final int[] nodeToLabel = getNodeToLabel();
+		final FloodingRankMap ranks = getFloodingRankMap( threshold );
+		final int step = ranks == null ? -1 : ranks.getStep( percentFlooding );
+		final float[] nodeToMinValue = step >= 0 ? null : getNodeToMinValue( threshold, percentFlooding );
+		
+		final FlatIntArray leaves = leafMapOffset < 0 ? null : FlatIntArray.wrap(segmentMap0);
+		final FlatFloatArray values = leafMapOffset < 0 ? null : FlatFloatArray.wrap(intensity0);
+		final FlatIntArray labels = leafMapOffset < 0 ? null : FlatIntArray.wrap(segmentMap);
+		final boolean fromArrays = leaves!=null && values!=null && labels!=null;
+		final boolean ranksFromArrays = leaves!=null && labels!=null;
+		
+		final long size = segmentMap.size();
+		final int nChunks = (int) Math.max(1, Math.min(numThreads, size/MIN_CHUNK_SIZE));
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for(int c=0; c<nChunks; c++)
+		{
+			final long start = size*c/nChunks;
+			final long end = size*(c+1)/nChunks;
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					if( step >= 0 )
+						fillLabelMapFromRanks(nodeToLabel, ranks, step, ranksFromArrays ? leaves : null, labels, start, end);
+					else if( fromArrays )
+						fillLabelMapFromArrays(nodeToLabel, nodeToMinValue, leaves, values, labels, start, end);
+					else
+						fillLabelMapFromCursors(nodeToLabel, nodeToMinValue, start, end);
+					return null;
+				}
+			});
+		}
+		ParallelTasks.run(tasks, executor);
+		return segmentMap;
+		
+	}
+	
+	
+	
+	// fill the flat range [start, end) of segmentMap, cursors are moved to start
+	private void fillLabelMapFromCursors( final int[] nodeToLabel, final float[] nodeToMinValue, final long start, final long end ){
 		
-		Cursor<IntType> cursor = segmentMap.cursor();
-		Cursor<T> cursorImg = intensity.cursor();
-		while( cursor.hasNext() )
+		Cursor<IntType> cursor = Views.flatIterable(segmentMap).cursor();
+		Cursor<IntType> cursorLeaf = Views.flatIterable(leafMap).cursor();
+		Cursor<T> cursorImg = Views.flatIterable(intensity).cursor();
+		cursor.jumpFwd(start);
+		cursorLeaf.jumpFwd(start);
+		cursorImg.jumpFwd(start);
+		for( long i=start; i<end; i++ )
 		{
-			T imgPixel = cursorImg.next();
-			float val =imgPixel.getRealFloat();
+			final float val = cursorImg.next().getRealFloat();
+			final int node = cursorLeaf.next().get();
+			cursor.next().set( val >= nodeToMinValue[node] ? nodeToLabel[node] : 0 );
+		}
+	}
+	
+	
+	
+	/**
+	 * Same as fillLabelMapFromCursors, directly on the primitive storage of array or planar images.
+	 * Only used if the hyperslice is a contiguous range of the input images
+	 */
+	private void fillLabelMapFromArrays( final int[] nodeToLabel, final float[] nodeToMinValue, 
+			final FlatIntArray leaves, final FlatFloatArray values, final FlatIntArray labels, final long start, final long end ){
+		
+		long i = start;
+		while( i < end )
+		{
+			// run of pixels within a single plane of each image
+			final long iSource = leafMapOffset + i;
+			final int[] leafPlane = leaves.getPlane( (int)(iSource / leaves.getPlaneSize()) );
+			final int leafStart = (int)(iSource % leaves.getPlaneSize());
+			final float[] valuePlane = values.getPlane( (int)(iSource / values.getPlaneSize()) );
+			final int valueStart = (int)(iSource % values.getPlaneSize());
+			final int[] labelPlane = labels.getPlane( (int)(i / labels.getPlaneSize()) );
+			final int labelStart = (int)(i % labels.getPlaneSize());
+			final int run = (int) Math.min( end-i, Math.min( leafPlane.length-leafStart, Math.min(valuePlane.length-valueStart, labelPlane.length-labelStart) ) );
 			
-			IntType pixel = cursor.next();
-			int node = (int)pixel.getRealFloat();
-			int label = nodeIdToLabel[node];
-			int labelRoot = segmentTree0.nodes.get(node).labelRoot;
-			if(  val >= threshold )
+			for( int k=0; k<run; k++ )
 			{
-				if(  val >= peakThresholds[labelRoot]  )
-				{	
-					float finalVal = (float)label;
-					pixel.setReal( finalVal );
-				}
-				else
-					pixel.setReal( 0.0 );
+				final int node = leafPlane[leafStart+k];
+				labelPlane[labelStart+k] = valuePlane[valueStart+k] >= nodeToMinValue[node] ? nodeToLabel[node] : 0;
 			}
-			else
-				pixel.setReal( 0.0 );
+			i += run;
+		}
+	}
+	
+	
+	
+	/**
+	 * Same as fillLabelMapFromCursors for a percentage of the flooding rank grid: pixels whose rank is at most step get the
+	 * label of their leaf. Leaves and labels are read from their storage arrays if leaves is not null
+	 */
+	private void fillLabelMapFromRanks( final int[] nodeToLabel, final FloodingRankMap ranks, final int step, 
+			final FlatIntArray leaves, final FlatIntArray labels, final long start, final long end ){
+		
+		if( leaves == null )
+		{
+			Cursor<IntType> cursor = Views.flatIterable(segmentMap).cursor();
+			Cursor<IntType> cursorLeaf = Views.flatIterable(leafMap).cursor();
+			cursor.jumpFwd(start);
+			cursorLeaf.jumpFwd(start);
+			for( int i=(int)start; i<end; i++ )
+			{
+				final int node = cursorLeaf.next().get();
+				cursor.next().set( ranks.get(i) <= step ? nodeToLabel[node] : 0 );
+			}
+			return;
 		}
-		return segmentMap;
 		
+		long i = start;
+		while( i < end )
+		{
+			// run of pixels within a single plane of both images
+			final long iSource = leafMapOffset + i;
+			final int[] leafPlane = leaves.getPlane( (int)(iSource / leaves.getPlaneSize()) );
+			final int leafStart = (int)(iSource % leaves.getPlaneSize());
+			final int[] labelPlane = labels.getPlane( (int)(i / labels.getPlaneSize()) );
+			final int labelStart = (int)(i % labels.getPlaneSize());
+			final int run = (int) Math.min( end-i, Math.min( leafPlane.length-leafStart, labelPlane.length-labelStart ) );
+			
+			for( int k=0; k<run; k++ )
+				labelPlane[labelStart+k] = ranks.get((int)i+k) <= step ? nodeToLabel[leafPlane[leafStart+k]] : 0;
+			i += run;
+		}
 	}
+	
+	
+	
+	/**
+	 * Flooding ranks of the current hyperslice. They are computed at the second request of a label map with the same
+	 * labelling, threshold and hyperslice, i.e. when the peak flooding alone is changing, and kept until one of them changes
+	 * @return null if the ranks are not available
+	 */
+	private FloodingRankMap getFloodingRankMap( float threshold ){
+		
+		if( rankVersion != labelingVersion || Float.compare(rankThreshold, threshold) != 0 || rankDim != regionDim || rankPos != regionPos )
+		{
+			rankMap = null;
+			rankVersion = labelingVersion;
+			rankThreshold = threshold;
+			rankDim = regionDim;
+			rankPos = regionPos;
+			return null;
+		}
+		if( rankMap == null && floodingRank != FloodingRank.NONE && segmentMap.size() <= Integer.MAX_VALUE )
+			rankMap = computeFloodingRankMap( threshold );
+		return rankMap;
+	}
+	
+	
+	
+	private FloodingRankMap computeFloodingRankMap( final float threshold ){
+		
+		final FloodingRankMap ranks = new FloodingRankMap( (int)segmentMap.size(), floodingRank );
+		final float[] Imax = getImax();
+		final int[] roots = labelRoot;
+		
+		final long size = segmentMap.size();
+		final int nChunks = (int) Math.max(1, Math.min(numThreads, size/MIN_CHUNK_SIZE));
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for(int c=0; c<nChunks; c++)
+		{
+			final long start = size*c/nChunks;
+			final long end = size*(c+1)/nChunks;
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					Cursor<IntType> cursorLeaf = Views.flatIterable(leafMap).cursor();
+					Cursor<T> cursorImg = Views.flatIterable(intensity).cursor();
+					cursorLeaf.jumpFwd(start);
+					cursorImg.jumpFwd(start);
+					for( int i=(int)start; i<end; i++ )
+					{
+						final float val = cursorImg.next().getRealFloat();
+						final int root = roots[ cursorLeaf.next().get() ];
+						ranks.set(i, root >= 0 ? ranks.computeRank(val, threshold, Imax[root]) : ranks.getNumberOfSteps()+1 );
+					}
+					return null;
+				}
+			});
+		}
+		ParallelTasks.run(tasks, executor);
+		return ranks;
+	}
+	
+	
+	
+	/**
+	 * Label of a pixel from its leaf and its intensity, see getNodeToLabel and getNodeToMinValue 
+	 */
+	private static class LabelConverter<T extends RealType<T>> implements Converter<Pair<IntType,T>, IntType>
+	{
+		private final int[] nodeToLabel;
+		private final float[] nodeToMinValue;
+		
+		LabelConverter(int[] nodeToLabel, float[] nodeToMinValue)
+		{
+			this.nodeToLabel = nodeToLabel;
+			this.nodeToMinValue = nodeToMinValue;
+		}
+		
+		@Override
+		public void convert(Pair<IntType,T> input, IntType output)
+		{
+			final int node = input.getA().get();
+			output.set( input.getB().getRealFloat() >= nodeToMinValue[node] ? nodeToLabel[node] : 0 );
+		}
+	}
+	
 }
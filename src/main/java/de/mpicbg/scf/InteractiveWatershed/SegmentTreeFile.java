@@ -0,0 +1,594 @@
+package de.mpicbg.scf.InteractiveWatershed;
+
+
+/*
+Author: Benoit Lombardot, Scientific Computing Facility, MPI-CBG, Dresden  
+
+Copyright 2017 Max Planck Institute of Molecular Cell Biology and Genetics, Dresden, Germany
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following 
+conditions are met:
+
+1 - Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+
+2 - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer 
+in the documentation and/or other materials provided with the distribution.
+
+3 - Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived 
+from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Set;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.IntAccess;
+import net.imglib2.img.cell.CellImgFactory;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.util.Fraction;
+import net.imglib2.view.Views;
+
+import de.mpicbg.scf.InteractiveWatershed.HWatershedLabeling.Connectivity;
+import de.mpicbg.scf.InteractiveWatershed.HWatershedLabeling.Quantization;
+
+
+/**
+ * Binary file holding a segment tree, its features and its leaf label map, so that a tree built once can be 
+ * reopened without construction. Arrays are stored little endian after a header, each section starting on
+ * 8 bytes. The label map is memory mapped read only when the file is read, its pages are only loaded when accessed.
+ * The file records the threshold, connectivity and quantization of the construction and a digest of the input image chosen by
+ * the caller, for instance getContentDigest, so that a file can be checked against the image before use.
+ * Files are written under a temporary name and renamed, an existing file that is mapped by a reader is never modified.
+ */
+public class SegmentTreeFile {
+	
+	private static final int MAGIC = 0x48575354; // "HWST"
+	private static final int VERSION = 5; // 3: label map planes are no longer padded, 4: digest of the input instead of a 64 bit key, 5: quantization
+	private static final int MAX_DIGEST_LENGTH = 64;
+	static final int MAP_SHIFT = 30; // memory mapped buffers hold 2^MAP_SHIFT bytes, a mapping is limited to 2^31-1
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int DOUBLE_COLUMN = 0; // storage type of the feature columns
+	private static final int FLOAT_COLUMN = 1;
+	private static final int INT_COLUMN = 2;
+	
+	private final Tree tree;
+	private final Img<IntType> labelMap;
+	private final float threshold;
+	private final Connectivity connectivity;
+	private final Quantization quantization;
+	private final int nLevels;
+	private final byte[] inputDigest;
+	
+	
+	private SegmentTreeFile(Tree tree, Img<IntType> labelMap, float threshold, Connectivity connectivity, Quantization quantization, int nLevels, byte[] inputDigest)
+	{
+		this.tree = tree;
+		this.labelMap = labelMap;
+		this.threshold = threshold;
+		this.connectivity = connectivity;
+		this.quantization = quantization;
+		this.nLevels = nLevels;
+		this.inputDigest = inputDigest;
+	}
+	
+	
+	/**
+	 * @param file file to write, replaced if it exists
+	 * @param tree segment tree and its features
+	 * @param labelMap leaf label map of the tree, written in flat iteration order
+	 * @param threshold threshold of the tree construction
+	 * @param connectivity connectivity of the tree construction
+	 * @param inputDigest digest of the input image, at most 64 bytes
+	 */
+	public static void write(File file, Tree tree, Img<IntType> labelMap, float threshold, Connectivity connectivity, byte[] inputDigest) throws IOException
+	{
+		write(file, tree, labelMap, threshold, connectivity, Quantization.NONE, 0, inputDigest);
+	}
+	
+	
+	/**
+	 * Same as write(file, tree, labelMap, threshold, connectivity, inputDigest) for a tree built with quantized intensities
+	 * @param quantization quantization of the tree construction
+	 * @param nLevels number of flooding levels of the tree construction, 0 if quantization is NONE
+	 */
+	public static void write(File file, Tree tree, Img<IntType> labelMap, float threshold, Connectivity connectivity, Quantization quantization, int nLevels, byte[] inputDigest) throws IOException
+	{
+		if( inputDigest.length > MAX_DIGEST_LENGTH )
+			throw new IllegalArgumentException("HWatershed: the input digest is longer than "+MAX_DIGEST_LENGTH+" bytes");
+		
+		File tmpFile = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+		boolean moved = false;
+		try {
+			writeFile(tmpFile, tree, labelMap, threshold, connectivity, quantization, nLevels, inputDigest);
+			try {
+				Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+			moved = true;
+		}
+		finally {
+			if( !moved )
+				tmpFile.delete();
+		}
+	}
+	
+	
+	private static void writeFile(File file, Tree tree, Img<IntType> labelMap, float threshold, Connectivity connectivity, Quantization quantization, int nLevels, byte[] inputDigest) throws IOException
+	{
+		final int ndim = labelMap.numDimensions();
+		final int numNodes = tree.getNumNodes();
+		
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			Writer out = new Writer( raf.getChannel() );
+			out.putInt(MAGIC);
+			out.putInt(VERSION);
+			out.putInt(ndim);
+			out.putInt(connectivity.ordinal());
+			out.putFloat(threshold);
+			out.putInt(quantization.ordinal());
+			out.putInt(nLevels);
+			out.putInt(inputDigest.length);
+			out.putBytes(inputDigest);
+			for(int d=0; d<ndim; d++)
+				out.putLong(labelMap.dimension(d));
+			
+			out.putInt(numNodes);
+			Set<String> featureNames = tree.getFeatureNames();
+			out.putInt(featureNames.size());
+			out.putInts(tree.parent, numNodes);
+			out.putInts(tree.child0, numNodes);
+			out.putInts(tree.child1, numNodes);
+			for( String featureName : featureNames )
+			{
+				byte[] name = featureName.getBytes(UTF8);
+				out.putInt(name.length);
+				out.putBytes(name);
+				Object column = tree.getColumn(featureName);
+				if( column instanceof float[] ){
+					out.putLong(FLOAT_COLUMN);
+					out.putFloats((float[]) column, numNodes);
+				}
+				else if( column instanceof int[] ){
+					out.putLong(INT_COLUMN);
+					out.putInts((int[]) column, numNodes);
+				}
+				else{
+					out.putLong(DOUBLE_COLUMN);
+					out.putDoubles((double[]) column, numNodes);
+				}
+			}
+			
+			// label map, directly from the primitive storage if possible. The planes are written back to back, 
+			// the label map is a single int array in the file
+			out.putLong(labelMap.size());
+			FlatIntArray labels = FlatIntArray.wrap(labelMap);
+			if( labels != null ){
+				long remaining = labels.size();
+				for(int i=0; i<labels.getNumPlanes(); i++){
+					int[] plane = labels.getPlane(i);
+					int n = (int) Math.min(plane.length, remaining);
+					out.writeInts(plane, n);
+					remaining -= n;
+				}
+			}
+			else{
+				for( IntType p : Views.flatIterable(labelMap) )
+					out.putInt(p.get());
+			}
+			out.align();
+			out.flush();
+		}
+		finally {
+			raf.close();
+		}
+	}
+	
+	
+	/**
+	 * Read a file written by write. Label maps of up to Integer.MAX_VALUE pixels are memory mapped, larger ones 
+	 * are copied to a cell image.
+	 */
+	public static SegmentTreeFile read(File file) throws IOException
+	{
+		return read(file, MAP_SHIFT);
+	}
+	
+	
+	// read with memory mapped buffers of 2^mapShift bytes, at least 8
+	static SegmentTreeFile read(File file, int mapShift) throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			Reader in = new Reader(channel, mapShift);
+			if( in.getInt() != MAGIC )
+				throw new IOException("HWatershed: "+file+" is not a segment tree file");
+			int version = in.getInt();
+			if( version != VERSION )
+				throw new IOException("HWatershed: unsupported segment tree file version "+version);
+			final int ndim = in.getInt();
+			final Connectivity connectivity = Connectivity.values()[in.getInt()];
+			final float threshold = in.getFloat();
+			final Quantization quantization = Quantization.values()[in.getInt()];
+			final int nLevels = in.getInt();
+			final int digestLength = in.getInt();
+			if( digestLength < 0 || digestLength > MAX_DIGEST_LENGTH )
+				throw new IOException("HWatershed: "+file+" is not a valid segment tree file");
+			final byte[] inputDigest = in.getBytes(digestLength);
+			final long[] dims = new long[ndim];
+			for(int d=0; d<ndim; d++)
+				dims[d] = in.getLong();
+			
+			final int numNodes = in.getInt();
+			final int nFeatures = in.getInt();
+			Tree tree = new Tree( in.getInts(numNodes), in.getInts(numNodes), in.getInts(numNodes) );
+			for(int f=0; f<nFeatures; f++)
+			{
+				String name = new String(in.getBytes(in.getInt()), UTF8);
+				long type = in.getLong();
+				if( type == FLOAT_COLUMN )
+					tree.setFeature(name, in.getFloats(numNodes));
+				else if( type == INT_COLUMN )
+					tree.setFeature(name, in.getInts(numNodes));
+				else
+					tree.setFeature(name, in.getDoubles(numNodes));
+			}
+			
+			final long size = in.getLong();
+			final long offset = in.position();
+			Img<IntType> labelMap;
+			if( size <= Integer.MAX_VALUE )
+			{
+				final int chunkShift = mapShift - 2;
+				final long chunkLength = getChunkLength(mapShift, 4);
+				IntBuffer[] chunks = new IntBuffer[ (int)((size+chunkLength-1)/chunkLength) ];
+				for(int c=0; c<chunks.length; c++){
+					long n = Math.min(chunkLength, size - c*chunkLength);
+					chunks[c] = channel.map(MapMode.READ_ONLY, offset + 4L*c*chunkLength, 4*n).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+				}
+				ArrayImg<IntType, MappedIntAccess> img = new ArrayImg<IntType, MappedIntAccess>(new MappedIntAccess(chunks, chunkShift), dims, new Fraction(1,1));
+				img.setLinkedType( new IntType(img) );
+				labelMap = img;
+			}
+			else
+			{
+				labelMap = new CellImgFactory<IntType>().create(dims, new IntType());
+				Cursor<IntType> cursor = Views.flatIterable(labelMap).cursor();
+				while( cursor.hasNext() )
+					cursor.next().set( in.getInt() );
+			}
+			return new SegmentTreeFile(tree, labelMap, threshold, connectivity, quantization, nLevels, inputDigest);
+		}
+		finally {
+			raf.close(); // mapped buffers stay valid
+		}
+	}
+	
+	
+	/**
+	 * @return the SHA-256 digest of the input content: its dimensions and its values in flat iteration order
+	 */
+	public static <T extends RealType<T>> byte[] getContentDigest(RandomAccessibleInterval<T> input)
+	{
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException("HWatershed: SHA-256 is not available", e); // every Java platform provides it
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(1<<16).order(ByteOrder.LITTLE_ENDIAN);
+		for(int d=0; d<input.numDimensions(); d++)
+			buffer.putLong(input.dimension(d));
+		for( T p : Views.flatIterable(input) )
+		{
+			if( buffer.remaining() < 4 ){
+				buffer.flip();
+				digest.update(buffer);
+				buffer.clear();
+			}
+			buffer.putInt( Float.floatToIntBits(p.getRealFloat()) );
+		}
+		buffer.flip();
+		digest.update(buffer);
+		return digest.digest();
+	}
+	
+	
+	public Tree getTree() {
+		return tree;
+	}
+	
+	public Img<IntType> getLabelMap() {
+		return labelMap;
+	}
+	
+	public float getThreshold() {
+		return threshold;
+	}
+	
+	public Connectivity getConnectivity() {
+		return connectivity;
+	}
+	
+	public Quantization getQuantization() {
+		return quantization;
+	}
+	
+	/**
+	 * @return the number of flooding levels of the tree construction, 0 if quantization is NONE
+	 */
+	public int getNumberOfLevels() {
+		return nLevels;
+	}
+	
+	public byte[] getInputDigest() {
+		return inputDigest.clone();
+	}
+	
+	
+	
+	/**
+	 * @return the number of values of valueBytes bytes held by a memory mapped buffer of 2^mapShift bytes
+	 */
+	static int getChunkLength(int mapShift, int valueBytes)
+	{
+		return (1<<mapShift) / valueBytes;
+	}
+	
+	
+	
+	/**
+	 * Int access on memory mapped buffers of 2^chunkShift ints, setValue fails on read only buffers
+	 */
+	private static class MappedIntAccess implements IntAccess
+	{
+		private final IntBuffer[] chunks;
+		private final int chunkShift;
+		private final int chunkMask;
+		
+		MappedIntAccess(IntBuffer[] chunks, int chunkShift)
+		{
+			this.chunks = chunks;
+			this.chunkShift = chunkShift;
+			this.chunkMask = (1<<chunkShift) - 1;
+		}
+		
+		@Override
+		public int getValue(int index) {
+			return chunks[index>>>chunkShift].get(index & chunkMask);
+		}
+		
+		@Override
+		public void setValue(int index, int value) {
+			chunks[index>>>chunkShift].put(index & chunkMask, value);
+		}
+	}
+	
+	
+	
+	/**
+	 * Buffered little endian writes to a channel, arrays are padded to 8 bytes
+	 */
+	private static class Writer
+	{
+		private final FileChannel channel;
+		private final ByteBuffer buffer = ByteBuffer.allocateDirect(1<<20).order(ByteOrder.LITTLE_ENDIAN);
+		private long position = 0;
+		
+		Writer(FileChannel channel)
+		{
+			this.channel = channel;
+		}
+		
+		private void reserve(int n) throws IOException
+		{
+			if( buffer.remaining() < n )
+				flush();
+		}
+		
+		void flush() throws IOException
+		{
+			buffer.flip();
+			while( buffer.hasRemaining() )
+				channel.write(buffer);
+			buffer.clear();
+		}
+		
+		void putInt(int v) throws IOException { reserve(4); buffer.putInt(v); position += 4; }
+		void putLong(long v) throws IOException { reserve(8); buffer.putLong(v); position += 8; }
+		void putFloat(float v) throws IOException { reserve(4); buffer.putFloat(v); position += 4; }
+		
+		void align() throws IOException
+		{
+			while( (position & 7) != 0 ){
+				reserve(1);
+				buffer.put((byte)0);
+				position++;
+			}
+		}
+		
+		void putBytes(byte[] values) throws IOException
+		{
+			for( byte v : values ){
+				reserve(1);
+				buffer.put(v);
+			}
+			position += values.length;
+			align();
+		}
+		
+		void putInts(int[] values, int n) throws IOException
+		{
+			writeInts(values, n);
+			align();
+		}
+		
+		// same as putInts without the padding, to write an array in several parts
+		void writeInts(int[] values, int n) throws IOException
+		{
+			int i = 0;
+			while( i < n ){
+				reserve(4);
+				int m = Math.min(n-i, buffer.remaining()/4);
+				buffer.asIntBuffer().put(values, i, m);
+				buffer.position(buffer.position() + 4*m);
+				i += m;
+			}
+			position += 4L*n;
+		}
+		
+		void putFloats(float[] values, int n) throws IOException
+		{
+			int i = 0;
+			while( i < n ){
+				reserve(4);
+				int m = Math.min(n-i, buffer.remaining()/4);
+				buffer.asFloatBuffer().put(values, i, m);
+				buffer.position(buffer.position() + 4*m);
+				i += m;
+			}
+			position += 4L*n;
+			align();
+		}
+		
+		void putDoubles(double[] values, int n) throws IOException
+		{
+			int i = 0;
+			while( i < n ){
+				reserve(8);
+				int m = Math.min(n-i, buffer.remaining()/8);
+				buffer.asDoubleBuffer().put(values, i, m);
+				buffer.position(buffer.position() + 8*m);
+				i += m;
+			}
+			position += 8L*n;
+			align();
+		}
+	}
+	
+	
+	
+	/**
+	 * Little endian reads from a channel, large arrays are read through memory mapped windows of 2^mapShift bytes
+	 */
+	private static class Reader
+	{
+		private final FileChannel channel;
+		private final int mapShift;
+		private final ByteBuffer buffer = ByteBuffer.allocateDirect(1<<16).order(ByteOrder.LITTLE_ENDIAN);
+		private long position = 0; // file position of the next value
+		
+		Reader(FileChannel channel, int mapShift)
+		{
+			this.channel = channel;
+			this.mapShift = mapShift;
+			buffer.limit(0);
+		}
+		
+		long position() {
+			return position;
+		}
+		
+		private void fill(int n) throws IOException
+		{
+			if( buffer.remaining() >= n )
+				return;
+			buffer.clear();
+			channel.position(position);
+			while( buffer.position() < n )
+				if( channel.read(buffer) < 0 )
+					throw new IOException("HWatershed: unexpected end of segment tree file");
+			buffer.flip();
+		}
+		
+		int getInt() throws IOException { fill(4); position += 4; return buffer.getInt(); }
+		long getLong() throws IOException { fill(8); position += 8; return buffer.getLong(); }
+		float getFloat() throws IOException { fill(4); position += 4; return buffer.getFloat(); }
+		
+		// go to the next section, the buffer is refilled from there
+		private void skipTo(long newPosition)
+		{
+			position = (newPosition+7) & ~7L;
+			buffer.limit(0);
+		}
+		
+		byte[] getBytes(int n) throws IOException
+		{
+			byte[] values = new byte[n];
+			ByteBuffer map = channel.map(MapMode.READ_ONLY, position, n);
+			map.get(values);
+			skipTo(position + n);
+			return values;
+		}
+		
+		// window on m values of valueBytes bytes from the i-th value of the current array
+		private ByteBuffer map(int i, int m, int valueBytes) throws IOException
+		{
+			return channel.map(MapMode.READ_ONLY, position + (long)valueBytes*i, (long)valueBytes*m).order(ByteOrder.LITTLE_ENDIAN);
+		}
+		
+		int[] getInts(int n) throws IOException
+		{
+			int[] values = new int[n];
+			int chunk = getChunkLength(mapShift, 4);
+			for(int i=0; i<n; i+=chunk){
+				int m = Math.min(chunk, n-i);
+				map(i, m, 4).asIntBuffer().get(values, i, m);
+			}
+			skipTo(position + 4L*n);
+			return values;
+		}
+		
+		float[] getFloats(int n) throws IOException
+		{
+			float[] values = new float[n];
+			int chunk = getChunkLength(mapShift, 4);
+			for(int i=0; i<n; i+=chunk){
+				int m = Math.min(chunk, n-i);
+				map(i, m, 4).asFloatBuffer().get(values, i, m);
+			}
+			skipTo(position + 4L*n);
+			return values;
+		}
+		
+		double[] getDoubles(int n) throws IOException
+		{
+			double[] values = new double[n];
+			int chunk = getChunkLength(mapShift, 8);
+			for(int i=0; i<n; i+=chunk){
+				int m = Math.min(chunk, n-i);
+				map(i, m, 8).asDoubleBuffer().get(values, i, m);
+			}
+			skipTo(position + 8L*n);
+			return values;
+		}
+	}
+	
+}
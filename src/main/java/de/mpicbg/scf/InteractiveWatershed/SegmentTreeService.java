@@ -0,0 +1,116 @@
+package de.mpicbg.scf.InteractiveWatershed;
+
+
+/*
+Author: Benoit Lombardot, Scientific Computing Facility, MPI-CBG, Dresden  
+
+Copyright 2017 Max Planck Institute of Molecular Cell Biology and Genetics, Dresden, Germany
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following 
+conditions are met:
+
+1 - Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+
+2 - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer 
+in the documentation and/or other materials provided with the distribution.
+
+3 - Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived 
+from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+
+import java.io.File;
+
+import net.imglib2.img.Img;
+import net.imglib2.type.numeric.real.FloatType;
+
+import org.scijava.service.SciJavaService;
+
+import de.mpicbg.scf.InteractiveWatershed.HWatershedLabeling.Connectivity;
+import de.mpicbg.scf.InteractiveWatershed.HWatershedLabeling.Quantization;
+
+
+/**
+ * Keeps the segment trees built by the H-Watershed commands so that the interactive
+ * command and the H-Watershed op do not rebuild the tree of an image they already processed.
+ * Trees are identified by a SHA-256 digest of the input image content and its dimensions, the threshold,
+ * the connectivity and the quantization of their construction. The least recently used trees are dropped when the memory
+ * budget is exceeded. Trees can also be kept as segment tree files in a directory. Both caches are off by default:
+ * each tree is then built, without hashing the input, and is not kept once its users release it.
+ */
+public interface SegmentTreeService extends SciJavaService {
+	
+	/**
+	 * @param input image to segment
+	 * @param threshold threshold of the tree construction
+	 * @param connectivity connectivity of the tree construction
+	 * @return the cached tree of the input if there is one, otherwise a newly built tree, null if the construction was interrupted
+	 */
+	CachedSegmentTree getSegmentTree(Img<FloatType> input, float threshold, Connectivity connectivity);
+	
+	/**
+	 * Same as getSegmentTree(input, threshold, connectivity) for a tree built on quantized intensities, 
+	 * see HWatershedLabeling.Quantization
+	 * @param quantization how input values are converted to flooding levels, NONE truncates them to integers
+	 * @param nLevels number of flooding levels, ignored if quantization is NONE
+	 */
+	CachedSegmentTree getSegmentTree(Img<FloatType> input, float threshold, Connectivity connectivity, Quantization quantization, int nLevels);
+	
+	/**
+	 * @return the cached tree of the input, null if it is not in the cache
+	 */
+	CachedSegmentTree getCachedSegmentTree(Img<FloatType> input, float threshold, Connectivity connectivity);
+	
+	/**
+	 * @return the cached tree of the input built with that quantization, null if it is not in the cache
+	 */
+	CachedSegmentTree getCachedSegmentTree(Img<FloatType> input, float threshold, Connectivity connectivity, Quantization quantization, int nLevels);
+	
+	/**
+	 * @param memoryBudget largest memory in bytes used by the cached trees, least recently used trees are dropped to stay below it.
+	 * 0 (the default) disables the memory cache
+	 */
+	void setMemoryBudget(long memoryBudget);
+	
+	long getMemoryBudget();
+	
+	/**
+	 * @return the memory in bytes currently used by the cached trees 
+	 */
+	long getMemoryUsed();
+	
+	/**
+	 * Remove all the trees from the cache
+	 */
+	void clear();
+	
+	/**
+	 * Keep the trees built by the service as segment tree files, see SegmentTreeFile, so that they are reopened without 
+	 * construction when they are not in memory, for instance in a later session.
+	 * @param directory directory of the segment tree files, created if needed, null to disable the files (the default)
+	 */
+	void setDiskCacheDirectory(File directory);
+	
+	File getDiskCacheDirectory();
+	
+	/**
+	 * @param diskCacheLimit largest total size in bytes of the segment tree files, the least recently used files are deleted
+	 * to stay below it and trees larger than the limit are not saved
+	 */
+	void setDiskCacheLimit(long diskCacheLimit);
+	
+	long getDiskCacheLimit();
+	
+	/**
+	 * Delete the segment tree files of the disk cache directory
+	 */
+	void clearDiskCache();
+	
+}
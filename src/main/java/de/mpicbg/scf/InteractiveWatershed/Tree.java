@@ -26,32 +26,45 @@ ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSI
 */
 
 
-
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+
 
+/**
+ * Binary tree stored as primitive arrays: parent, first and second child of each node (-1 if none) 
+ * and one array per node feature. Roots are their own parent. Features are set as double arrays and 
+ * compact() stores them as int or float arrays when this does not change their values. A compacted
+ * feature is expanded back to a double array when getFeature or getFeatures is called, so that writes to the
+ * returned arrays are kept in the tree. Read only users call getFeatureCopy instead, it leaves the feature compacted.
+ * The Node objects returned by getNodes, getRoots and getLeaves are views created on first use.
+ */
 public class Tree {
 	
-	Map<Integer, Node> nodes;
-	List<Node> roots;
-	List<Node> leaves;
 	int numNodes=0;
+	int[] parent;
+	int[] child0;
+	int[] child1;
 	HashMap<String, double[]> features;
+	HashMap<String, Object> compactFeatures; // float[] or int[] per feature, for the features not in features
+	int featureVersion = 0; // incremented each time a feature is set
 	
+	// node view, built on demand
+	Map<Integer, Node> nodes;
+	List<Node> roots;
+	List<Node> leaves;
 	
-	boolean updated=false;
 	
 	/**
 	 * build an empty tree
 	 */
 	public Tree(){
-		this.numNodes = 0;
-		this.nodes = new HashMap<Integer, Node>();
-		this.roots = new ArrayList<Node>();
-		this.leaves = new ArrayList<Node>();
-		this.features = new HashMap<String,double[]>();
+		this(new int[0], new int[0], new int[0]);
 	}
 	
 
@@ -65,30 +78,33 @@ public class Tree {
 	public Tree( int[] parent, int[][] children){
 		
 		this.numNodes = parent.length;
-		this.nodes = new HashMap<Integer, Node>(); 
-		this.roots = new ArrayList<Node>();
-		this.leaves = new ArrayList<Node>();
-		this.features = new HashMap<String,double[]>();
-		
-		for( int i=0; i<numNodes; i++)
-			nodes.put(i, new Node(i) );
-		
+		this.parent = Arrays.copyOf(parent, numNodes);
+		this.child0 = new int[numNodes];
+		this.child1 = new int[numNodes];
 		for( int i=0; i<numNodes; i++)
 		{
-			Node node = nodes.get(i);
-			int nodeParent = parent[i];
-			if( nodeParent != i )
-				node.setParent( nodes.get(nodeParent) );
-			
-			List<Node> childrenList = new ArrayList<Node>();
-			for( int c : children[i] )
-				if( c>=0 )
-					childrenList.add(nodes.get(c));
-			node.setChildren(childrenList);
+			child0[i] = children[i].length>0 ? children[i][0] : -1;
+			child1[i] = children[i].length>1 ? children[i][1] : -1;
 		}
+		this.features = new HashMap<String,double[]>();
+		this.compactFeatures = new HashMap<String,Object>();
+	}
+	
+	
+	/**
+	 * @param parent, parent of node i is given by parent[i], root point to themselves
+	 * @param child0, first child of node i, -1 if none
+	 * @param child1, second child of node i, -1 if none
+	 * the arrays are used as is, not copied
+	 */
+	public Tree( int[] parent, int[] child0, int[] child1){
 		
-		update();
-		
+		this.numNodes = parent.length;
+		this.parent = parent;
+		this.child0 = child0;
+		this.child1 = child1;
+		this.features = new HashMap<String,double[]>();
+		this.compactFeatures = new HashMap<String,Object>();
 	}
 	
 	
@@ -105,24 +121,75 @@ public class Tree {
 	}
 	
 	
-	protected void update()
+	public boolean isLeaf(int node)
+	{
+		return child0[node]<0 && child1[node]<0;
+	}
+	
+	
+	public boolean isRoot(int node)
+	{
+		return parent[node]==node;
+	}
+	
+	
+	public int getParent(int node)
+	{
+		return parent[node];
+	}
+	
+	
+	/**
+	 * @return child i (0 or 1) of node, -1 if there is none
+	 */
+	public int getChild(int node, int i)
+	{
+		return i==0 ? child0[node] : child1[node];
+	}
+	
+	
+	/**
+	 * @return the ids of the root nodes in increasing order
+	 */
+	public int[] getRootIds()
+	{
+		int n = 0;
+		for( int i=0; i<numNodes; i++)
+			if( parent[i]==i )
+				n++;
+		int[] rootIds = new int[n];
+		n = 0;
+		for( int i=0; i<numNodes; i++)
+			if( parent[i]==i )
+				rootIds[n++] = i;
+		return rootIds;
+	}
+	
+	
+	protected synchronized void update()
 	{
-		if( updated )
+		if( nodes != null )
 			return;
 		
-		for(Node node : nodes.values() )
+		nodes = new HashMap<Integer, Node>();
+		for( int i=0; i<numNodes; i++)
+			nodes.put(i, new Node(i) );
+		
+		roots = new ArrayList<Node>();
+		leaves = new ArrayList<Node>();
+		for( int i=0; i<numNodes; i++)
 		{
-			if( isRoot(node) )
-				roots.add(node);
-			if( isLeaf(node) )
-				leaves.add(node);
+			if( isRoot(i) )
+				roots.add(nodes.get(i));
+			if( isLeaf(i) )
+				leaves.add(nodes.get(i));
 		}
-		updated=true;
 	}
 	
 	
 	
 	public Map<Integer, Node> getNodes() {
+		update();
 		return nodes;
 	}
 
@@ -144,49 +211,203 @@ public class Tree {
 	}
 	
 	
-	public HashMap<String,double[]> getFeatures() { 
+	/**
+	 * @return the live map of the features, changes to it and to its arrays are kept in the tree. All compacted
+	 * features are expanded back to double arrays that stay in the tree, which undoes the compaction
+	 * @deprecated use getFeatureNames with getFeatureCopy to read the features, and setFeature to change them
+	 */
+	@Deprecated
+	public synchronized HashMap<String,double[]> getFeatures() { 
+		for( String feat : new ArrayList<String>(compactFeatures.keySet()) )
+			getFeature(feat);
 		return features; 
 	}
 	
 	
-	public double[] getFeature(String feat) {
+	public synchronized Set<String> getFeatureNames() {
+		Set<String> names = new HashSet<String>(features.keySet());
+		names.addAll(compactFeatures.keySet());
+		return Collections.unmodifiableSet(names);
+	}
+	
+	
+	/**
+	 * @return the stored values of a feature, null if there is no such feature. A compacted feature is expanded 
+	 * back to a double array that replaces it, so that changes to the returned array are kept in the tree
+	 */
+	public synchronized double[] getFeature(String feat) {
+		Object column = compactFeatures.remove(feat);
+		if( column != null )
+			features.put(feat, toDoubles(column));
 		return features.get(feat);
 	}
 	
 	
-	public void setFeature(String feat, double[] value) {
+	/**
+	 * @return a copy of the values of a feature, null if there is no such feature. Compacted features stay compacted
+	 */
+	public synchronized double[] getFeatureCopy(String feat) {
+		Object column = getColumn(feat);
+		if( column == null )
+			return null;
+		return column instanceof double[] ? ((double[]) column).clone() : toDoubles(column);
+	}
+	
+	
+	// stored array of a feature: double[], float[] or int[], null if there is no such feature
+	synchronized Object getColumn(String feat) {
+		double[] values = features.get(feat);
+		return values != null ? values : compactFeatures.get(feat);
+	}
+	
+	
+	// copy of a float[] or int[] column as doubles
+	static double[] toDoubles(Object column)
+	{
+		if( column instanceof float[] ){
+			float[] values = (float[]) column;
+			double[] copy = new double[values.length];
+			for( int i=0; i<values.length; i++)
+				copy[i] = values[i];
+			return copy;
+		}
+		int[] values = (int[]) column;
+		double[] copy = new double[values.length];
+		for( int i=0; i<values.length; i++)
+			copy[i] = values[i];
+		return copy;
+	}
+	
+	
+	/**
+	 * Set the values of a feature. Users caching values computed from the features, as AttributeCut, compute them
+	 * again after a feature is set: set the feature again after changing its values in place
+	 */
+	public synchronized void setFeature(String feat, double[] value) {
+		compactFeatures.remove(feat);
 		features.put(feat, value);
+		featureVersion++;
 	}
 	
 	
-	public int[] getParentsAsArray()
+	public synchronized void setFeature(String feat, float[] value) {
+		features.remove(feat);
+		compactFeatures.put(feat, value);
+		featureVersion++;
+	}
+	
+	
+	public synchronized void setFeature(String feat, int[] value) {
+		features.remove(feat);
+		compactFeatures.put(feat, value);
+		featureVersion++;
+	}
+	
+	
+	/**
+	 * @return a number that changes each time a feature is set
+	 */
+	public synchronized int getFeatureVersion() {
+		return featureVersion;
+	}
+	
+	
+	/**
+	 * Drop the node slots from numNodes on and store each double feature as an int or a float array 
+	 * if all its values are exactly represented in that type. Node views are rebuilt on next use.
+	 */
+	public synchronized void compact(int numNodes)
 	{
-		int[] parent = new int[this.numNodes];
-		for(Node node : nodes.values() )
-		{	
-			int id = node.getId();
-			if( Tree.isRoot(node) )
-			{
-				parent[id] = id;
-			}
+		if( numNodes < this.numNodes ){
+			this.numNodes = numNodes;
+			parent = Arrays.copyOf(parent, numNodes);
+			child0 = Arrays.copyOf(child0, numNodes);
+			child1 = Arrays.copyOf(child1, numNodes);
+		}
+		for( String feat : getFeatureNames() )
+		{
+			Object column = compactColumn(getColumn(feat), numNodes);
+			if( column instanceof double[] )
+				setFeature(feat, (double[]) column);
+			else if( column instanceof float[] )
+				setFeature(feat, (float[]) column);
 			else
-			{
-				parent[id] = node.getParent().getId();
-			}
+				setFeature(feat, (int[]) column);
 		}
-			
-		return parent;
+		nodes = null;
+		roots = null;
+		leaves = null;
 	}
 	
 	
+	// the column truncated to n values, as an int or float array if no value changes
+	private static Object compactColumn(Object column, int n)
+	{
+		if( column instanceof float[] )
+			return ((float[]) column).length > n ? Arrays.copyOf((float[]) column, n) : column;
+		if( column instanceof int[] )
+			return ((int[]) column).length > n ? Arrays.copyOf((int[]) column, n) : column;
+		
+		final double[] values = (double[]) column;
+		n = Math.min(n, values.length);
+		boolean isInt = true;
+		boolean isFloat = true;
+		for( int i=0; i<n && (isInt || isFloat); i++)
+		{
+			final double v = values[i];
+			isInt &= (int) v == v;
+			isFloat &= (float) v == v;
+		}
+		if( isInt ){
+			int[] intValues = new int[n];
+			for( int i=0; i<n; i++)
+				intValues[i] = (int) values[i];
+			return intValues;
+		}
+		if( isFloat ){
+			float[] floatValues = new float[n];
+			for( int i=0; i<n; i++)
+				floatValues[i] = (float) values[i];
+			return floatValues;
+		}
+		return values.length > n ? Arrays.copyOf(values, n) : values;
+	}
+	
+	
+	/**
+	 * @return an estimate of the memory used by the node arrays and the feature arrays
+	 */
+	public synchronized long getSizeInBytes()
+	{
+		long size = 3L * 4 * parent.length;
+		for( String feat : getFeatureNames() )
+		{
+			Object column = getColumn(feat);
+			if( column instanceof double[] )
+				size += 8L * ((double[]) column).length;
+			else if( column instanceof float[] )
+				size += 4L * ((float[]) column).length;
+			else
+				size += 4L * ((int[]) column).length;
+		}
+		return size;
+	}
+	
+	
+	public int[] getParentsAsArray()
+	{
+		return Arrays.copyOf(parent, numNodes);
+	}
+	
+	
+	/**
+	 * View of a tree node, parent and children are read from and written to the tree arrays 
+	 */
 	protected class Node
 	{
 		Integer id;
-		Node parent;
-		List<Node> children;
 		boolean flag= false;
 		float decoration=0;
-		int labelRoot = 0;
 		
 		public float getDecoration() {
 			return decoration;
@@ -199,16 +420,16 @@ public class Tree {
 		public Node(int id)
 		{
 			this.id = id;
-			this.parent = null;
-			this.children = new ArrayList<Node>();
 		}
 		
 		public Node getParent() {
-			return parent;
+			if( parent[id]==id )
+				return null;
+			return nodes.get(parent[id]);
 		}
 		
-		public void setParent(Node parent) {
-			this.parent = parent;
+		public void setParent(Node parentNode) {
+			parent[id] = parentNode==null ? id : parentNode.getId();
 		}
 		
 		public boolean getFlag() {
@@ -224,11 +445,17 @@ public class Tree {
 		}
 		
 		public List<Node> getChildren() {
+			List<Node> children = new ArrayList<Node>(2);
+			if( child0[id]>=0 )
+				children.add(nodes.get(child0[id]));
+			if( child1[id]>=0 )
+				children.add(nodes.get(child1[id]));
 			return children;
 		}
 		
 		public void setChildren(List<Node> children) {
-			this.children = children;
+			child0[id] = children.size()>0 ? children.get(0).getId() : -1;
+			child1[id] = children.size()>1 ? children.get(1).getId() : -1;
 		}
 	}
 	
@@ -0,0 +1,755 @@
+package de.mpicbg.scf.InteractiveWatershed;
+
+
+/*
+Author: Benoit Lombardot, Scientific Computing Facility, MPI-CBG, Dresden  
+
+Copyright 2017 Max Planck Institute of Molecular Cell Biology and Genetics, Dresden, Germany
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following 
+conditions are met:
+
+1 - Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+
+2 - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer 
+in the documentation and/or other materials provided with the distribution.
+
+3 - Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived 
+from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.imglib2.RandomAccess;
+import net.imglib2.img.Img;
+import net.imglib2.type.numeric.integer.IntType;
+
+import de.mpicbg.scf.imgtools.image.neighborhood.ImageConnectivity;
+import de.mpicbg.scf.imgtools.ui.visualisation.ProgressDialog;
+
+import de.mpicbg.scf.InteractiveWatershed.HWatershedLabeling.Connectivity;
+
+
+/**
+ * Label map and segment tree under construction, shared by the tree engines.
+ * 
+ * The builder labels the regional maxima of the label map, which are the leaves of the tree, merges the trees meeting
+ * at a saddle, measures the region attributes and turns the label map into the leaf label map once the engine is done.
+ * During the construction a pixel with value v>=min is not flooded yet, levelMin<=v<min is below threshold, 
+ * levelMin-1 is out of bound, levelMin-2L is queued with leaf L and levelMin-1-2L is flooded with leaf L. A pixel
+ * visited by a search keeps its level in the label map as v+visitOffset, above max, until the search is done. 
+ * So the construction needs no array over the pixels besides the label map: with a cell label map only the cells
+ * in use are in memory. The other memory is the queue of the engine, the tree arrays of size the number of leaves 
+ * and, for array backed label maps which are in memory anyway, a mask of the border pixels of 1 bit per pixel.
+ */
+class TreeBuilder {
+	
+	static final int PROGRESS_STEP = 4096;
+	
+	// label map and flooding parameters
+	final Img<IntType> labelMap;
+	final FlatIntArray labelArray; // null if the label map is not backed by primitive arrays
+	final int min; // lowest flooded level
+	final int max;
+	final int levelMin; // lowest level of the label map, leaf codes are below
+	final int visitOffset; // added to the level of the pixels visited by a search
+	final long[] dimensions;
+	final long[][] neigh;
+	final long[] n_offset;
+	final long[] borderMask; // pixels with a neighbor out of the image, null if labelArray is null
+	final boolean computeAttributes;
+	final int numThreads;
+	final ExecutorService executor;
+	private final IntensityQuantizer quantizer;
+	private final double minValue;
+	
+	// progress of the construction
+	long pixToProcessCount;
+	final AtomicLong pixProcessed = new AtomicLong();
+	private int prevPercentDone = 0;
+	volatile boolean cancelled = false;
+	
+	// leaves, leafLevel[L] is the level of leaf L
+	int nLeaves;
+	int[] leafLevel;
+	private long[] plateau; // pixels of the last plateau explored by exploreRegionalMaximum
+	private int plateauSize;
+	
+	// tree under construction
+	int[] parent;
+	int[] child0; // first and second child of each node, -1 if none
+	int[] child1;
+	double[] hCriteria;
+	double[] Imax;
+	private UnionFind components; // nodes of a same tree are in the same set
+	private int[] componentRoot; // root of the tree of each set representative
+	
+	// region attributes, only allocated if computeAttributes is set 
+	private long[] leafArea; // pixels flooded with each leaf
+	private double[] leafSum;
+	private double[] leafSumSq;
+	private long[][] leafBBoxMin; // [dimension][leaf]
+	private long[][] leafBBoxMax;
+	private long[] componentCount; // pixels flooded in the tree of each set representative
+	private double[] componentSum;
+	private double[] volume;
+	
+	
+	/**
+	 * @param labelMap flooding level of each pixel, turned into the leaf label map
+	 * @param min lowest flooded level
+	 * @param max highest level of the label map
+	 * @param levelMin lowest level of the label map
+	 * @param minValue value above which the dynamics and the volumes of the roots are measured
+	 * @param quantizer value of the levels, null if the levels are the values
+	 */
+	TreeBuilder(Img<IntType> labelMap, int min, int max, int levelMin, double minValue, IntensityQuantizer quantizer, 
+			Connectivity connectivity, boolean computeAttributes, int numThreads, ExecutorService executor)
+	{
+		this.labelMap = labelMap;
+		this.min = min;
+		this.max = max;
+		this.levelMin = levelMin;
+		this.minValue = minValue;
+		this.quantizer = quantizer;
+		this.computeAttributes = computeAttributes;
+		this.numThreads = numThreads;
+		this.executor = executor;
+		visitOffset = Math.max(1, max-min+1);
+		if( (long)max + visitOffset > Integer.MAX_VALUE )
+			throw new IllegalArgumentException("HWatershed: the level range ("+levelMin+", "+max+") is too large, use a quantization of the input values");
+		
+		final int ndim = labelMap.numDimensions();
+		dimensions = new long[ndim];
+		labelMap.dimensions(dimensions);
+		neigh = ImageConnectivity.getConnectivityPos(ndim, connectivity.getConn() );
+		n_offset = HWatershedLabeling.getFlatOffsets(neigh, dimensions);
+		labelArray = FlatIntArray.wrap(labelMap);
+		borderMask = labelArray != null ? HWatershedLabeling.getBorderMask(dimensions, neigh) : null;
+	}
+	
+	
+	
+	// intensity of a flooding level
+	double getLevelValue(int level)
+	{
+		if( quantizer == null )
+			return level;
+		return quantizer.getValue(level);
+	}
+	
+	
+	
+	/**
+	 * In a single pass: find the local maxima (8/26 connected plateaus with no higher neighbor), label them as the leaves
+	 * in the label map and queue the seed pixels in scan order. No seed image is needed.
+	 * Pixels ahead of the scan below levelMin-1 are maxima pixels labeled before, pixels above max are pixels of a plateau
+	 * explored before that is not a maximum: their level is restored when the scan reaches them.
+	 * The tree arrays are allocated for the leaves found.
+	 * @param seeds queue receiving the seed pixels at their level, null if the engine does not need them
+	 */
+	void labelRegionalMaxima(HierarchicalFIFO seeds)
+	{
+		final int ndim = dimensions.length;
+		final long[][] maxNeigh = ImageConnectivity.getConnectivityPos(ndim, ImageConnectivity.Connectivity.FULL );
+		final long[] maxOffset = HWatershedLabeling.getFlatOffsets(maxNeigh, dimensions);
+		final RandomAccess<IntType> ra = labelArray == null ? labelMap.randomAccess() : null;
+		final long[] pos = new long[ndim];
+		leafLevel = new int[1024];
+		nLeaves = 0;
+		final long size = labelMap.size();
+		pixToProcessCount = 0;
+		for(long idx=0; idx<size; idx++)
+		{
+			int code = getCode(idx, ra, pos);
+			if( code >= levelMin-1 && code < min ) // below threshold
+				continue;
+			
+			pixToProcessCount++;
+			if( code > max ) // explored before
+			{
+				setCode(idx, code-visitOffset, ra, pos);
+				continue;
+			}
+			if( code >= min )
+			{
+				if( !exploreRegionalMaximum(idx, code, maxNeigh, maxOffset, ra) )
+					continue;
+				
+				nLeaves++;
+				// labels are stored below levelMin-1 in the label map, check that they fit in an int 
+				if( (long)levelMin - 1 - 2L*nLeaves < Integer.MIN_VALUE )
+					throw new IllegalArgumentException("HWatershed: the image minimum ("+levelMin+") is too low to encode "+nLeaves+" labels, use a quantization of the input values");
+				if( nLeaves == leafLevel.length )
+					leafLevel = Arrays.copyOf(leafLevel, 2*nLeaves);
+				leafLevel[nLeaves] = code;
+				for(int i=0; i<plateauSize; i++)
+					setCode(plateau[i], levelMin-2*nLeaves, ra, pos);
+				code = levelMin-2*nLeaves;
+			}
+			
+			// seed pixel
+			if( seeds != null )
+				seeds.add( idx, leafLevel[(levelMin - code) >> 1] );
+		}
+		plateau = null;
+		
+		initTree();
+	}
+	
+	
+	
+	/**
+	 * Explore the plateau of pixels at level v containing the pixel at scan position start (8/26 connectivity).
+	 * The plateau pixels are kept in plateau[0..plateauSize-1]. If the plateau is not a maximum its pixels ahead of
+	 * the scan stay marked as visited.
+	 * @return true if no pixel of the plateau has a higher neighbor
+	 */
+	private boolean exploreRegionalMaximum(long start, int v, long[][] maxNeigh, long[] maxOffset, RandomAccess<IntType> ra)
+	{
+		final long[] pos = new long[dimensions.length];
+		final long[] nPos = new long[dimensions.length];
+		if( plateau == null )
+			plateau = new long[64];
+		
+		// most pixels have a higher neighbor, check it before exploring the plateau
+		if( hasHigherNeighbor(start, v, maxNeigh, maxOffset, ra, pos, nPos) )
+			return false;
+		
+		// the plateau list is also the queue of the exploration
+		boolean isMax = true;
+		plateau[0] = start;
+		plateauSize = 1;
+		setCode(start, v+visitOffset, ra, nPos);
+		for(int k=0; k<plateauSize; k++)
+		{
+			final long pIdx = plateau[k];
+			final boolean isBorder = isBorder(pIdx);
+			if( isBorder )
+				HWatershedLabeling.getPosFromIdx(pIdx, pos, dimensions);
+			for(int i=0; i<maxOffset.length; i++)
+			{
+				if( isBorder && !HWatershedLabeling.isInBound(pos, maxNeigh[i], dimensions) )
+					continue;
+				final long nIdx = pIdx + maxOffset[i];
+				final int nVal = getCode(nIdx, ra, nPos);
+				if( isHigher(nVal, v) ){
+					isMax = false;
+					continue;
+				}
+				if( nVal == v ){
+					setCode(nIdx, v+visitOffset, ra, nPos);
+					if( plateauSize == plateau.length )
+						plateau = Arrays.copyOf(plateau, 2*plateauSize);
+					plateau[plateauSize++] = nIdx;
+				}
+			}
+		}
+		
+		// the scan restores the pixels ahead, the others are restored here
+		if( !isMax )
+			for(int k=0; k<plateauSize; k++)
+				if( plateau[k] <= start )
+					setCode(plateau[k], v, ra, nPos);
+		return isMax;
+	}
+	
+	
+	
+	private boolean hasHigherNeighbor(long pIdx, int v, long[][] maxNeigh, long[] maxOffset, RandomAccess<IntType> ra, long[] pos, long[] nPos)
+	{
+		final boolean isBorder = isBorder(pIdx);
+		if( isBorder )
+			HWatershedLabeling.getPosFromIdx(pIdx, pos, dimensions);
+		for(int i=0; i<maxOffset.length; i++)
+		{
+			if( isBorder && !HWatershedLabeling.isInBound(pos, maxNeigh[i], dimensions) )
+				continue;
+			if( isHigher(getCode(pIdx + maxOffset[i], ra, nPos), v) )
+				return true;
+		}
+		return false;
+	}
+	
+	
+	
+	// true if a pixel of label map value code is higher than level v, pixels of a maximum labeled before can only be higher 
+	private boolean isHigher(int code, int v)
+	{
+		if( code > max )
+			return code-visitOffset > v;
+		return code > v || code < levelMin-1;
+	}
+	
+	
+	
+	// allocate the tree arrays, the leaves are the only nodes
+	private void initTree()
+	{
+		hCriteria = new double[2*nLeaves];
+		Imax = new double[2*nLeaves];
+		parent = new int[2*nLeaves];
+		child0 = new int[2*nLeaves];
+		child1 = new int[2*nLeaves];
+		Arrays.fill(child0, -1);
+		Arrays.fill(child1, -1);
+		for(int i=0; i<parent.length; i++)
+			parent[i]=i;
+		for(int leaf=1; leaf<=nLeaves; leaf++)
+			Imax[leaf] = getLevelValue( leafLevel[leaf] );
+		components = new UnionFind(2*nLeaves);
+		componentRoot = new int[2*nLeaves];
+		for(int i=0; i<componentRoot.length; i++)
+			componentRoot[i] = i;
+		if( computeAttributes )
+		{
+			final int ndim = dimensions.length;
+			leafArea = new long[nLeaves+1];
+			leafSum = new double[nLeaves+1];
+			leafSumSq = new double[nLeaves+1];
+			leafBBoxMin = new long[ndim][nLeaves+1];
+			leafBBoxMax = new long[ndim][nLeaves+1];
+			for(int d=0; d<ndim; d++){
+				Arrays.fill(leafBBoxMin[d], Long.MAX_VALUE);
+				Arrays.fill(leafBBoxMax[d], Long.MIN_VALUE);
+			}
+			componentCount = new long[2*nLeaves];
+			componentSum = new double[2*nLeaves];
+			volume = new double[2*nLeaves];
+		}
+	}
+	
+	
+	
+	// true if a neighbor of the pixel at a flat index can be out of the image
+	boolean isBorder(long idx)
+	{
+		return borderMask == null || ( borderMask[(int)(idx>>>6)] & (1L<<idx) ) != 0;
+	}
+	
+	
+	
+	// label map value of the pixel at a flat index
+	int getCode(long idx, RandomAccess<IntType> ra, long[] pos)
+	{
+		if( labelArray != null )
+			return labelArray.get(idx);
+		HWatershedLabeling.getPosFromIdx(idx, pos, dimensions);
+		ra.setPosition(pos);
+		return ra.get().get();
+	}
+	
+	
+	
+	// write a label map value at a flat index
+	void setCode(long idx, int code, RandomAccess<IntType> ra, long[] pos)
+	{
+		if( labelArray != null ){
+			labelArray.set(idx, code);
+			return;
+		}
+		HWatershedLabeling.getPosFromIdx(idx, pos, dimensions);
+		ra.setPosition(pos);
+		ra.get().set(code);
+	}
+	
+	
+	
+	/**
+	 * Read the construction progress and update the progress bar
+	 * @return false if the user cancelled the processing
+	 */
+	boolean updateProgress()
+	{
+		final int percentDone = (int) ((pixProcessed.get()*100)/pixToProcessCount);
+		if( percentDone != prevPercentDone ){
+			prevPercentDone = percentDone;
+			ProgressDialog.setProgress( percentDone*0.01f );
+			if (ProgressDialog.wasCancelled())
+				cancelled = true;
+		}
+		return !cancelled;
+	}
+	
+	
+	
+	/**
+	 * Create a new node joining the trees of pNode and nNode which are meeting at a saddle of value pVal
+	 * The node with the smallest dynamics is merged with the first node of the other tree having a higher dynamics
+	 * @param newNode id of the node to create
+	 * @return the root of the merged tree
+	 */
+	int mergeAtSaddle(int newNode, int pNode, int pLeaf, int nNode, int nLeaf, double pVal)
+	{
+		double Hn = Imax[nNode]-pVal;
+		hCriteria[nNode] = Hn;
+		double Hp = Imax[pNode]-pVal;
+		hCriteria[pNode] = Hp;
+
+		//merge the node with smallest H with first neighbor node that has higher dynamics
+		int node1, node2;
+		if (Hp == Hn){
+			node1 = pNode;
+			node2 = nNode;
+		}
+		else if ( Hp < Hn ){
+			node1 = pNode;
+			node2 = HWatershedLabeling.findMergeNode(nLeaf, Hp, parent, child0, child1, hCriteria);
+		}
+		else{ // if( Hn <= Hp )
+			node1 = nNode;
+			node2 = HWatershedLabeling.findMergeNode(pLeaf, Hn, parent, child0, child1, hCriteria);
+		}
+		HWatershedLabeling.mergeNodes(node1, node2, newNode, parent, child0, child1);
+
+		Imax[newNode]= Math.max(Imax[node1], Imax[node2]);
+		hCriteria[newNode] =  Math.max(hCriteria[node1], hCriteria[node2]); //Imax[newNode]-pVal;
+		
+		// the volumes are measured as the dynamics, on the pixels flooded in each tree before the saddle
+		long count = 0;
+		double sum = 0;
+		if( volume != null )
+		{
+			final int repP = components.find(pNode);
+			final int repN = components.find(nNode);
+			volume[pNode] = componentSum[repP] - pVal*componentCount[repP];
+			volume[nNode] = componentSum[repN] - pVal*componentCount[repN];
+			volume[newNode] = Math.max(volume[node1], volume[node2]);
+			count = componentCount[repP] + componentCount[repN];
+			sum = componentSum[repP] + componentSum[repN];
+		}
+		
+		// node1 is a root, newNode becomes the root unless node2 had a parent, in which case the root of node2 tree remains 
+		int root = parent[newNode]==newNode ? newNode : (node1==pNode ? nNode : pNode);
+		int rep = components.union(pNode, nNode);
+		rep = components.union(rep, newNode);
+		componentRoot[rep] = root;
+		if( volume != null ){
+			componentCount[rep] = count;
+			componentSum[rep] = sum;
+		}
+		
+		return root;
+	}
+	
+	
+	
+	/**
+	 * @return the root of the tree containing node
+	 */
+	int findTreeRoot(int node)
+	{
+		return componentRoot[ components.find(node) ];
+	}
+	
+	
+	
+	// add a flooded pixel to the attributes of its leaf, pos is the pixel position
+	void addToLeafAttributes(int leaf, double val, long[] pos)
+	{
+		leafArea[leaf]++;
+		leafSum[leaf] += val;
+		leafSumSq[leaf] += val*val;
+		for(int d=0; d<pos.length; d++)
+		{
+			if( pos[d] < leafBBoxMin[d][leaf] )
+				leafBBoxMin[d][leaf] = pos[d];
+			if( pos[d] > leafBBoxMax[d][leaf] )
+				leafBBoxMax[d][leaf] = pos[d];
+		}
+	}
+	
+	
+	
+	// add count flooded pixels of intensity sum to the tree of leaf
+	void addToComponent(int leaf, long count, double sum)
+	{
+		final int rep = components.find(leaf);
+		componentCount[rep] += count;
+		componentSum[rep] += sum;
+	}
+	
+	
+	
+	/**
+	 * The volume of the roots is measured above the lowest flooded value, as their dynamics
+	 */
+	void setRootVolumes()
+	{
+		if( volume == null )
+			return;
+		for(int node=1; node<parent.length; node++)
+		{
+			if( parent[node]!=node )
+				continue;
+			final int rep = components.find(node);
+			if( componentCount[rep] > 0 )
+				volume[node] = componentSum[rep] - minValue*componentCount[rep];
+		}
+	}
+	
+	
+	
+	/**
+	 * Number the internal nodes of each tree consecutively in creation order, trees being ordered by their
+	 * smallest leaf. The numbering does not depend on the order in which the trees were flooded.
+	 */
+	void renumberInternalNodes(int lastNode)
+	{
+		final int[] treeOf = new int[parent.length];
+		Arrays.fill(treeOf, -1);
+		int nTrees = 0;
+		for(int leaf=1; leaf<=nLeaves; leaf++)
+		{
+			int rep = components.find(leaf);
+			if( treeOf[rep] < 0 )
+				treeOf[rep] = nTrees++;
+		}
+		final int[] nextId = new int[nTrees+1];
+		for(int node=nLeaves+1; node<=lastNode; node++)
+			nextId[ treeOf[components.find(node)]+1 ]++;
+		nextId[0] = nLeaves+1;
+		for(int t=0; t<nTrees; t++)
+			nextId[t+1] += nextId[t];
+		
+		final int[] newId = new int[parent.length];
+		boolean identity = true;
+		for(int node=0; node<parent.length; node++)
+		{
+			if( node>nLeaves && node<=lastNode )
+				newId[node] = nextId[ treeOf[components.find(node)] ]++;
+			else
+				newId[node] = node;
+			identity &= newId[node]==node;
+		}
+		if( identity )
+			return;
+		
+		final int[] parent2 = new int[parent.length];
+		final int[] child0_2 = new int[parent.length];
+		final int[] child1_2 = new int[parent.length];
+		final double[] hCriteria2 = new double[parent.length];
+		final double[] Imax2 = new double[parent.length];
+		for(int node=0; node<parent.length; node++)
+		{
+			final int id = newId[node];
+			parent2[id] = newId[parent[node]];
+			child0_2[id] = child0[node]<0 ? -1 : newId[child0[node]];
+			child1_2[id] = child1[node]<0 ? -1 : newId[child1[node]];
+			hCriteria2[id] = hCriteria[node];
+			Imax2[id] = Imax[node];
+		}
+		if( volume != null ){
+			final double[] volume2 = new double[parent.length];
+			for(int node=0; node<parent.length; node++)
+				volume2[newId[node]] = volume[node];
+			volume = volume2;
+		}
+		parent = parent2;
+		child0 = child0_2;
+		child1 = child1_2;
+		hCriteria = hCriteria2;
+		Imax = Imax2;
+		components = null;
+		componentRoot = null;
+	}
+	
+	
+	
+	/**
+	 * Finish the construction once the engine is done: measure the dynamics of the roots above minValue, turn the label
+	 * map into the leaf label map and create the tree with its features. The tree arrays are released.
+	 */
+	Tree createTree()
+	{
+		// for root nodes adjust there height to Imax(rootLabel)-min. 
+		for(int i=0 ; i<parent.length; i++)
+		{
+			if( hCriteria[i]>0 & parent[i]==i)
+			{
+				hCriteria[i] = Imax[i]-minValue;
+			}
+		}
+		
+		//////////////////////////////////////////////////////////////////////////////////
+		// final pass on the label image /////////////////////////////////////////////////
+		ProgressDialog.setStatusText("HWatershed: final pass");
+		
+		// convert the codes to the label image (label L is stored with value levelMin-1-2L)
+		decodeLabels();
+		
+		Tree tree = new Tree(parent, child0, child1);
+		tree.setFeature("dynamics", hCriteria );
+		tree.setFeature("Imax", Imax );
+		if( computeAttributes )
+			setAttributeFeatures(tree);
+		tree.compact( getNumUsedNodes() );
+		
+		parent = null; child0 = null; child1 = null; hCriteria = null; Imax = null;
+		components = null; componentRoot = null;
+		leafArea = null; leafSum = null; leafSumSq = null;
+		leafBBoxMin = null; leafBBoxMax = null;
+		componentCount = null; componentSum = null; volume = null;
+		return tree;
+	}
+	
+	
+	
+	/**
+	 * Replace the label codes of the flooding by the leaf labels, 0 for pixels that were not flooded.
+	 * Array backed label maps are converted by numThreads threads
+	 */
+	private void decodeLabels()
+	{
+		final int base = levelMin;
+		final FlatIntArray labels = labelArray;
+		if( labels == null )
+		{
+			for( IntType p : labelMap )
+			{
+				final int code = p.get();
+				p.set( code>=(base-1) ? 0 : (base-code)>>1 );
+			}
+			return;
+		}
+		
+		final long size = labels.size();
+		final int nChunks = (int) Math.max(1, Math.min(numThreads, size/PROGRESS_STEP));
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for(int c=0; c<nChunks; c++)
+		{
+			final long start = size*c/nChunks;
+			final long end = size*(c+1)/nChunks;
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					// work on the storage arrays directly
+					final int planeSize = labels.getPlane(0).length;
+					long idx = start;
+					while( idx < end )
+					{
+						final int[] plane = labels.getPlane( (int)(idx/planeSize) );
+						final int i0 = (int)(idx%planeSize);
+						final int i1 = (int) Math.min(planeSize, i0 + end - idx);
+						for(int i=i0; i<i1; i++)
+						{
+							final int code = plane[i];
+							plane[i] = code>=(base-1) ? 0 : (base-code)>>1;
+						}
+						idx += i1-i0;
+					}
+					return null;
+				}
+			});
+		}
+		ParallelTasks.run(tasks, executor);
+	}
+	
+	
+	
+	/**
+	 * @return the number of node slots in use: internal nodes are numbered after the leaves and always have children,
+	 * the slots after the last internal node were never used
+	 */
+	private int getNumUsedNodes()
+	{
+		int numNodes = parent.length;
+		while( numNodes > nLeaves+1 && parent[numNodes-1]==numNodes-1 && child0[numNodes-1]<0 )
+			numNodes--;
+		return numNodes;
+	}
+	
+	
+	
+	/**
+	 * Sum the leaf attributes over the leaves of each node and add them, with the volumes, to the tree features 
+	 */
+	private void setAttributeFeatures(Tree tree)
+	{
+		final int nNodes = tree.getNumNodes();
+		final int ndim = leafBBoxMin.length;
+		final double[] area = new double[nNodes];
+		final double[] sum = new double[nNodes];
+		final double[] sumSq = new double[nNodes];
+		final double[][] bboxMin = new double[ndim][nNodes];
+		final double[][] bboxMax = new double[ndim][nNodes];
+		for(int d=0; d<ndim; d++){
+			Arrays.fill(bboxMin[d], Double.POSITIVE_INFINITY);
+			Arrays.fill(bboxMax[d], Double.NEGATIVE_INFINITY);
+		}
+		for(int leaf=1; leaf<=nLeaves; leaf++)
+		{
+			area[leaf] = leafArea[leaf];
+			sum[leaf] = leafSum[leaf];
+			sumSq[leaf] = leafSumSq[leaf];
+			for(int d=0; d<ndim; d++){
+				bboxMin[d][leaf] = leafBBoxMin[d][leaf];
+				bboxMax[d][leaf] = leafBBoxMax[d][leaf];
+			}
+		}
+		
+		// breadth first order from the roots, children are summed in their parent in reverse order
+		final int[] order = new int[nNodes];
+		int tail = 0;
+		for( int root : tree.getRootIds() )
+			order[tail++] = root;
+		for( int head=0; head<tail; head++ )
+			for( int i=0; i<2; i++ ){
+				final int child = tree.getChild(order[head], i);
+				if( child>=0 )
+					order[tail++] = child;
+			}
+		for( int k=tail-1; k>=0; k-- )
+		{
+			final int node = order[k];
+			final int p = tree.getParent(node);
+			if( p==node )
+				continue;
+			area[p] += area[node];
+			sum[p] += sum[node];
+			sumSq[p] += sumSq[node];
+			for(int d=0; d<ndim; d++){
+				bboxMin[d][p] = Math.min(bboxMin[d][p], bboxMin[d][node]);
+				bboxMax[d][p] = Math.max(bboxMax[d][p], bboxMax[d][node]);
+			}
+		}
+		
+		final double[] mean = new double[nNodes];
+		for(int node=0; node<nNodes; node++)
+		{
+			if( area[node] > 0 ){
+				mean[node] = sum[node]/area[node];
+				continue;
+			}
+			for(int d=0; d<ndim; d++){ // nodes without pixels
+				bboxMin[d][node] = 0;
+				bboxMax[d][node] = 0;
+			}
+		}
+		
+		tree.setFeature("area", area);
+		for(int d=0; d<ndim; d++){
+			tree.setFeature("bboxMin"+d, bboxMin[d]);
+			tree.setFeature("bboxMax"+d, bboxMax[d]);
+		}
+		tree.setFeature("sumIntensity", sum);
+		tree.setFeature("sumSqIntensity", sumSq);
+		tree.setFeature("meanIntensity", mean);
+		tree.setFeature("volume", volume);
+	}
+	
+}
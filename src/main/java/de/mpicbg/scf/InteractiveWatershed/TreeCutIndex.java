@@ -0,0 +1,381 @@
+package de.mpicbg.scf.InteractiveWatershed;
+
+
+/*
+Author: Benoit Lombardot, Scientific Computing Facility, MPI-CBG, Dresden  
+
+Copyright 2017 Max Planck Institute of Molecular Cell Biology and Genetics, Dresden, Germany
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following 
+conditions are met:
+
+1 - Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+
+2 - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer 
+in the documentation and/or other materials provided with the distribution.
+
+3 - Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived 
+from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+
+import java.util.Arrays;
+
+
+/**
+ * Index of the labelings of a tree for any feature cut, see TreeUtils.getTreeLabeling.
+ * For a cut c a node is the root of a label iff m(n) <= c < U(n) where m(n) is the smallest feature of
+ * its children (-infinity for a leaf) and U(n) the smallest of its own feature, of the feature of its ancestors
+ * and of the feature of their children. Both bounds are computed once, a labeling is then a single pass on
+ * the nodes in breadth first order and the number of labels is obtained by binary search.
+ * The index is not modified once built, it can be shared by several threads.
+ */
+public class TreeCutIndex {
+	
+	private final Tree tree;
+	private final int[] bfsOrder; // nodes in the breadth first order of TreeUtils.getLabelRoots
+	private final int[] bfsRank; // position of each node in bfsOrder
+	private final double[] lower; // m(n) 
+	private final double[] upper; // U(n)
+	private final double[] sortedLower; // bounds of the nodes with a non empty interval, sorted
+	private final double[] sortedUpper;
+	private final int[] nodesByLower; // nodes of sortedLower and sortedUpper
+	private final int[] nodesByUpper;
+	
+	
+	public TreeCutIndex(Tree tree, String featureName)
+	{
+		this(tree, tree.getFeatureCopy(featureName));
+	}
+	
+	
+	public TreeCutIndex(Tree tree, double[] feature)
+	{
+		this.tree = tree;
+		final int numNodes = tree.getNumNodes();
+		final int[] parent = tree.parent;
+		final int[] child0 = tree.child0;
+		final int[] child1 = tree.child1;
+		
+		// breadth first order, roots by increasing id then children in order
+		bfsOrder = new int[numNodes];
+		int tail = 0;
+		for( int root : tree.getRootIds() )
+			bfsOrder[tail++] = root;
+		for( int head=0; head<tail; head++ )
+		{
+			final int node = bfsOrder[head];
+			if( child0[node]>=0 )
+				bfsOrder[tail++] = child0[node];
+			if( child1[node]>=0 )
+				bfsOrder[tail++] = child1[node];
+		}
+		
+		bfsRank = new int[numNodes];
+		for( int i=0; i<numNodes; i++ )
+			bfsRank[bfsOrder[i]] = i;
+		
+		// bounds of the cut interval of each node, parents are visited before their children
+		lower = new double[numNodes];
+		upper = new double[numNodes];
+		final double[] ancestorBound = new double[numNodes]; // A(n), smallest feature of the ancestors and of their children
+		int nIntervals = 0;
+		for( int i=0; i<numNodes; i++ )
+		{
+			final int node = bfsOrder[i];
+			final int c0 = child0[node];
+			final int c1 = child1[node];
+			double m = Double.NEGATIVE_INFINITY;
+			if( c0>=0 || c1>=0 )
+				m = Math.min( c0>=0 ? feature[c0] : Double.POSITIVE_INFINITY, c1>=0 ? feature[c1] : Double.POSITIVE_INFINITY );
+			
+			double A = Double.POSITIVE_INFINITY;
+			if( parent[node]!=node )
+			{
+				final int p = parent[node];
+				A = Math.min( ancestorBound[p], Math.min(feature[p], lower[p]) );
+			}
+			ancestorBound[node] = A;
+			lower[node] = m;
+			upper[node] = Math.min(feature[node], A);
+			if( lower[node] < upper[node] )
+				nIntervals++;
+		}
+		
+		nodesByLower = new int[nIntervals];
+		nIntervals = 0;
+		for( int node=0; node<numNodes; node++ )
+			if( lower[node] < upper[node] )
+				nodesByLower[nIntervals++] = node;
+		nodesByUpper = nodesByLower.clone();
+		sortByKey(nodesByLower, lower);
+		sortByKey(nodesByUpper, upper);
+		
+		sortedLower = new double[nIntervals];
+		sortedUpper = new double[nIntervals];
+		for( int i=0; i<nIntervals; i++ )
+		{
+			sortedLower[i] = lower[nodesByLower[i]];
+			sortedUpper[i] = upper[nodesByUpper[i]];
+		}
+	}
+	
+	
+	/**
+	 * stable merge sort of nodes by increasing key[node]
+	 */
+	private static void sortByKey(int[] nodes, double[] key)
+	{
+		int[] src = nodes;
+		int[] dst = new int[nodes.length];
+		for( int width=1; width<nodes.length; width*=2 )
+		{
+			for( int start=0; start<nodes.length; start+=2*width )
+			{
+				final int mid = Math.min(start+width, nodes.length);
+				final int end = Math.min(start+2*width, nodes.length);
+				int i=start, j=mid, k=start;
+				while( i<mid && j<end )
+					dst[k++] = key[src[j]] < key[src[i]] ? src[j++] : src[i++];
+				while( i<mid )
+					dst[k++] = src[i++];
+				while( j<end )
+					dst[k++] = src[j++];
+			}
+			int[] tmp = src;
+			src = dst;
+			dst = tmp;
+		}
+		if( src != nodes )
+			System.arraycopy(src, 0, nodes, 0, nodes.length);
+	}
+	
+	
+	/**
+	 * @return true if node is the root of a label for the cut
+	 */
+	public boolean isLabelRoot(int node, double cut)
+	{
+		return lower[node] <= cut && cut < upper[node];
+	}
+	
+	
+	/**
+	 * @return the number of label roots for the cut, in O(log(number of nodes))
+	 */
+	public int getNumberOfLabels(double cut)
+	{
+		// intervals with lower <= cut, minus those that also have upper <= cut 
+		return countLowerOrEqual(sortedLower, cut) - countLowerOrEqual(sortedUpper, cut);
+	}
+	
+	
+	/**
+	 * @return the number of labels as a function of the cut, in a single pass on the sorted bounds
+	 */
+	public LabelCountCurve getLabelCountCurve()
+	{
+		return getLabelCountCurve(null, Double.NEGATIVE_INFINITY);
+	}
+	
+	
+	/**
+	 * Number of labels as a function of the cut, counting only the label roots n with filter[n] >= minValue.
+	 * With the Imax feature as filter and an intensity threshold as minValue, this counts the labels that 
+	 * are visible above the threshold.
+	 * @param filter value of each node, null to count all the label roots, nodes with a NaN value are never counted
+	 * @param minValue smallest filter value of a counted label root
+	 */
+	public LabelCountCurve getLabelCountCurve(double[] filter, double minValue)
+	{
+		final int n = nodesByLower.length;
+		double[] stepStart = new double[2*n];
+		int[] stepCount = new int[2*n];
+		int nSteps = 0;
+		int count = 0;
+		int i = 0, j = 0;
+		while( i < n || j < n )
+		{
+			// all the bounds at the next value: intervals starting there are added, those ending there removed
+			final double value = Math.min( i<n ? sortedLower[i] : Double.POSITIVE_INFINITY, j<n ? sortedUpper[j] : Double.POSITIVE_INFINITY );
+			if( value == Double.POSITIVE_INFINITY )
+				break;
+			for( ; i<n && sortedLower[i]==value; i++ )
+				if( filter==null || filter[nodesByLower[i]] >= minValue )
+					count++;
+			for( ; j<n && sortedUpper[j]==value; j++ )
+				if( filter==null || filter[nodesByUpper[j]] >= minValue )
+					count--;
+			
+			if( nSteps>0 && stepCount[nSteps-1]==count )
+				continue;
+			stepStart[nSteps] = value;
+			stepCount[nSteps] = count;
+			nSteps++;
+		}
+		return new LabelCountCurve( Arrays.copyOf(stepStart, nSteps), Arrays.copyOf(stepCount, nSteps) );
+	}
+	
+	
+	private static int countLowerOrEqual(double[] sorted, double value)
+	{
+		int low = 0, high = sorted.length;
+		while( low < high )
+		{
+			int mid = (low+high) >>> 1;
+			if( sorted[mid] <= value )
+				low = mid+1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+	
+	
+	/**
+	 * Same labeling as TreeUtils.getLabeling, the tree is not modified
+	 * @param cut any node below that value is label similar to its parent
+	 * @param makeNewLabels if true labels are numbered from 1 in breadth first order, otherwise the id of the label root is used
+	 * @return the labeling of the tree nodes
+	 */
+	public TreeLabeling getLabeling(double cut, boolean makeNewLabels)
+	{
+		final int numNodes = tree.getNumNodes();
+		final int[] parent = tree.parent;
+		final int[] nodeIdToLabel = new int[numNodes];
+		final int[] labelRoot = new int[numNodes];
+		
+		int nLabels = 0;
+		for( int i=0; i<numNodes; i++ )
+		{
+			final int node = bfsOrder[i];
+			if( lower[node] <= cut && cut < upper[node] )
+			{
+				nLabels++;
+				nodeIdToLabel[node] = makeNewLabels ? nLabels : node;
+				labelRoot[node] = node;
+			}
+			else if( parent[node]!=node && labelRoot[parent[node]]>=0 )
+			{
+				nodeIdToLabel[node] = nodeIdToLabel[parent[node]];
+				labelRoot[node] = labelRoot[parent[node]];
+			}
+			else
+				labelRoot[node] = -1;
+		}
+		if( !makeNewLabels && numNodes>0 && isLabelRoot(0, cut) ) // label 0 is the background
+			nLabels--;
+		return new TreeLabeling(nodeIdToLabel, labelRoot, nLabels, cut);
+	}
+	
+	
+	/**
+	 * Update a labeling made with node ids as labels (makeNewLabels = false) from oldCut to newCut.
+	 * Only the nodes whose label root status changes between the two cuts are visited, with the subtrees
+	 * whose label changes. With new labels numbered in breadth first order a single new label root would
+	 * shift all the following labels, these labelings have to be recomputed with getLabeling. 
+	 * @param nodeIdToLabel labeling for oldCut, updated in place
+	 * @param labelRoot label root of the nodes for oldCut, -1 for the nodes without label, updated in place
+	 * @param oldCut cut of the current labeling
+	 * @param newCut cut of the updated labeling
+	 * @return the sorted labels, other than 0, that gained or lost nodes 
+	 */
+	public int[] updateLabeling(int[] nodeIdToLabel, int[] labelRoot, double oldCut, double newCut)
+	{
+		if( oldCut == newCut )
+			return new int[0];
+		final double low = Math.min(oldCut, newCut);
+		final double high = Math.max(oldCut, newCut);
+		
+		// nodes with a bound in ]low, high] are the only ones that can change status, collected by breadth first rank 
+		int[] changed = new int[16];
+		int nChanged = 0;
+		for( int pass=0; pass<2; pass++ )
+		{
+			final double[] sorted = pass==0 ? sortedLower : sortedUpper;
+			final int[] nodes = pass==0 ? nodesByLower : nodesByUpper;
+			final int end = countLowerOrEqual(sorted, high);
+			for( int i=countLowerOrEqual(sorted, low); i<end; i++ )
+			{
+				final int node = nodes[i];
+				if( isLabelRoot(node, oldCut) == isLabelRoot(node, newCut) )
+					continue;
+				if( nChanged == changed.length )
+					changed = Arrays.copyOf(changed, 2*nChanged);
+				changed[nChanged++] = bfsRank[node];
+			}
+		}
+		Arrays.sort(changed, 0, nChanged);
+		
+		// relabel from each changed node, parents first, and stop where the label is unchanged
+		final int[] parent = tree.parent;
+		final int[] child0 = tree.child0;
+		final int[] child1 = tree.child1;
+		int[] changedLabels = new int[16];
+		int nChangedLabels = 0;
+		int[] stack = new int[64];
+		for( int c=0; c<nChanged; c++ )
+		{
+			final int start = bfsOrder[changed[c]];
+			int size = 0;
+			stack[size++] = start;
+			while( size > 0 )
+			{
+				final int node = stack[--size];
+				int label = 0;
+				int root = -1;
+				if( isLabelRoot(node, newCut) ){
+					label = node;
+					root = node;
+				}
+				else if( parent[node]!=node && labelRoot[parent[node]]>=0 ){
+					label = nodeIdToLabel[parent[node]];
+					root = labelRoot[parent[node]];
+				}
+				
+				final int oldLabel = nodeIdToLabel[node];
+				if( label == oldLabel && root == labelRoot[node] && node != start )
+					continue;
+				if( label != oldLabel )
+				{
+					if( nChangedLabels+2 > changedLabels.length )
+						changedLabels = Arrays.copyOf(changedLabels, 2*changedLabels.length);
+					if( oldLabel != 0 )
+						changedLabels[nChangedLabels++] = oldLabel;
+					if( label != 0 )
+						changedLabels[nChangedLabels++] = label;
+				}
+				nodeIdToLabel[node] = label;
+				labelRoot[node] = root;
+				
+				if( size+2 > stack.length )
+					stack = Arrays.copyOf(stack, 2*stack.length);
+				if( child0[node]>=0 )
+					stack[size++] = child0[node];
+				if( child1[node]>=0 )
+					stack[size++] = child1[node];
+			}
+		}
+		
+		// unique changed labels
+		Arrays.sort(changedLabels, 0, nChangedLabels);
+		int nUnique = 0;
+		for( int i=0; i<nChangedLabels; i++ )
+			if( nUnique==0 || changedLabels[i] != changedLabels[nUnique-1] )
+				changedLabels[nUnique++] = changedLabels[i];
+		return Arrays.copyOf(changedLabels, nUnique);
+	}
+	
+	
+	public Tree getTree() {
+		return tree;
+	}
+	
+}
@@ -0,0 +1,106 @@
+package de.mpicbg.scf.InteractiveWatershed;
+
+
+/*
+Author: Benoit Lombardot, Scientific Computing Facility, MPI-CBG, Dresden  
+
+Copyright 2017 Max Planck Institute of Molecular Cell Biology and Genetics, Dresden, Germany
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following 
+conditions are met:
+
+1 - Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+
+2 - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer 
+in the documentation and/or other materials provided with the distribution.
+
+3 - Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived 
+from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+
+import java.util.Arrays;
+
+
+/**
+ * Immutable result of a tree cut, see TreeUtils.getLabeling and TreeCutIndex.getLabeling.
+ * For each node it gives its label and the root of that label, 0 is the label of the nodes below the cut.
+ * The tree is never modified by a cut so that several threads can cut the same tree concurrently.
+ */
+public class TreeLabeling {
+	
+	private final int[] nodeIdToLabel;
+	private final int[] labelRoot; // for each labeled node the most root node of its label, -1 for the other nodes
+	private final int numberOfLabels;
+	private final double cut;
+	
+	
+	/**
+	 * @param nodeIdToLabel label of each node, the array is used as is, not copied
+	 * @param labelRoot label root of each node, -1 if the node has no label, the array is used as is, not copied
+	 * @param numberOfLabels number of distinct labels other than 0
+	 * @param cut the feature value the labeling was made for, NaN for a cut on several features
+	 */
+	protected TreeLabeling(int[] nodeIdToLabel, int[] labelRoot, int numberOfLabels, double cut)
+	{
+		this.nodeIdToLabel = nodeIdToLabel;
+		this.labelRoot = labelRoot;
+		this.numberOfLabels = numberOfLabels;
+		this.cut = cut;
+	}
+	
+	
+	public int getLabel(int node) {
+		return nodeIdToLabel[node];
+	}
+	
+	
+	/**
+	 * @return the most root node of the label of node, -1 if node is not labeled
+	 */
+	public int getLabelRoot(int node) {
+		return labelRoot[node];
+	}
+	
+	
+	/**
+	 * @return a copy of the node to label array
+	 */
+	public int[] getLabels() {
+		return Arrays.copyOf(nodeIdToLabel, nodeIdToLabel.length);
+	}
+	
+	
+	/**
+	 * @return a copy of the node to label root array, -1 for the nodes without label
+	 */
+	public int[] getLabelRoots() {
+		return Arrays.copyOf(labelRoot, labelRoot.length);
+	}
+	
+	
+	public int getNumberOfLabels() {
+		return numberOfLabels;
+	}
+	
+	
+	public int getNumNodes() {
+		return nodeIdToLabel.length;
+	}
+	
+	
+	/**
+	 * @return the feature value the labeling was made for, NaN for a cut on several features
+	 */
+	public double getCut() {
+		return cut;
+	}
+	
+}
@@ -25,10 +25,8 @@ HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABI
 ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 */
 
+import java.util.Arrays;
 
-import java.util.LinkedList;
-import java.util.List;
-import de.mpicbg.scf.InteractiveWatershed.Tree.Node;
 
 public class TreeUtils {
 
@@ -49,39 +47,45 @@ public class TreeUtils {
 	 */
 	static public int[] getTreeLabeling(Tree tree, String featureName, double cut, boolean makeNewLabels){
 		
+		return getLabeling(tree, featureName, cut, makeNewLabels).getLabels();
+	}
+	
+	
+	/**
+	 * Same as getTreeLabeling but the label root of each node is also returned. The tree is not modified,
+	 * several threads can label the same tree at once.  
+	 * @param tree the tree to label
+	 * @param featureName name of the tree feature on which the tree will be labeled
+	 * @param cut any node below that value is label similar to its parent
+	 * @param makeNewLabels if true new labels from 1 to the number of CCs below the cut
+	 * @return the labeling of the tree nodes
+	 */
+	static public TreeLabeling getLabeling(Tree tree, String featureName, double cut, boolean makeNewLabels){
 		
-		int[] nodeIdToLabel;
-		double[] feature = tree.getFeature(featureName);
+		double[] feature = tree.getFeatureCopy(featureName);
 		
 		if(feature==null){
-			nodeIdToLabel = new int[tree.numNodes];
-			for(int node=0; node<nodeIdToLabel.length; node++){
-				nodeIdToLabel[node]=0;
-			}
+			int[] labelRoot = new int[tree.numNodes];
+			Arrays.fill(labelRoot, -1);
+			return new TreeLabeling(new int[tree.numNodes], labelRoot, 0, cut);
 		}
-		else{
-			LinkedList<Node> labelSeeds = getLabelRoots(tree, feature, cut );
-			
-			// set a label for each node
-			if( makeNewLabels ){
-				int label = 1;
-				for(Node node : labelSeeds){
-					node.setDecoration( label );
-					node.labelRoot = node.getId();
-					label++;
-				}
-			}
-			else{ // we the node ID as a label
-				for(Node node : labelSeeds){
-					node.setDecoration( node.getId() );
-					node.labelRoot = node.getId();
-				}
-			}
-			
-			nodeIdToLabel = labelFromSeeds(tree, labelSeeds);
+		
+		int[] labelSeeds = getLabelRoots(tree, feature, cut );
+		
+		// set a label for each node
+		int[] seedLabels = new int[labelSeeds.length];
+		int numberOfLabels = 0;
+		for(int i=0; i<labelSeeds.length; i++)
+		{
+			if( makeNewLabels )
+				seedLabels[i] = i+1;
+			else // we the node ID as a label
+				seedLabels[i] = labelSeeds[i];
+			if( seedLabels[i]>0 )
+				numberOfLabels++;
 		}
 		
-		return nodeIdToLabel;
+		return labelFromSeeds(tree, labelSeeds, seedLabels, numberOfLabels, cut);
 	}
 	
 	
@@ -92,85 +96,100 @@ public class TreeUtils {
 	 * @param tree
 	 * @param feature node attributes on which the tree cut is determined
 	 * @param cut any node below that value is merged with its parent
-	 * @return return a list of the most root node for each label right above the cut ()the most root nodes with a child below the cut
+	 * @return return the most root node for each label right above the cut ()the most root nodes with a child below the cut, in breadth first order
 	 */
-	protected static LinkedList<Node> getLabelRoots(Tree tree, double[] feature, double cut ){
+	protected static int[] getLabelRoots(Tree tree, double[] feature, double cut ){
 		
-		// initialize nodes flag and decoration 
-		for(Node node : tree.getNodes().values())
-		{
-			node.setFlag( feature[node.getId()]>cut );
-			node.setDecoration(-1);
-		}
+		final int[] child0 = tree.child0;
+		final int[] child1 = tree.child1;
 		
-		LinkedList<Node> Q_toExplore = new LinkedList<Node>();
-		LinkedList<Node> Q_toLabel = new LinkedList<Node>();
+		// breadth first exploration from the roots above the cut, toExplore is the queue 
+		int[] toExplore = new int[16];
+		int head = 0, tail = 0;
+		int[] toLabel = new int[16];
+		int nToLabel = 0;
 		
-		for( Node node : tree.getRoots() )
+		for( int node : tree.getRootIds() )
 		{
-			if (node.getFlag())
-				Q_toExplore.add(node);
+			if ( feature[node]>cut ){
+				if( tail == toExplore.length )
+					toExplore = Arrays.copyOf(toExplore, 2*tail);
+				toExplore[tail++] = node;
+			}
 		}
 		
 		// find the node to label
-		while( ! Q_toExplore.isEmpty() )
+		while( head < tail )
 		{
-			final Node node = Q_toExplore.poll();
-			
+			final int node = toExplore[head++];
+			final int c0 = child0[node];
+			final int c1 = child1[node];
 			
-			List<Node> children = node.getChildren();
-			if ( children.size()==0 )
+			boolean allChildMeetCriteria = ( c0<0 || feature[c0]>cut ) && ( c1<0 || feature[c1]>cut );
+			if ( (c0<0 && c1<0) || !allChildMeetCriteria )
 			{
-				Q_toLabel.add(node);
+				if( nToLabel == toLabel.length )
+					toLabel = Arrays.copyOf(toLabel, 2*nToLabel);
+				toLabel[nToLabel++] = node;
 				continue;
 			}
 			
-			boolean allChildMeetCriteria=true;
-			for( Node child : children)
-			{
-				if ( !child.getFlag() )
-				{
-					allChildMeetCriteria=false;
-					Q_toLabel.add(node);
-					break;
-				}
+			if( tail+2 > toExplore.length ){ // reuse the explored part of the queue
+				System.arraycopy(toExplore, head, toExplore, 0, tail-head);
+				tail -= head;
+				head = 0;
+				if( tail+2 > toExplore.length )
+					toExplore = Arrays.copyOf(toExplore, 2*toExplore.length+2);
 			}
-			
-			if( allChildMeetCriteria )
-				for( Node child : children)
-					Q_toExplore.add(child);
-			
+			if( c0>=0 )
+				toExplore[tail++] = c0;
+			if( c1>=0 )
+				toExplore[tail++] = c1;
 		}
 		
-		return Q_toLabel;
+		return Arrays.copyOf(toLabel, nToLabel);
 	}
 	
 	
 	/**
-	 * Label all the nodes below the seed according to seed ID	
+	 * Label all the nodes below the seed according to seed label
 	 * @param tree
-	 * @param labelSeeds list of most root node for each label
-	 * @return an array matching node Id to a label
+	 * @param labelSeeds most root node for each label
+	 * @param seedLabels label of each seed
+	 * @param numberOfLabels number of distinct labels other than 0
+	 * @param cut the cut the seeds were found for 
+	 * @return the labeling of the tree nodes
 	 */
-	protected static int[] labelFromSeeds(Tree tree, LinkedList<Node> labelSeeds){
-		// label the element of Q_toLabel and their offsprings.  
-		while( !labelSeeds.isEmpty() ){
-			final Node node = labelSeeds.poll();
-			for( Node child : node.getChildren() ){	
-				child.setDecoration( node.getDecoration() );
-				child.labelRoot = node.labelRoot;
-				labelSeeds.add(child);
-			}
-		}
+	protected static TreeLabeling labelFromSeeds(Tree tree, int[] labelSeeds, int[] seedLabels, int numberOfLabels, double cut){
 		
-		int[] nodeIdToLabel = new int[tree.getNumNodes()];
-		for( Node node : tree.getNodes().values() )
+		final int[] child0 = tree.child0;
+		final int[] child1 = tree.child1;
+		int[] nodeIdToLabel = new int[tree.getNumNodes()]; // 0 by initialization
+		int[] labelRoot = new int[tree.getNumNodes()];
+		Arrays.fill(labelRoot, -1);
+		
+		// label the seeds and their offsprings with a depth first traversal
+		int[] stack = new int[64];
+		for(int i=0; i<labelSeeds.length; i++)
 		{
-			if( node.getDecoration()>=0 )
-				nodeIdToLabel[node.getId()] = (int) node.getDecoration();
-			// else 0 by initialization		
+			final int seed = labelSeeds[i];
+			final int label = seedLabels[i];
+			int size = 0;
+			stack[size++] = seed;
+			while( size > 0 )
+			{
+				final int node = stack[--size];
+				nodeIdToLabel[node] = label;
+				labelRoot[node] = seed;
+				if( size+2 > stack.length )
+					stack = Arrays.copyOf(stack, 2*stack.length);
+				if( child0[node]>=0 )
+					stack[size++] = child0[node];
+				if( child1[node]>=0 )
+					stack[size++] = child1[node];
+			}
 		}
-		return nodeIdToLabel;
+		return new TreeLabeling(nodeIdToLabel, labelRoot, numberOfLabels, cut);
 	}
 	
 	
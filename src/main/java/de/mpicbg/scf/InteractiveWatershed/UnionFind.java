@@ -0,0 +1,97 @@
+package de.mpicbg.scf.InteractiveWatershed;
+
+
+/*
+Author: Benoit Lombardot, Scientific Computing Facility, MPI-CBG, Dresden  
+
+Copyright 2017 Max Planck Institute of Molecular Cell Biology and Genetics, Dresden, Germany
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following 
+conditions are met:
+
+1 - Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+
+2 - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer 
+in the documentation and/or other materials provided with the distribution.
+
+3 - Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived 
+from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+
+
+/**
+ * Disjoint sets of integer elements with path compression and union by rank. 
+ */
+public class UnionFind {
+	
+	private final int[] rep;
+	private final byte[] rank;
+	
+	
+	/**
+	 * create n singletons 0..n-1
+	 */
+	public UnionFind(int n)
+	{
+		rep = new int[n];
+		rank = new byte[n];
+		for(int i=0; i<n; i++)
+			rep[i] = i;
+	}
+	
+	
+	/**
+	 * @return the representative of the set containing i
+	 */
+	public int find(int i)
+	{
+		int r = i;
+		while( rep[r] != r )
+			r = rep[r];
+		
+		// path compression
+		while( rep[i] != r )
+		{
+			int next = rep[i];
+			rep[i] = r;
+			i = next;
+		}
+		return r;
+	}
+	
+	
+	/**
+	 * Merge the sets containing a and b
+	 * @return the representative of the merged set
+	 */
+	public int union(int a, int b)
+	{
+		a = find(a);
+		b = find(b);
+		if( a == b )
+			return a;
+		
+		if( rank[a] < rank[b] ){
+			rep[a] = b;
+			return b;
+		}
+		if( rank[a] == rank[b] )
+			rank[a]++;
+		rep[b] = a;
+		return a;
+	}
+	
+	
+	public int size() {
+		return rep.length;
+	}
+	
+}
@@ -0,0 +1,324 @@
+package de.mpicbg.scf.InteractiveWatershed;
+
+
+/*
+Author: Benoit Lombardot, Scientific Computing Facility, MPI-CBG, Dresden  
+
+Copyright 2017 Max Planck Institute of Molecular Cell Biology and Genetics, Dresden, Germany
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following 
+conditions are met:
+
+1 - Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+
+2 - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer 
+in the documentation and/or other materials provided with the distribution.
+
+3 - Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived 
+from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import net.imglib2.RandomAccess;
+import net.imglib2.type.numeric.integer.IntType;
+
+import de.mpicbg.scf.imgtools.ui.visualisation.ProgressDialog;
+
+
+/**
+ * Union-find construction giving the same tree and label map as the flooding. The flooded pixels are put in the
+ * order in which the flooding processes them, see FloodingOrder, and each pixel gets the leaf of the pixel that queued it.
+ * Each pixel is then merged with the trees of its neighbors processed before it, in neighbor order, as in the flooding.
+ * The merges are the edges of the minimum spanning forest of the pixel graph, an edge being weighted by the
+ * processing rank of its last pixel and its neighbor index. With several threads and an array label map the image is
+ * cut in tiles of consecutive pixels, each tile computes its spanning forest in parallel. Only the forest edges and
+ * the edges crossing the tiles can merge two trees, they are replayed in the processing order on one thread.
+ * The engine works in memory: besides the label map it uses 16 bytes per pixel, use the flooding engine for label 
+ * maps that do not fit in memory.
+ * Pixels are indexed by int and the edges of a pixel are kept in a 32 bit mask: images of 2^31 pixels or more and
+ * connectivities with more neighbors (FULL from 4 dimensions) are not supported, see supports.
+ */
+class UnionFindEngine implements TreeEngine {
+	
+	/** highest number of neighbors of the connectivity, one bit of the edge mask per neighbor */
+	static final int MAX_NEIGHBORS = 32;
+	
+	
+	/**
+	 * @return true if the engine can build the tree of builder, false if the image is too large or the connectivity
+	 * has too many neighbors
+	 */
+	static boolean supports(TreeBuilder builder)
+	{
+		return builder.labelMap.size() < Integer.MAX_VALUE && builder.n_offset.length <= MAX_NEIGHBORS;
+	}
+	
+	
+	@Override
+	public boolean build(TreeBuilder builder)
+	{
+		builder.labelRegionalMaxima(null);
+		
+		ProgressDialog.setStatusText("HWatershed: building label map and segment tree");
+		int lastNode = buildUnionFind(builder);
+		if( lastNode < 0 )
+			return false;
+		builder.setRootVolumes();
+		builder.renumberInternalNodes(lastNode);
+		return true;
+	}
+	
+	
+	
+	/**
+	 * @return the last node created or -1 if the construction was cancelled
+	 */
+	private static int buildUnionFind(final TreeBuilder b)
+	{
+		if( !supports(b) )
+			throw new IllegalArgumentException("HWatershed: the image is too large or the connectivity has too many neighbors for the union-find engine, use the flooding engine");
+		
+		final int n = (int) b.labelMap.size();
+		final int nBins = b.max-b.min+1;
+		int nTiles = b.labelArray == null ? 1 : Math.min(b.numThreads, Math.max(1, n/TreeBuilder.PROGRESS_STEP));
+		if( (long)nTiles*nBins > (1<<26) )
+			nTiles = 1;
+		final int[] tileStart = new int[nTiles+1];
+		for(int c=0; c<=nTiles; c++)
+			tileStart[c] = (int)( (long)n*c/nTiles );
+		
+		// the progress is shared between the ordering and the merges
+		b.pixToProcessCount *= 2;
+		final FloodingOrder flooding = new FloodingOrder(b, tileStart);
+		if( !flooding.compute() )
+			return -1;
+		final int nProcessed = flooding.nProcessed;
+		final AtomicIntegerArray rank = flooding.rank;
+		
+		// the arrays of the ordering are reused: the queues receive the pixels of each tile in processing order and
+		// the order array the spanning forests of the tiles, the order is then rebuilt from the ranks
+		final int[] tileOrder = flooding.queue;
+		final int[] tileRankStart = sortByTile(b, flooding.order, nProcessed, tileStart, tileOrder);
+		final int[] edges = new int[n];
+		findEdges(b, rank, tileOrder, tileRankStart, tileStart, flooding.order, edges);
+		final int[] order = flooding.order;
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for(int c=0; c<nTiles; c++)
+		{
+			final int tile = c;
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					for(int p=tileStart[tile]; p<tileStart[tile+1]; p++){
+						final int state = rank.get(p);
+						if( state > 0 )
+							order[state-1] = p;
+					}
+					return null;
+				}
+			});
+		}
+		ParallelTasks.run(tasks, b.executor);
+		
+		final int base = b.levelMin;
+		final long[] nPos = new long[b.dimensions.length];
+		final long[] pos = new long[b.dimensions.length];
+		final boolean attributes = b.computeAttributes;
+		final RandomAccess<IntType> ra = b.labelArray == null ? b.labelMap.randomAccess() : null;
+		final int[] levelRank = flooding.levelRank;
+		int l = nBins-1;
+		int excursion = 0;
+		
+		int newNode = b.nLeaves;
+		for(int k=0; k<nProcessed; k++)
+		{
+			if( (k & (TreeBuilder.PROGRESS_STEP-1)) == 0 ){
+				b.pixProcessed.set(nProcessed+k);
+				if( !b.updateProgress() )
+					return -1;
+			}
+			
+			// level of the pixel, the pixels of an excursion are processed after the pixel reaching them
+			while( l > 0 && levelRank[l-1] <= k )
+				l--;
+			int level = b.min+l;
+			if( excursion < flooding.nExcursions && flooding.excursionRank[excursion] == k )
+				level = flooding.excursionLevel[excursion++];
+			final double pVal = b.getLevelValue( level );
+			
+			final int p = order[k];
+			final int pLeaf = (base - b.getCode(p, ra, nPos)) >> 1;
+			int pNode = b.findTreeRoot(pLeaf);
+			if( attributes ){
+				HWatershedLabeling.getPosFromIdx(p, pos, b.dimensions);
+				b.addToLeafAttributes(pLeaf, pVal, pos);
+				b.addToComponent(pLeaf, 1, pVal);
+			}
+			
+			for( int bits=edges[p]; bits!=0; bits &= bits-1 )
+			{
+				final int q = (int)(p + b.n_offset[Integer.numberOfTrailingZeros(bits)]);
+				final int qLeaf = (base - b.getCode(q, ra, nPos)) >> 1;
+				final int qNode = b.findTreeRoot(qLeaf);
+				if( qNode != pNode ) // p is the saddle of the 2 trees
+					pNode = b.mergeAtSaddle(++newNode, pNode, pLeaf, qNode, qLeaf, pVal);
+			}
+		}
+		
+		return newNode;
+	}
+	
+	
+	
+	/**
+	 * Stable partition of the processed pixels by tile, the ranks are split in chunks that are counted and scattered
+	 * in parallel
+	 * @param tileOrder receives the pixels of each tile in processing order
+	 * @return the start of each tile in tileOrder
+	 */
+	private static int[] sortByTile(final TreeBuilder b, final int[] order, final int nProcessed, final int[] tileStart, final int[] tileOrder)
+	{
+		final int nTiles = tileStart.length-1;
+		final int n = tileStart[nTiles];
+		final int[][] count = new int[nTiles][nTiles]; // [chunk][tile]
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for(int c=0; c<nTiles; c++)
+		{
+			final int chunk = c;
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					final int end = (int)( (long)nProcessed*(chunk+1)/nTiles );
+					for(int k=(int)( (long)nProcessed*chunk/nTiles ); k<end; k++)
+						count[chunk][ getTile(order[k], nTiles, n) ]++;
+					return null;
+				}
+			});
+		}
+		ParallelTasks.run(tasks, b.executor);
+		
+		final int[] tileRankStart = new int[nTiles+1];
+		int start = 0;
+		for(int tile=0; tile<nTiles; tile++)
+		{
+			tileRankStart[tile] = start;
+			for(int c=0; c<nTiles; c++){
+				final int nPix = count[c][tile];
+				count[c][tile] = start;
+				start += nPix;
+			}
+		}
+		tileRankStart[nTiles] = start;
+		
+		tasks.clear();
+		for(int c=0; c<nTiles; c++)
+		{
+			final int chunk = c;
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					final int[] next = count[chunk];
+					final int end = (int)( (long)nProcessed*(chunk+1)/nTiles );
+					for(int k=(int)( (long)nProcessed*chunk/nTiles ); k<end; k++){
+						final int p = order[k];
+						tileOrder[ next[getTile(p, nTiles, n)]++ ] = p;
+					}
+					return null;
+				}
+			});
+		}
+		ParallelTasks.run(tasks, b.executor);
+		return tileRankStart;
+	}
+	
+	
+	
+	// tile of pixel p, tile c starting at n*c/nTiles
+	private static int getTile(int p, int nTiles, int n)
+	{
+		return (int)( ((long)(p+1)*nTiles - 1) / n );
+	}
+	
+	
+	
+	/**
+	 * Edges to merge for each pixel, from a pixel to its neighbors processed before it. Tiles are processed in
+	 * parallel, an edge inside a tile is kept if it belongs to the spanning forest of the tile (computed in parent,
+	 * roots pointing to themselves), edges to another tile are always kept.
+	 */
+	private static void findEdges(final TreeBuilder b, final AtomicIntegerArray rank, final int[] tileOrder, final int[] tileRankStart, 
+			final int[] tileStart, final int[] parent, final int[] edges)
+	{
+		final int nTiles = tileStart.length-1;
+		final boolean filter = nTiles > 1;
+		
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for(int c=0; c<nTiles; c++)
+		{
+			final int tile = c;
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					final long[] dimensions = b.dimensions;
+					final long[] pos = new long[dimensions.length];
+					final int nNeigh = b.n_offset.length;
+					for(int k=tileRankStart[tile]; k<tileRankStart[tile+1]; k++)
+					{
+						final int p = tileOrder[k];
+						final int pRank = rank.get(p);
+						parent[p] = p;
+						final boolean isBorder = b.isBorder(p);
+						if( isBorder )
+							HWatershedLabeling.getPosFromIdx(p, pos, dimensions);
+						int bits = 0;
+						for( int i=0; i<nNeigh; i++)
+						{
+							if( isBorder && !HWatershedLabeling.isInBound(pos, b.neigh[i], dimensions) )
+								continue;
+							final int q = (int)(p + b.n_offset[i]);
+							final int qRank = rank.get(q);
+							if( qRank <= 0 || qRank > pRank ) // not processed or processed after p
+								continue;
+							if( filter && q >= tileStart[tile] && q < tileStart[tile+1] )
+							{
+								final int rp = findRoot(p, parent);
+								final int rq = findRoot(q, parent);
+								if( rp == rq )
+									continue;
+								parent[rq] = rp;
+							}
+							bits |= 1<<i;
+						}
+						edges[p] = bits;
+					}
+					return null;
+				}
+			});
+		}
+		ParallelTasks.run(tasks, b.executor);
+	}
+	
+	
+	
+	// root of a tile spanning tree with path halving
+	private static int findRoot(int p, int[] parent)
+	{
+		while( parent[p] != p ){
+			parent[p] = parent[parent[p]];
+			p = parent[p];
+		}
+		return p;
+	}
+	
+}
@@ -0,0 +1,158 @@
+package de.mpicbg.scf.InteractiveWatershed;
+
+
+/*
+Author: Benoit Lombardot, Scientific Computing Facility, MPI-CBG, Dresden  
+
+Copyright 2017 Max Planck Institute of Molecular Cell Biology and Genetics, Dresden, Germany
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following 
+conditions are met:
+
+1 - Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+
+2 - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer 
+in the documentation and/or other materials provided with the distribution.
+
+3 - Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived 
+from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+
+
+
+
+
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import de.mpicbg.scf.InteractiveWatershed.AttributeCut.Filtering;
+
+
+public class AttributeCutTest {
+	
+	@Test
+	public void testLabeling() {
+		for( Tree tree : TestImages.makeTrees() )
+		{
+			AttributeCut attributeCut = new AttributeCut(tree);
+			for( double cut : TestImages.getCuts(tree) )
+			for( boolean makeNewLabels : new boolean[] {false, true} )
+			{
+				TreeLabeling expected = TreeUtils.getLabeling(tree, "dynamics", cut, makeNewLabels);
+				TestImages.assertLabelingEquals(expected, attributeCut.getLabeling("dynamics", cut, makeNewLabels));
+				// a cut that every node meets does not change the labeling
+				TestImages.assertLabelingEquals(expected, attributeCut.getLabeling(new String[] {"dynamics", "Imax"}, 
+						new double[] {cut, Double.NEGATIVE_INFINITY}, Filtering.DIRECT, makeNewLabels));
+			}
+		}
+	}
+	
+	@Test
+	public void testBatch() {
+		for( Tree tree : TestImages.makeTrees() )
+		{
+			AttributeCut attributeCut = new AttributeCut(tree);
+			double[] cuts = TestImages.getCuts(tree);
+			double[][] cutBatch = new double[cuts.length][];
+			for(int i=0; i<cuts.length; i++)
+				cutBatch[i] = new double[] {cuts[i]};
+			TreeLabeling[] labelings = attributeCut.getLabelings(new String[] {"dynamics"}, cutBatch, Filtering.DIRECT, true);
+			for(int i=0; i<cuts.length; i++)
+				TestImages.assertLabelingEquals(TreeUtils.getLabeling(tree, "dynamics", cuts[i], true), labelings[i]);
+		}
+	}
+	
+	@Test
+	public void testFeatureChange() {
+		Tree tree = TestImages.makeTrees()[0];
+		AttributeCut attributeCut = new AttributeCut(tree);
+		double[] dynamics = tree.getFeatureCopy("dynamics");
+		attributeCut.getLabeling("dynamics", 1, false);
+		
+		// the labeling follows a feature set again in the tree
+		double[] shifted = new double[dynamics.length];
+		for(int node=0; node<dynamics.length; node++)
+			shifted[node] = dynamics[node] - 1;
+		tree.setFeature("dynamics", shifted);
+		TestImages.assertLabelingEquals(TreeUtils.getLabeling(tree, "dynamics", 1, false), attributeCut.getLabeling("dynamics", 1, false));
+		assertArrayEquals(shifted, attributeCut.getColumn("dynamics", Filtering.DIRECT), 0);
+	}
+	
+	@Test
+	public void testFeatureChangeInPlace() {
+		Tree tree = TestImages.makeTrees()[1];
+		AttributeCut attributeCut = new AttributeCut(tree);
+		double[] dynamics = tree.getFeatureCopy("dynamics");
+		tree.setFeature("dynamics", dynamics);
+		attributeCut.getLabeling("dynamics", 1, false);
+		
+		// values changed in place are used once the array is set again
+		for(int node=0; node<dynamics.length; node++)
+			dynamics[node] *= 2;
+		tree.setFeature("dynamics", dynamics);
+		TestImages.assertLabelingEquals(TreeUtils.getLabeling(tree, "dynamics", 1, false), attributeCut.getLabeling("dynamics", 1, false));
+		assertArrayEquals(dynamics, attributeCut.getColumn("dynamics", Filtering.MAX), 0);
+	}
+	
+	@Test
+	public void testExtinction() {
+		// node 0 is the background, leaves 1 and 2 merge in node 4, node 4 and leaf 3 in node 5
+		Tree tree = new Tree(new int[] {0, 4, 4, 5, 5, 5}, new int[] {-1, -1, -1, -1, 1, 4}, new int[] {-1, -1, -1, -1, 2, 3});
+		tree.setFeature("area", new double[] {0, 5, 5, 4, 10, 14});
+		// leaf 1 continues the branch of node 4 as it has the lowest id, node 4 the one of node 5
+		assertArrayEquals(new double[] {0, 14, 5, 4, 14, 14}, new AttributeCut(tree).getColumn("area", Filtering.EXTINCTION), 0);
+		
+		tree.setFeature("area", new double[] {0, 1, 3, 3, 2, 4});
+		// MAX values are {0, 1, 3, 3, 3, 4}, leaf 3 continues the branch of node 5 as it has the lowest id
+		assertArrayEquals(new double[] {0, 1, 3, 4, 3, 4}, new AttributeCut(tree).getColumn("area", Filtering.EXTINCTION), 0);
+	}
+	
+	@Test
+	public void testExtinctionOrder() {
+		for( Tree tree : TestImages.makeTrees() )
+		{
+			AttributeCut attributeCut = new AttributeCut(tree);
+			double[] max = attributeCut.getColumn("Imax", Filtering.MAX);
+			double[] extinction = attributeCut.getColumn("Imax", Filtering.EXTINCTION);
+			for(int node=0; node<extinction.length; node++)
+			{
+				assertTrue(extinction[node] >= max[node]);
+				assertTrue(extinction[node] <= extinction[tree.parent[node]]);
+				// exactly one child continues the branch
+				if( tree.child0[node] >= 0 && tree.child1[node] >= 0 )
+					assertTrue( (extinction[tree.child0[node]] == extinction[node]) != (extinction[tree.child1[node]] == extinction[node])
+							|| max[tree.child0[node]] == max[tree.child1[node]] );
+			}
+		}
+	}
+	
+	@Test
+	public void testFilteredColumn() {
+		for( Tree tree : TestImages.makeTrees() )
+		{
+			double[] dynamics = tree.getFeatureCopy("dynamics");
+			double[] filtered = new AttributeCut(tree).getColumn("dynamics", Filtering.MAX);
+			// the highest value of each subtree
+			double[] expected = dynamics.clone();
+			for(int node=0; node<dynamics.length; node++)
+				for(int p=node; ; p=tree.parent[p]){
+					expected[p] = Math.max(expected[p], dynamics[node]);
+					if( tree.parent[p] == p )
+						break;
+				}
+			assertArrayEquals(expected, filtered, 0);
+		}
+	}
+	
+}
@@ -0,0 +1,268 @@
+package de.mpicbg.scf.InteractiveWatershed;
+
+
+/*
+Author: Benoit Lombardot, Scientific Computing Facility, MPI-CBG, Dresden  
+
+Copyright 2017 Max Planck Institute of Molecular Cell Biology and Genetics, Dresden, Germany
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following 
+conditions are met:
+
+1 - Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+
+2 - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer 
+in the documentation and/or other materials provided with the distribution.
+
+3 - Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived 
+from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.type.numeric.real.FloatType;
+
+import de.mpicbg.scf.InteractiveWatershed.HWatershedLabeling.Connectivity;
+import de.mpicbg.scf.InteractiveWatershed.HWatershedLabeling.Engine;
+
+
+/**
+ * Trees and label maps of createMaxTree2 at the baseline commit 56ea96c, where the seeds came from
+ * LocalMaximaLabeling, on small plateau images. The baseline allocated 2*nLeaves nodes, the unused ones at the
+ * end are their own parent with null features and are dropped by the compaction of the tree.
+ */
+public class BaselineTreeTest {
+	
+	private static final float[] IMAGE_2D = {
+			0, 0, 0, 0, 0, 0, 0, 0, 0,
+			0, 5, 5, 3, 3, 3, 6, 0, 0,
+			0, 5, 2, 3, 1, 3, 6, 0, 4,
+			0, 2, 2, 3, 3, 3, 2, 0, 0,
+			0, 0, 0, 0, 0, 0, 0, 4, 0,
+			0, 3, 1, 3, 0, 7, 0, 0, 2,
+			0, 0, 0, 0, 0, 7, 6, 0, 2 };
+	
+	private static final float[] IMAGE_3D = {
+			5, 5, 0, 0, 0, 0,
+			5, 3, 0, 0, 4, 0,
+			0, 0, 0, 0, 0, 0,
+			0, 2, 2, 0, 0, 3,
+			0, 2, 0, 0, 3, 3,
+			
+			0, 0, 0, 0, 0, 0,
+			0, 2, 1, 2, 0, 0,
+			0, 0, 0, 0, 0, 0,
+			0, 0, 0, 0, 0, 0,
+			6, 0, 0, 0, 0, 2,
+			
+			0, 0, 0, 0, 0, 0,
+			0, 0, 0, 3, 3, 0,
+			0, 0, 4, 0, 0, 0,
+			0, 0, 0, 0, 0, 0,
+			0, 0, 0, 0, 0, 2 };
+	
+	private static final Connectivity[] CONNECTIVITIES = {Connectivity.FACE, Connectivity.FACE, Connectivity.FULL, Connectivity.FULL};
+	
+	private static final float[] THRESHOLDS = {Float.NEGATIVE_INFINITY, 1, Float.NEGATIVE_INFINITY, 1};
+	
+	// parent, dynamics, Imax and label map for each connectivity and threshold
+	private static final Object[][] BASELINE_2D = {
+		{	// 2D, FACE, threshold below the background
+			new int[] {0, 8, 8, 12, 13, 9, 9, 11, 13, 11, 10, 10, 10, 12},
+			new double[] {0, 2, 3, 4, 4, 2, 2, 7, 6, 3, 7, 7, 6, 6},
+			new double[] {0, 5, 6, 4, 4, 3, 3, 7, 6, 3, 7, 7, 6, 6},
+			new int[] {
+				1, 1, 1, 1, 2, 2, 2, 2, 3,
+				1, 1, 1, 1, 2, 2, 2, 2, 3,
+				1, 1, 1, 1, 2, 2, 2, 2, 3,
+				1, 1, 1, 1, 2, 2, 2, 4, 3,
+				5, 5, 1, 6, 2, 7, 4, 4, 4,
+				5, 5, 5, 6, 7, 7, 7, 4, 7,
+				5, 5, 5, 6, 7, 7, 7, 7, 7 } },
+		{	// 2D, FACE, threshold above the background
+			new int[] {0, 8, 8, 3, 4, 9, 9, 7, 8, 9, 10, 11, 12, 13},
+			new double[] {0, 2, 3, 0, 0, 2, 2, 0, 5, 2, 0, 0, 0, 0},
+			new double[] {0, 5, 6, 4, 4, 3, 3, 7, 6, 3, 0, 0, 0, 0},
+			new int[] {
+				0, 0, 0, 0, 0, 0, 0, 0, 0,
+				0, 1, 1, 1, 2, 2, 2, 0, 0,
+				0, 1, 1, 1, 2, 2, 2, 0, 3,
+				0, 1, 1, 1, 2, 2, 2, 0, 0,
+				0, 0, 0, 0, 0, 0, 0, 4, 0,
+				0, 5, 5, 6, 0, 7, 0, 0, 0,
+				0, 0, 0, 0, 0, 7, 7, 0, 0 } },
+		{	// 2D, FULL, threshold below the background
+			new int[] {0, 8, 9, 13, 9, 10, 10, 12, 13, 8, 12, 11, 11, 11},
+			new double[] {0, 2, 3, 4, 2, 2, 2, 7, 6, 3, 3, 7, 7, 6},
+			new double[] {0, 5, 6, 4, 4, 3, 3, 7, 6, 6, 3, 7, 7, 6},
+			new int[] {
+				1, 1, 1, 1, 2, 2, 2, 2, 2,
+				1, 1, 1, 1, 2, 2, 2, 2, 3,
+				1, 1, 1, 1, 2, 2, 2, 2, 3,
+				1, 1, 1, 1, 2, 2, 2, 2, 3,
+				5, 5, 5, 6, 7, 7, 7, 4, 4,
+				5, 5, 5, 6, 7, 7, 7, 7, 4,
+				5, 5, 5, 6, 7, 7, 7, 7, 4 } },
+		{	// 2D, FULL, threshold above the background
+			new int[] {0, 8, 9, 3, 9, 10, 10, 7, 8, 8, 10, 11, 12, 13},
+			new double[] {0, 2, 3, 0, 2, 2, 2, 0, 5, 3, 2, 0, 0, 0},
+			new double[] {0, 5, 6, 4, 4, 3, 3, 7, 6, 6, 3, 0, 0, 0},
+			new int[] {
+				0, 0, 0, 0, 0, 0, 0, 0, 0,
+				0, 1, 1, 1, 2, 2, 2, 0, 0,
+				0, 1, 1, 1, 2, 2, 2, 0, 3,
+				0, 1, 1, 1, 2, 2, 2, 0, 0,
+				0, 0, 0, 0, 0, 0, 0, 4, 0,
+				0, 5, 5, 6, 0, 7, 0, 0, 4,
+				0, 0, 0, 0, 0, 7, 7, 0, 4 } }
+	};
+	
+	private static final Object[][] BASELINE_3D = {
+		{	// 3D, FACE, threshold below the background
+			new int[] {0, 7, 8, 8, 9, 7, 9, 6, 6, 9},
+			new double[] {0, 5, 4, 3, 6, 4, 5, 5, 4, 6},
+			new double[] {0, 5, 4, 3, 6, 4, 5, 5, 4, 6},
+			new int[] {
+				1, 1, 1, 1, 2, 2,
+				1, 1, 1, 2, 2, 2,
+				1, 1, 4, 2, 2, 3,
+				4, 4, 4, 4, 3, 3,
+				4, 4, 4, 3, 3, 3,
+				1, 1, 1, 1, 2, 2,
+				1, 1, 1, 1, 2, 2,
+				4, 1, 5, 1, 2, 3,
+				4, 4, 4, 1, 3, 3,
+				4, 4, 4, 3, 3, 3,
+				1, 1, 5, 1, 1, 1,
+				1, 1, 5, 1, 1, 1,
+				5, 5, 5, 5, 1, 3,
+				4, 5, 5, 5, 3, 3,
+				4, 4, 5, 3, 3, 3 } },
+		{	// 3D, FACE, threshold above the background
+			new int[] {0, 1, 2, 3, 4, 5, 6, 7, 8, 9},
+			new double[] {0, 0, 0, 0, 0, 0, 0, 0, 0, 0},
+			new double[] {0, 5, 4, 3, 6, 4, 0, 0, 0, 0},
+			new int[] {
+				1, 1, 0, 0, 0, 0,
+				1, 1, 0, 0, 2, 0,
+				0, 0, 0, 0, 0, 0,
+				0, 0, 0, 0, 0, 3,
+				0, 0, 0, 0, 3, 3,
+				0, 0, 0, 0, 0, 0,
+				0, 1, 1, 1, 0, 0,
+				0, 0, 0, 0, 0, 0,
+				0, 0, 0, 0, 0, 0,
+				4, 0, 0, 0, 0, 3,
+				0, 0, 0, 0, 0, 0,
+				0, 0, 0, 1, 1, 0,
+				0, 0, 5, 0, 0, 0,
+				0, 0, 0, 0, 0, 0,
+				0, 0, 0, 0, 0, 3 } },
+		{	// 3D, FULL, threshold below the background
+			new int[] {0, 6, 7, 9, 8, 6, 7, 9, 8, 8},
+			new double[] {0, 3, 2, 3, 6, 2, 3, 5, 6, 5},
+			new double[] {0, 5, 4, 3, 6, 4, 5, 5, 6, 5},
+			new int[] {
+				1, 1, 1, 2, 2, 2,
+				1, 1, 1, 2, 2, 2,
+				1, 1, 1, 2, 2, 2,
+				4, 4, 4, 3, 3, 3,
+				4, 4, 4, 3, 3, 3,
+				1, 1, 1, 2, 2, 2,
+				1, 1, 1, 2, 2, 2,
+				1, 1, 5, 2, 2, 2,
+				4, 4, 5, 5, 3, 3,
+				4, 4, 4, 3, 3, 3,
+				1, 1, 5, 5, 5, 5,
+				1, 5, 5, 5, 5, 5,
+				1, 5, 5, 5, 5, 5,
+				4, 4, 5, 5, 3, 3,
+				4, 4, 4, 5, 3, 3 } },
+		{	// 3D, FULL, threshold above the background
+			new int[] {0, 6, 7, 3, 4, 6, 7, 7, 8, 9},
+			new double[] {0, 3, 2, 0, 0, 2, 3, 4, 0, 0},
+			new double[] {0, 5, 4, 3, 6, 4, 5, 5, 0, 0},
+			new int[] {
+				1, 1, 0, 0, 0, 0,
+				1, 1, 0, 0, 2, 0,
+				0, 0, 0, 0, 0, 0,
+				0, 4, 4, 0, 0, 3,
+				0, 4, 0, 0, 3, 3,
+				0, 0, 0, 0, 0, 0,
+				0, 1, 1, 2, 0, 0,
+				0, 0, 0, 0, 0, 0,
+				0, 0, 0, 0, 0, 0,
+				4, 0, 0, 0, 0, 3,
+				0, 0, 0, 0, 0, 0,
+				0, 0, 0, 5, 5, 0,
+				0, 0, 5, 0, 0, 0,
+				0, 0, 0, 0, 0, 0,
+				0, 0, 0, 0, 0, 3 } }
+	};
+	
+	
+	@Test
+	public void testBaseline2D() {
+		testBaseline(IMAGE_2D, new long[] {9, 7}, BASELINE_2D);
+	}
+	
+	@Test
+	public void testBaseline3D() {
+		testBaseline(IMAGE_3D, new long[] {6, 5, 3}, BASELINE_3D);
+	}
+	
+	
+	private static void testBaseline(float[] pixels, long[] dims, Object[][] baseline)
+	{
+		for(int i=0; i<baseline.length; i++)
+		for( Engine engine : Engine.values() )
+		{
+			Img<FloatType> img = ArrayImgs.floats(pixels.clone(), dims);
+			HWatershedLabeling<FloatType> labeler = new HWatershedLabeling<FloatType>(img, THRESHOLDS[i], CONNECTIVITIES[i]);
+			labeler.setEngine(engine);
+			assertTreeEquals((int[]) baseline[i][0], (double[]) baseline[i][1], (double[]) baseline[i][2], labeler.getTree());
+			ArrayImg<IntType, ?> labelMap = ArrayImgs.ints((int[]) baseline[i][3], dims);
+			TestImages.assertImageEquals(labelMap, labeler.getLabelMapMaxTree());
+		}
+	}
+	
+	
+	private static void assertTreeEquals(int[] parent, double[] dynamics, double[] Imax, Tree tree)
+	{
+		int numNodes = tree.getNumNodes();
+		double[] treeDynamics = tree.getFeatureCopy("dynamics");
+		double[] treeImax = tree.getFeatureCopy("Imax");
+		assertTrue(numNodes <= parent.length);
+		for(int node=0; node<parent.length; node++)
+		{
+			if( node < numNodes ){
+				assertEquals(parent[node], tree.getParent(node));
+				assertEquals(dynamics[node], treeDynamics[node], 0);
+				assertEquals(Imax[node], treeImax[node], 0);
+			}
+			else{
+				assertEquals(node, parent[node]);
+				assertEquals(0, dynamics[node], 0);
+				assertEquals(0, Imax[node], 0);
+			}
+		}
+	}
+	
+}
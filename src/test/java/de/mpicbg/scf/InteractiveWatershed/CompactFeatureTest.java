@@ -0,0 +1,121 @@
+package de.mpicbg.scf.InteractiveWatershed;
+
+
+/*
+Author: Benoit Lombardot, Scientific Computing Facility, MPI-CBG, Dresden  
+
+Copyright 2017 Max Planck Institute of Molecular Cell Biology and Genetics, Dresden, Germany
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following 
+conditions are met:
+
+1 - Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+
+2 - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer 
+in the documentation and/or other materials provided with the distribution.
+
+3 - Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived 
+from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+
+
+
+
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+
+import org.junit.Test;
+
+import net.imglib2.img.Img;
+import net.imglib2.type.numeric.real.FloatType;
+
+import de.mpicbg.scf.InteractiveWatershed.AttributeCut.Filtering;
+import de.mpicbg.scf.InteractiveWatershed.HWatershedLabeling.Connectivity;
+import de.mpicbg.scf.InteractiveWatershed.SegmentHierarchyToLabelMap.FloodingRank;
+
+
+public class CompactFeatureTest {
+	
+	// the users of a tree read its features without expanding the compacted ones
+	@Test
+	public void testColumnsStayCompacted() {
+		Img<FloatType> img = TestImages.makeImage(new long[] {40, 30}, 1);
+		HWatershedLabeling<FloatType> labeler = new HWatershedLabeling<FloatType>(img, 1, Connectivity.FACE);
+		labeler.setComputeAttributes(true);
+		Tree tree = labeler.getTree();
+		HashMap<String,Object> columns = getColumns(tree);
+		assertTrue( columns.get("area") instanceof int[] );
+		
+		SegmentHierarchyToLabelMap<FloatType> labelMapper = new SegmentHierarchyToLabelMap<FloatType>(tree, labeler.getLabelMapMaxTree(), img);
+		labelMapper.setFloodingRank(FloodingRank.BITS_8);
+		labelMapper.updateTreeLabeling(2);
+		labelMapper.getLabelMap(1, 50);
+		labelMapper.getLabelMap(1, 50, 0, 3);
+		labelMapper.updateTreeLabeling(new String[] {"dynamics", "area"}, new double[] {1, 10}, Filtering.MAX, true);
+		labelMapper.getLabelMap(1, 50);
+		labelMapper.getLabelCountCurve(1);
+		
+		TreeUtils.getTreeLabeling(tree, "dynamics", 2);
+		TreeUtils.getLabeling(tree, "area", 10, true);
+		
+		AttributeCut cut = new AttributeCut(tree);
+		cut.getLabeling("volume", 5, true);
+		cut.getColumn("meanIntensity", Filtering.MAX);
+		
+		assertSameColumns(columns, tree);
+	}
+	
+	
+	// the interactive plugin, without its user interface
+	@Test
+	public void testPluginColumnsStayCompacted() {
+		Img<FloatType> img = TestImages.makeImage(new long[] {40, 30}, 2);
+		CachedSegmentTree segmentTree = new DefaultSegmentTreeService().getSegmentTree(img, Float.NEGATIVE_INFINITY, Connectivity.FACE);
+		Tree tree = segmentTree.getTree();
+		HashMap<String,Object> columns = getColumns(tree);
+		
+		tree.getFeatureCopy("dynamics");
+		SegmentHierarchyToLabelMap<FloatType> labelMapper = new SegmentHierarchyToLabelMap<FloatType>(tree, segmentTree.getLabelMap(), img);
+		labelMapper.setFloodingRank(FloodingRank.BITS_8);
+		labelMapper.setLeafPixelIndex(new LeafPixelIndex(segmentTree.getLabelMap(), img, tree.getNumNodes()));
+		labelMapper.updateTreeLabeling(0);
+		labelMapper.getLabelMap(0, 100, 2, 0);
+		labelMapper.updateTreeLabeling(3, true);
+		labelMapper.getUpdatableLabelMap(5, 50);
+		labelMapper.updateLabelMap(10, 80);
+		labelMapper.getLabelCountCurve(5);
+		
+		assertSameColumns(columns, tree);
+	}
+	
+	
+	private static HashMap<String,Object> getColumns(Tree tree)
+	{
+		HashMap<String,Object> columns = new HashMap<String,Object>();
+		for( String feature : tree.getFeatureNames() )
+			columns.put(feature, tree.getColumn(feature));
+		return columns;
+	}
+	
+	
+	private static void assertSameColumns(HashMap<String,Object> columns, Tree tree)
+	{
+		assertEquals( columns.keySet(), tree.getFeatureNames() );
+		for( String feature : columns.keySet() )
+			assertSame( feature, columns.get(feature), tree.getColumn(feature) );
+	}
+	
+}
@@ -0,0 +1,199 @@
+package de.mpicbg.scf.InteractiveWatershed;
+
+
+/*
+Author: Benoit Lombardot, Scientific Computing Facility, MPI-CBG, Dresden  
+
+Copyright 2017 Max Planck Institute of Molecular Cell Biology and Genetics, Dresden, Germany
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following 
+conditions are met:
+
+1 - Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+
+2 - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer 
+in the documentation and/or other materials provided with the distribution.
+
+3 - Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived 
+from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import net.imglib2.Cursor;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+import de.mpicbg.scf.InteractiveWatershed.HWatershedLabeling.Connectivity;
+import de.mpicbg.scf.InteractiveWatershed.HWatershedLabeling.Quantization;
+
+
+public class DefaultSegmentTreeServiceTest {
+	
+	private File directory;
+	
+	@Before
+	public void createDirectory() throws IOException {
+		directory = Files.createTempDirectory("DefaultSegmentTreeServiceTest").toFile();
+	}
+	
+	@After
+	public void deleteDirectory() {
+		File[] files = directory.listFiles();
+		if( files != null )
+			for( File file : files )
+				file.delete();
+		directory.delete();
+	}
+	
+	
+	@Test
+	public void testMemoryCache() {
+		DefaultSegmentTreeService service = new DefaultSegmentTreeService();
+		assertNull(service.getDiskCacheDirectory());
+		service.setMemoryBudget(64L<<20);
+		Img<FloatType> input = createImage(0);
+		CachedSegmentTree tree = service.getSegmentTree(input, 10, Connectivity.FACE);
+		assertSame(tree, service.getSegmentTree(createImage(0), 10, Connectivity.FACE));
+		assertNotSame(tree, service.getSegmentTree(input, 20, Connectivity.FACE));
+		assertNotSame(tree, service.getSegmentTree(createImage(1), 10, Connectivity.FACE));
+		assertSame(tree, service.getCachedSegmentTree(input, 10, Connectivity.FACE));
+		
+		service.clear();
+		assertNull(service.getCachedSegmentTree(input, 10, Connectivity.FACE));
+	}
+	
+	
+	// trees built with other quantizations or level counts are cached apart, the level count is ignored without quantization
+	@Test
+	public void testQuantization() {
+		DefaultSegmentTreeService service = new DefaultSegmentTreeService();
+		service.setMemoryBudget(64L<<20);
+		service.setDiskCacheDirectory(directory);
+		Img<FloatType> input = createImage(0);
+		CachedSegmentTree tree = service.getSegmentTree(input, 10, Connectivity.FACE);
+		assertSame(tree, service.getSegmentTree(input, 10, Connectivity.FACE, Quantization.NONE, 64));
+		CachedSegmentTree linear = service.getSegmentTree(input, 10, Connectivity.FACE, Quantization.LINEAR, 64);
+		assertNotSame(tree, linear);
+		assertEquals(Quantization.LINEAR, linear.getQuantization());
+		assertEquals(64, linear.getNumberOfLevels());
+		assertSame(linear, service.getCachedSegmentTree(input, 10, Connectivity.FACE, Quantization.LINEAR, 64));
+		assertNull(service.getCachedSegmentTree(input, 10, Connectivity.FACE, Quantization.LINEAR, 32));
+		assertNull(service.getCachedSegmentTree(input, 10, Connectivity.FACE, Quantization.EQUALIZED, 64));
+		assertEquals(2, countTreeFiles());
+		
+		// a new service reopens the file of the quantized tree
+		DefaultSegmentTreeService service2 = new DefaultSegmentTreeService();
+		service2.setDiskCacheDirectory(directory);
+		CachedSegmentTree linear2 = service2.getSegmentTree(input, 10, Connectivity.FACE, Quantization.LINEAR, 64);
+		assertEquals(Quantization.LINEAR, linear2.getQuantization());
+		TestImages.assertTreeEquals(linear.getTree(), linear2.getTree());
+		TestImages.assertImageEquals(linear.getLabelMap(), linear2.getLabelMap());
+		assertEquals(2, countTreeFiles());
+	}
+	
+	
+	@Test
+	public void testDiskCache() {
+		Img<FloatType> input = createImage(0);
+		DefaultSegmentTreeService service = new DefaultSegmentTreeService();
+		service.setDiskCacheDirectory(directory);
+		CachedSegmentTree tree = service.getSegmentTree(input, 10, Connectivity.FACE);
+		assertEquals(1, countTreeFiles());
+		
+		// a new service reopens the file
+		DefaultSegmentTreeService service2 = new DefaultSegmentTreeService();
+		service2.setDiskCacheDirectory(directory);
+		CachedSegmentTree tree2 = service2.getSegmentTree(input, 10, Connectivity.FACE);
+		assertEquals(tree.getTree().getNumNodes(), tree2.getTree().getNumNodes());
+		Cursor<IntType> c1 = Views.flatIterable(tree.getLabelMap()).cursor();
+		Cursor<IntType> c2 = Views.flatIterable(tree2.getLabelMap()).cursor();
+		while( c1.hasNext() )
+			assertEquals(c1.next().get(), c2.next().get());
+		
+		// files of other images are not used
+		service2.getSegmentTree(createImage(1), 10, Connectivity.FACE);
+		assertEquals(2, countTreeFiles());
+		
+		service2.clearDiskCache();
+		assertEquals(0, countTreeFiles());
+	}
+	
+	
+	@Test
+	public void testDiskCacheLimit() {
+		DefaultSegmentTreeService service = new DefaultSegmentTreeService();
+		service.setDiskCacheDirectory(directory);
+		long size = service.getSegmentTree(createImage(0), 10, Connectivity.FACE).getSizeInBytes();
+		assertEquals(1, countTreeFiles());
+		
+		// the least recently used file is deleted to make room for the new one
+		service.setDiskCacheLimit( 3*size/2 );
+		service.getSegmentTree(createImage(1), 10, Connectivity.FACE);
+		assertEquals(1, countTreeFiles());
+		
+		// trees larger than the limit are not saved
+		service.setDiskCacheLimit(1);
+		assertEquals(0, countTreeFiles());
+		service.getSegmentTree(createImage(2), 10, Connectivity.FACE);
+		assertEquals(0, countTreeFiles());
+	}
+	
+	
+	@Test
+	public void testNoCache() {
+		// caching is off by default
+		DefaultSegmentTreeService service = new DefaultSegmentTreeService();
+		assertEquals(0, service.getMemoryBudget());
+		assertNull(service.getDiskCacheDirectory());
+		Img<FloatType> input = createImage(0);
+		assertNotSame(service.getSegmentTree(input, 10, Connectivity.FACE), service.getSegmentTree(input, 10, Connectivity.FACE));
+		assertEquals(0, service.getMemoryUsed());
+	}
+	
+	
+	private int countTreeFiles() {
+		File[] files = directory.listFiles();
+		int n = 0;
+		for( File file : files )
+			if( file.getName().endsWith(".hwt") )
+				n++;
+		return n;
+	}
+	
+	
+	private static Img<FloatType> createImage(int seed) {
+		Img<FloatType> img = ArrayImgs.floats(20, 15);
+		Cursor<FloatType> cursor = img.localizingCursor();
+		while( cursor.hasNext() ){
+			cursor.fwd();
+			cursor.get().set( (float)( 50 + 40*Math.sin(cursor.getDoublePosition(0)/3 + seed)*Math.cos(cursor.getDoublePosition(1)/4) ) );
+		}
+		return img;
+	}
+	
+}
@@ -0,0 +1,89 @@
+package de.mpicbg.scf.InteractiveWatershed;
+
+
+/*
+Author: Benoit Lombardot, Scientific Computing Facility, MPI-CBG, Dresden  
+
+Copyright 2017 Max Planck Institute of Molecular Cell Biology and Genetics, Dresden, Germany
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following 
+conditions are met:
+
+1 - Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+
+2 - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer 
+in the documentation and/or other materials provided with the distribution.
+
+3 - Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived 
+from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+
+
+
+
+
+
+import static org.junit.Assert.assertNotNull;
+
+import org.junit.Test;
+
+import net.imglib2.img.Img;
+import net.imglib2.img.ImgFactory;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.planar.PlanarImgFactory;
+import net.imglib2.type.numeric.real.FloatType;
+
+import de.mpicbg.scf.InteractiveWatershed.HWatershedLabeling.Connectivity;
+import de.mpicbg.scf.InteractiveWatershed.SegmentHierarchyToLabelMap.FloodingRank;
+
+
+public class FloodingRankMapTest {
+	
+	@Test
+	public void testFloodingRank2D() {
+		testFloodingRank(new ArrayImgFactory<FloatType>(), new long[] {40, 30});
+	}
+	
+	@Test
+	public void testFloodingRank3D() {
+		testFloodingRank(new PlanarImgFactory<FloatType>(), new long[] {20, 16, 6});
+	}
+	
+	
+	// label maps made from the flooding ranks are the same as the ones made from the intensities
+	private static void testFloodingRank(ImgFactory<FloatType> factory, long[] dims)
+	{
+		for( FloodingRank floodingRank : new FloodingRank[] {FloodingRank.BITS_8, FloodingRank.BITS_16} )
+		{
+			Img<FloatType> img = TestImages.makeImage(factory, dims, 1);
+			HWatershedLabeling<FloatType> labeler = new HWatershedLabeling<FloatType>(img, 1, Connectivity.FACE);
+			SegmentHierarchyToLabelMap<FloatType> reference = TestImages.makeLabelMapper(labeler, img);
+			SegmentHierarchyToLabelMap<FloatType> ranked = TestImages.makeLabelMapper(labeler, img);
+			ranked.setFloodingRank(floodingRank);
+			for( float hMin : new float[] {0, 3} )
+			{
+				reference.updateTreeLabeling(hMin, true);
+				ranked.updateTreeLabeling(hMin, true);
+				// the flooding changes at a fixed threshold and hyperslice, as with the peak flooding slider
+				for( float threshold : TestImages.THRESHOLDS )
+				{
+					for( float flooding : TestImages.FLOODINGS )
+						TestImages.assertImageEquals(reference.getLabelMap(threshold, flooding), ranked.getLabelMap(threshold, flooding));
+					assertNotNull(ranked.rankMap);
+					for( float flooding : TestImages.FLOODINGS )
+						TestImages.assertImageEquals(reference.getLabelMap(threshold, flooding, dims.length-1, 2), ranked.getLabelMap(threshold, flooding, dims.length-1, 2));
+					assertNotNull(ranked.rankMap);
+				}
+			}
+		}
+	}
+	
+}
@@ -0,0 +1,210 @@
+package de.mpicbg.scf.InteractiveWatershed;
+
+
+/*
+Author: Benoit Lombardot, Scientific Computing Facility, MPI-CBG, Dresden  
+
+Copyright 2017 Max Planck Institute of Molecular Cell Biology and Genetics, Dresden, Germany
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following 
+conditions are met:
+
+1 - Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+
+2 - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer 
+in the documentation and/or other materials provided with the distribution.
+
+3 - Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived 
+from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+
+
+
+
+
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.img.Img;
+import net.imglib2.img.ImgFactory;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.cell.CellImg;
+import net.imglib2.img.cell.CellImgFactory;
+import net.imglib2.img.planar.PlanarImgFactory;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.type.numeric.real.FloatType;
+
+import de.mpicbg.scf.InteractiveWatershed.HWatershedLabeling.Connectivity;
+import de.mpicbg.scf.InteractiveWatershed.HWatershedLabeling.Engine;
+import de.mpicbg.scf.InteractiveWatershed.HWatershedLabeling.Quantization;
+
+
+public class HWatershedLabelingTest {
+	
+	@Test
+	public void testThreads2D() {
+		testThreads(new ArrayImgFactory<FloatType>(), new long[] {40, 30});
+	}
+	
+	@Test
+	public void testThreads3D() {
+		testThreads(new PlanarImgFactory<FloatType>(), new long[] {20, 16, 6});
+	}
+	
+	@Test
+	public void testThreadsSingleRegion2D() {
+		testThreadsSingleRegion(new long[] {160, 120});
+	}
+	
+	@Test
+	public void testThreadsSingleRegion3D() {
+		testThreadsSingleRegion(new long[] {40, 32, 16});
+	}
+	
+	
+	// the union-find engine builds a single region with several threads and gives the tree of the flooding
+	@Test
+	public void testUnionFindEngineThreads() {
+		Img<FloatType> img = TestImages.makeImage(new long[] {160, 120}, 0);
+		final Set<Thread> threads = Collections.synchronizedSet(new HashSet<Thread>());
+		// a new core thread is started for each task until there are 4 of them
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(4, 4, 0, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>()) {
+			@Override
+			protected void beforeExecute(Thread thread, Runnable task) {
+				threads.add(thread);
+			}
+		};
+		try {
+			HWatershedLabeling<FloatType> unionFind = new HWatershedLabeling<FloatType>(img, Float.NEGATIVE_INFINITY, Connectivity.FACE);
+			unionFind.setEngine(Engine.UNION_FIND);
+			unionFind.setNumThreads(4);
+			unionFind.setExecutorService(executor);
+			HWatershedLabeling<FloatType> flooding = new HWatershedLabeling<FloatType>(img, Float.NEGATIVE_INFINITY, Connectivity.FACE);
+			flooding.setNumThreads(1);
+			TestImages.assertTreeEquals(flooding.getTree(), unionFind.getTree());
+			TestImages.assertImageEquals(flooding.getLabelMapMaxTree(), unionFind.getLabelMapMaxTree());
+			assertTrue(threads.size() > 1);
+		}
+		finally {
+			executor.shutdown();
+		}
+	}
+	
+	
+	@Test
+	public void testCellLabelMap2D() {
+		testCellLabelMap(new long[] {40, 30});
+	}
+	
+	@Test
+	public void testCellLabelMap3D() {
+		testCellLabelMap(new long[] {20, 16, 6});
+	}
+	
+	
+	// a label map stored in cells gives the same tree and label map as an array, also from an input stored in cells
+	private static void testCellLabelMap(long[] dims)
+	{
+		for(int seed=0; seed<2; seed++)
+		{
+			Img<FloatType> img = TestImages.makeImage(new ArrayImgFactory<FloatType>(), dims, seed);
+			Img<FloatType> cellImg = copy(img, new CellImgFactory<FloatType>(5));
+			for( Engine engine : Engine.values() )
+			for( int numThreads : new int[] {1, 4} )
+			for( float threshold : new float[] {Float.NEGATIVE_INFINITY, 1} )
+			{
+				HWatershedLabeling<FloatType> array = new HWatershedLabeling<FloatType>(img, threshold, Connectivity.FACE);
+				HWatershedLabeling<FloatType> cells = new HWatershedLabeling<FloatType>(img, threshold, Connectivity.FACE, 
+						Quantization.NONE, 0, new CellImgFactory<IntType>(7));
+				HWatershedLabeling<FloatType> cellInput = new HWatershedLabeling<FloatType>(cellImg, threshold, Connectivity.FACE);
+				for( HWatershedLabeling<FloatType> labeler : new HWatershedLabeling[] {array, cells, cellInput} ){
+					labeler.setEngine(engine);
+					labeler.setNumThreads(numThreads);
+				}
+				assertTrue(cells.getLabelMapMaxTree() instanceof CellImg);
+				TestImages.assertTreeEquals(array.getTree(), cells.getTree());
+				TestImages.assertImageEquals(array.getLabelMapMaxTree(), cells.getLabelMapMaxTree());
+				TestImages.assertTreeEquals(array.getTree(), cellInput.getTree());
+				TestImages.assertImageEquals(array.getLabelMapMaxTree(), cellInput.getLabelMapMaxTree());
+			}
+		}
+	}
+	
+	
+	// the tree and the label map do not depend on the number of threads
+	private static void testThreads(ImgFactory<FloatType> factory, long[] dims)
+	{
+		for(int seed=0; seed<3; seed++)
+		{
+			Img<FloatType> img = TestImages.makeImage(factory, dims, seed);
+			for( float threshold : new float[] {Float.NEGATIVE_INFINITY, 1} )
+			{
+				HWatershedLabeling<FloatType> sequential = new HWatershedLabeling<FloatType>(img, threshold, Connectivity.FACE);
+				sequential.setNumThreads(1);
+				HWatershedLabeling<FloatType> parallel = new HWatershedLabeling<FloatType>(img, threshold, Connectivity.FACE);
+				parallel.setNumThreads(4);
+				TestImages.assertTreeEquals(sequential.getTree(), parallel.getTree());
+				TestImages.assertImageEquals(sequential.getLabelMapMaxTree(), parallel.getLabelMapMaxTree());
+			}
+		}
+	}
+	
+	
+	// with a threshold below the image minimum there is a single flooded region, the union-find engine splits it
+	// in tiles (the images are large enough for 4 tiles) and must give the tree and label map of the sequential flooding
+	private static void testThreadsSingleRegion(long[] dims)
+	{
+		for(int seed=0; seed<2; seed++)
+		{
+			Img<FloatType> img = TestImages.makeImage(new ArrayImgFactory<FloatType>(), dims, seed);
+			for( Connectivity connectivity : Connectivity.values() )
+			{
+				HWatershedLabeling<FloatType> sequential = new HWatershedLabeling<FloatType>(img, Float.NEGATIVE_INFINITY, connectivity);
+				sequential.setNumThreads(1);
+				for( int numThreads : new int[] {1, 2, 3, 4} )
+				{
+					HWatershedLabeling<FloatType> parallel = new HWatershedLabeling<FloatType>(img, Float.NEGATIVE_INFINITY, connectivity);
+					parallel.setEngine(Engine.UNION_FIND);
+					parallel.setNumThreads(numThreads);
+					TestImages.assertTreeEquals(sequential.getTree(), parallel.getTree());
+					TestImages.assertImageEquals(sequential.getLabelMapMaxTree(), parallel.getLabelMapMaxTree());
+				}
+			}
+		}
+	}
+	
+	
+	private static Img<FloatType> copy(Img<FloatType> img, ImgFactory<FloatType> factory)
+	{
+		Img<FloatType> copy = factory.create(img, new FloatType());
+		Cursor<FloatType> cursor = img.localizingCursor();
+		RandomAccess<FloatType> ra = copy.randomAccess();
+		while( cursor.hasNext() )
+		{
+			cursor.fwd();
+			ra.setPosition(cursor);
+			ra.get().set(cursor.get());
+		}
+		return copy;
+	}
+	
+}
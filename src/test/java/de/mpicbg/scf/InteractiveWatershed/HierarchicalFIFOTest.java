@@ -0,0 +1,104 @@
+package de.mpicbg.scf.InteractiveWatershed;
+
+
+/*
+Author: Benoit Lombardot, Scientific Computing Facility, MPI-CBG, Dresden  
+
+Copyright 2017 Max Planck Institute of Molecular Cell Biology and Genetics, Dresden, Germany
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following 
+conditions are met:
+
+1 - Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+
+2 - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer 
+in the documentation and/or other materials provided with the distribution.
+
+3 - Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived 
+from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+
+
+
+
+
+
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+
+public class HierarchicalFIFOTest {
+	
+	@Test
+	public void testOrder() {
+		for( boolean longIndices : new boolean[] {false, true} )
+		{
+			HierarchicalFIFO Q = new HierarchicalFIFO(-5, 10, longIndices);
+			long offset = longIndices ? 1L<<40 : 0;
+			// enough indices per level to walk through every chunk size
+			for(int i=0; i<5000; i++)
+				Q.add(offset+i, i%16 - 5);
+			for(int level=10; level>=-5; level--)
+				for(int i=level+5; i<5000; i+=16)
+				{
+					assertTrue( Q.HasNext() );
+					assertEquals( level+5, Q.getCurrent_level() );
+					assertEquals( offset+i, Q.Next() );
+				}
+			assertFalse( Q.HasNext() );
+		}
+	}
+	
+	@Test
+	public void testRefill() {
+		// indices added while a level is being served come out after the ones already queued
+		HierarchicalFIFO Q = new HierarchicalFIFO(0, 3);
+		for(int i=0; i<100; i++)
+			Q.add(i, 2);
+		long expected = 0;
+		while( Q.HasNext() )
+		{
+			long idx = Q.Next();
+			assertEquals( expected++, idx );
+			if( idx < 3000 )
+				Q.add(idx+100, 2);
+		}
+		assertEquals( 3100, expected );
+	}
+	
+	@Test
+	public void testLargeLevelRange() {
+		final int nLevels = 1<<22;
+		final int n = 100000;
+		HierarchicalFIFO Q = new HierarchicalFIFO(0, nLevels-1);
+		// one index on each of n distinct levels, all queued at the same time
+		for(int i=0; i<n; i++)
+			Q.add(i, (int)( (long)i * 41 % nLevels ) );
+		assertTrue( Q.getPoolSize() <= 16L*n );
+		
+		int previous = nLevels;
+		for(int i=0; i<n; i++)
+		{
+			assertTrue( Q.HasNext() );
+			int idx = (int) Q.Next();
+			int level = (int)( (long)idx * 41 % nLevels );
+			assertTrue( level < previous );
+			previous = level;
+		}
+		assertFalse( Q.HasNext() );
+	}
+	
+}
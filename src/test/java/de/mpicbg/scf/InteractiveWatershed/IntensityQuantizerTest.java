@@ -0,0 +1,112 @@
+package de.mpicbg.scf.InteractiveWatershed;
+
+
+/*
+Author: Benoit Lombardot, Scientific Computing Facility, MPI-CBG, Dresden  
+
+Copyright 2017 Max Planck Institute of Molecular Cell Biology and Genetics, Dresden, Germany
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following 
+conditions are met:
+
+1 - Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+
+2 - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer 
+in the documentation and/or other materials provided with the distribution.
+
+3 - Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived 
+from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+
+
+
+
+
+
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import net.imglib2.Cursor;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.type.numeric.real.FloatType;
+
+import de.mpicbg.scf.InteractiveWatershed.HWatershedLabeling.Connectivity;
+import de.mpicbg.scf.InteractiveWatershed.HWatershedLabeling.Quantization;
+
+
+public class IntensityQuantizerTest {
+	
+	// values 0 to 99 in 10 linear levels: level 5 holds the values 50 to 59
+	private static Img<FloatType> makeRamp()
+	{
+		Img<FloatType> img = new ArrayImgFactory<FloatType>().create(new long[] {100}, new FloatType());
+		Cursor<FloatType> cursor = img.localizingCursor();
+		while( cursor.hasNext() )
+		{
+			cursor.fwd();
+			cursor.get().set( cursor.getIntPosition(0) );
+		}
+		return img;
+	}
+	
+	@Test
+	public void testThresholdInsideLevel() {
+		Img<FloatType> img = makeRamp();
+		for( Quantization quantization : new Quantization[] {Quantization.LINEAR, Quantization.EQUALIZED} )
+		{
+			IntensityQuantizer quantizer = new IntensityQuantizer(img, quantization, 10);
+			Img<IntType> levels = ArrayImgs.ints(100);
+			quantizer.quantize(img, levels);
+			
+			int thresholdLevel = quantizer.getThresholdLevel(55);
+			assertTrue( quantizer.getValue(thresholdLevel) < 55 );
+			Cursor<FloatType> c_img = img.cursor();
+			Cursor<IntType> c_level = levels.cursor();
+			while( c_img.hasNext() )
+			{
+				float value = c_img.next().get();
+				int level = c_level.next().get();
+				if( value >= 55 )
+					assertTrue( level >= thresholdLevel );
+				if( level >= thresholdLevel )
+					assertTrue( value >= quantizer.getValue(thresholdLevel) );
+			}
+			
+			assertEquals( 0, quantizer.getThresholdLevel(-10) );
+			assertEquals( quantizer.getLevel(50), quantizer.getThresholdLevel(50) );
+			assertEquals( 10, quantizer.getThresholdLevel(100) );
+		}
+	}
+	
+	@Test
+	public void testThresholdedLabeling() {
+		// every pixel above the threshold is flooded
+		Img<FloatType> img = makeRamp();
+		HWatershedLabeling<FloatType> labeler = new HWatershedLabeling<FloatType>(img, 55, Connectivity.FACE, Quantization.LINEAR, 10);
+		Cursor<FloatType> c_img = img.cursor();
+		Cursor<IntType> c_label = labeler.getLabelMapMaxTree().cursor();
+		while( c_img.hasNext() )
+		{
+			float value = c_img.next().get();
+			int label = c_label.next().get();
+			if( value >= 55 )
+				assertTrue( label > 0 );
+		}
+	}
+	
+}
@@ -0,0 +1,119 @@
+package de.mpicbg.scf.InteractiveWatershed;
+
+
+/*
+Author: Benoit Lombardot, Scientific Computing Facility, MPI-CBG, Dresden  
+
+Copyright 2017 Max Planck Institute of Molecular Cell Biology and Genetics, Dresden, Germany
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following 
+conditions are met:
+
+1 - Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+
+2 - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer 
+in the documentation and/or other materials provided with the distribution.
+
+3 - Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived 
+from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+
+
+
+
+
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.img.Img;
+import net.imglib2.img.ImgFactory;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.planar.PlanarImgFactory;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.type.numeric.real.FloatType;
+
+import de.mpicbg.scf.InteractiveWatershed.HWatershedLabeling.Connectivity;
+
+
+public class LeafPixelIndexTest {
+	
+	@Test
+	public void testUpdateLabelMap2D() {
+		testUpdateLabelMap(new ArrayImgFactory<FloatType>(), new long[] {40, 30});
+	}
+	
+	@Test
+	public void testUpdateLabelMap3D() {
+		testUpdateLabelMap(new PlanarImgFactory<FloatType>(), new long[] {20, 16, 6});
+	}
+	
+	
+	// label maps updated in place are the same as new label maps, the changed hyperplanes are the ones that differ
+	private static void testUpdateLabelMap(ImgFactory<FloatType> factory, long[] dims)
+	{
+		Img<FloatType> img = TestImages.makeImage(factory, dims, 2);
+		HWatershedLabeling<FloatType> labeler = new HWatershedLabeling<FloatType>(img, 1, Connectivity.FACE);
+		SegmentHierarchyToLabelMap<FloatType> reference = TestImages.makeLabelMapper(labeler, img);
+		SegmentHierarchyToLabelMap<FloatType> updated = TestImages.makeLabelMapper(labeler, img);
+		updated.setLeafPixelIndex(new LeafPixelIndex(labeler.getLabelMapMaxTree(), img, labeler.getTree().getNumNodes()));
+		for( float hMin : new float[] {0, 3} )
+		{
+			reference.updateTreeLabeling(hMin, true);
+			updated.updateTreeLabeling(hMin, true);
+			assertNull(updated.updateLabelMap(1, 50)); // no label map for this labelling yet
+			
+			Img<IntType> labelMap = updated.getUpdatableLabelMap(1, 50);
+			Img<IntType> previous = reference.getLabelMap(1, 50);
+			Img<IntType> kept = updated.getLabelMap(1, 50);
+			for( float threshold : TestImages.THRESHOLDS )
+			for( float flooding : TestImages.FLOODINGS )
+			{
+				long[] changedPlanes = updated.updateLabelMap(threshold, flooding);
+				Img<IntType> expected = reference.getLabelMap(threshold, flooding);
+				TestImages.assertImageEquals(expected, labelMap);
+				assertArrayEquals(getChangedPlanes(previous, expected), changedPlanes);
+				previous = expected;
+			}
+			// only the updatable label map is changed
+			TestImages.assertImageEquals(reference.getLabelMap(1, 50), kept);
+		}
+	}
+	
+	
+	// positions along the last dimension where the two label maps differ
+	private static long[] getChangedPlanes(Img<IntType> labelMap1, Img<IntType> labelMap2)
+	{
+		final int last = labelMap1.numDimensions()-1;
+		TreeSet<Long> planes = new TreeSet<Long>();
+		Cursor<IntType> cursor = labelMap1.localizingCursor();
+		RandomAccess<IntType> access = labelMap2.randomAccess();
+		while( cursor.hasNext() )
+		{
+			cursor.fwd();
+			access.setPosition(cursor);
+			if( cursor.get().get() != access.get().get() )
+				planes.add(cursor.getLongPosition(last));
+		}
+		long[] changed = new long[planes.size()];
+		int k = 0;
+		for( long plane : planes )
+			changed[k++] = plane;
+		return changed;
+	}
+	
+}
@@ -0,0 +1,84 @@
+package de.mpicbg.scf.InteractiveWatershed;
+
+
+/*
+Author: Benoit Lombardot, Scientific Computing Facility, MPI-CBG, Dresden  
+
+Copyright 2017 Max Planck Institute of Molecular Cell Biology and Genetics, Dresden, Germany
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following 
+conditions are met:
+
+1 - Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+
+2 - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer 
+in the documentation and/or other materials provided with the distribution.
+
+3 - Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived 
+from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+
+
+
+
+
+
+import org.junit.Test;
+
+import net.imglib2.img.Img;
+import net.imglib2.img.ImgFactory;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.planar.PlanarImgFactory;
+import net.imglib2.type.numeric.real.FloatType;
+
+import de.mpicbg.scf.InteractiveWatershed.HWatershedLabeling.Connectivity;
+
+
+public class SegmentHierarchyToLabelMapTest {
+	
+	@Test
+	public void testThreads2D() {
+		testThreads(new ArrayImgFactory<FloatType>(), new long[] {40, 30});
+	}
+	
+	@Test
+	public void testThreads3D() {
+		testThreads(new PlanarImgFactory<FloatType>(), new long[] {20, 16, 6});
+	}
+	
+	
+	// the label maps do not depend on the number of threads
+	private static void testThreads(ImgFactory<FloatType> factory, long[] dims)
+	{
+		for(int seed=0; seed<2; seed++)
+		{
+			Img<FloatType> img = TestImages.makeImage(factory, dims, seed);
+			HWatershedLabeling<FloatType> labeler = new HWatershedLabeling<FloatType>(img, 1, Connectivity.FACE);
+			SegmentHierarchyToLabelMap<FloatType> sequential = TestImages.makeLabelMapper(labeler, img);
+			sequential.setNumThreads(1);
+			SegmentHierarchyToLabelMap<FloatType> parallel = TestImages.makeLabelMapper(labeler, img);
+			parallel.setNumThreads(4);
+			for( float hMin : new float[] {0, 3} )
+			{
+				sequential.updateTreeLabeling(hMin, true);
+				parallel.updateTreeLabeling(hMin, true);
+				for( float threshold : TestImages.THRESHOLDS )
+				for( float flooding : TestImages.FLOODINGS )
+				{
+					TestImages.assertImageEquals(sequential.getLabelMap(threshold, flooding), parallel.getLabelMap(threshold, flooding));
+					for(int d=0; d<dims.length; d++)
+						TestImages.assertImageEquals(sequential.getLabelMap(threshold, flooding, d, 2), parallel.getLabelMap(threshold, flooding, d, 2));
+				}
+			}
+		}
+	}
+	
+}
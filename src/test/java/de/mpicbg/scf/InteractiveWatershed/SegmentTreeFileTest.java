@@ -0,0 +1,189 @@
+package de.mpicbg.scf.InteractiveWatershed;
+
+
+/*
+Author: Benoit Lombardot, Scientific Computing Facility, MPI-CBG, Dresden  
+
+Copyright 2017 Max Planck Institute of Molecular Cell Biology and Genetics, Dresden, Germany
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following 
+conditions are met:
+
+1 - Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+
+2 - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer 
+in the documentation and/or other materials provided with the distribution.
+
+3 - Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived 
+from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+
+
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import net.imglib2.Cursor;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.ImgFactory;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.cell.CellImgFactory;
+import net.imglib2.img.planar.PlanarImgFactory;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+import de.mpicbg.scf.InteractiveWatershed.HWatershedLabeling.Connectivity;
+import de.mpicbg.scf.InteractiveWatershed.HWatershedLabeling.Quantization;
+
+
+public class SegmentTreeFileTest {
+	
+	@Test
+	public void testArrayImg() throws IOException {
+		testRoundTrip(new ArrayImgFactory<IntType>(), new long[] {5, 4, 3});
+	}
+	
+	@Test
+	public void testPlanarImgOddPlanes() throws IOException {
+		testRoundTrip(new PlanarImgFactory<IntType>(), new long[] {3, 3, 3});
+		testRoundTrip(new PlanarImgFactory<IntType>(), new long[] {5, 3, 2, 2});
+	}
+	
+	@Test
+	public void testPlanarImgEvenPlanes() throws IOException {
+		testRoundTrip(new PlanarImgFactory<IntType>(), new long[] {4, 3, 3});
+	}
+	
+	@Test
+	public void testCellImg() throws IOException {
+		testRoundTrip(new CellImgFactory<IntType>(2), new long[] {5, 3, 3});
+	}
+	
+	
+	// arrays and label maps read through windows of 8, 16 and 32 bytes, their ends falling inside the arrays
+	@Test
+	public void testSmallMapWindows() throws IOException {
+		for( int mapShift : new int[] {3, 4, 5} )
+			testRoundTrip(new ArrayImgFactory<IntType>(), new long[] {5, 4, 3}, mapShift);
+	}
+	
+	// the default windows hold a whole number of values of each type and can be mapped
+	@Test
+	public void testChunkLength() {
+		for( int valueBytes : new int[] {4, 8} ){
+			long windowBytes = (long)SegmentTreeFile.getChunkLength(SegmentTreeFile.MAP_SHIFT, valueBytes) * valueBytes;
+			assertEquals(1L<<SegmentTreeFile.MAP_SHIFT, windowBytes);
+			assertTrue(windowBytes <= Integer.MAX_VALUE);
+		}
+		assertEquals(1, SegmentTreeFile.getChunkLength(3, 8));
+		assertEquals(2, SegmentTreeFile.getChunkLength(3, 4));
+	}
+	
+	
+	@Test
+	public void testQuantization() throws IOException {
+		Img<IntType> labelMap = ArrayImgs.ints(4, 3);
+		Tree tree = new Tree(new int[] {0, 1}, new int[] {-1, -1}, new int[] {-1, -1});
+		File file = File.createTempFile("SegmentTreeFileTest", ".hwt");
+		try {
+			SegmentTreeFile.write(file, tree, labelMap, 0.5f, Connectivity.FACE, Quantization.EQUALIZED, 200, new byte[0]);
+			SegmentTreeFile read = SegmentTreeFile.read(file);
+			assertEquals(Quantization.EQUALIZED, read.getQuantization());
+			assertEquals(200, read.getNumberOfLevels());
+			
+			SegmentTreeFile.write(file, tree, labelMap, 0.5f, Connectivity.FACE, new byte[0]);
+			read = SegmentTreeFile.read(file);
+			assertEquals(Quantization.NONE, read.getQuantization());
+			assertEquals(0, read.getNumberOfLevels());
+		}
+		finally {
+			file.delete();
+		}
+	}
+	
+	
+	@Test
+	public void testContentDigest() {
+		float[] values = new float[24];
+		for(int i=0; i<values.length; i++)
+			values[i] = i;
+		Img<FloatType> img = ArrayImgs.floats(values, 6, 4);
+		Img<FloatType> planarImg = new PlanarImgFactory<FloatType>().create(new long[] {6, 4}, new FloatType());
+		int i = 0;
+		for( FloatType p : Views.flatIterable(planarImg) )
+			p.set(i++);
+		assertArrayEquals(SegmentTreeFile.getContentDigest(img), SegmentTreeFile.getContentDigest(planarImg));
+		
+		// same values with other dimensions, or one value changed
+		assertFalse( Arrays.equals(SegmentTreeFile.getContentDigest(img), SegmentTreeFile.getContentDigest(ArrayImgs.floats(values, 4, 6))) );
+		planarImg.firstElement().set(0.5f);
+		assertFalse( Arrays.equals(SegmentTreeFile.getContentDigest(img), SegmentTreeFile.getContentDigest(planarImg)) );
+	}
+	
+	
+	private static void testRoundTrip(ImgFactory<IntType> factory, long[] dims) throws IOException
+	{
+		testRoundTrip(factory, dims, SegmentTreeFile.MAP_SHIFT);
+	}
+	
+	
+	// write a label map holding its flat index and a small tree, read it back and compare
+	private static void testRoundTrip(ImgFactory<IntType> factory, long[] dims, int mapShift) throws IOException
+	{
+		Img<IntType> labelMap = factory.create(dims, new IntType());
+		int idx = 0;
+		for( IntType p : Views.flatIterable(labelMap) )
+			p.set(idx++);
+		
+		Tree tree = new Tree(new int[] {0, 4, 4, 3, 4}, new int[] {-1, -1, -1, -1, 1}, new int[] {-1, -1, -1, -1, 2});
+		tree.setFeature("dynamics", new double[] {0, 1.5, 2, 7, 3});
+		tree.setFeature("area", new int[] {1, 2, 3, 4, 5});
+		tree.setFeature("Imax", new float[] {0, 10.25f, 11, 12, 11});
+		
+		File file = File.createTempFile("SegmentTreeFileTest", ".hwt");
+		try {
+			byte[] digest = new byte[] {1, 2, 3, 4, 5};
+			SegmentTreeFile.write(file, tree, labelMap, 3.5f, Connectivity.FULL, digest);
+			SegmentTreeFile read = SegmentTreeFile.read(file, mapShift);
+			
+			assertEquals(3.5f, read.getThreshold(), 0);
+			assertEquals(Connectivity.FULL, read.getConnectivity());
+			assertArrayEquals(digest, read.getInputDigest());
+			
+			Tree tree2 = read.getTree();
+			assertArrayEquals(tree.getParentsAsArray(), tree2.getParentsAsArray());
+			for( String feature : tree.getFeatureNames() )
+				assertArrayEquals(feature, tree.getFeatureCopy(feature), tree2.getFeatureCopy(feature), 0);
+			
+			Img<IntType> labelMap2 = read.getLabelMap();
+			long[] dims2 = new long[labelMap2.numDimensions()];
+			labelMap2.dimensions(dims2);
+			assertArrayEquals(dims, dims2);
+			Cursor<IntType> cursor = Views.flatIterable(labelMap2).cursor();
+			for(int i=0; i<idx; i++)
+				assertEquals(i, cursor.next().get());
+		}
+		finally {
+			file.delete();
+		}
+	}
+	
+}
@@ -0,0 +1,157 @@
+package de.mpicbg.scf.InteractiveWatershed;
+
+
+/*
+Author: Benoit Lombardot, Scientific Computing Facility, MPI-CBG, Dresden  
+
+Copyright 2017 Max Planck Institute of Molecular Cell Biology and Genetics, Dresden, Germany
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following 
+conditions are met:
+
+1 - Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+
+2 - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer 
+in the documentation and/or other materials provided with the distribution.
+
+3 - Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived 
+from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.ImgFactory;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+import de.mpicbg.scf.InteractiveWatershed.HWatershedLabeling.Connectivity;
+
+
+/**
+ * Small test images with plateaus and regions separated by the background, and comparisons shared by the tests
+ */
+class TestImages {
+	
+	/** thresholds below, at and above the background of the test images */
+	static final float[] THRESHOLDS = {Float.NEGATIVE_INFINITY, 1, 12};
+	
+	/** peak floodings in percent, with the bounds */
+	static final float[] FLOODINGS = {0, 1, 12.5f, 37, 50, 63.3f, 99, 100};
+	
+	
+	/**
+	 * Integer valued bumps on a background of 0: the bumps have plateaus and a threshold of 1 separates them
+	 * @param dims 2 dimensions or more, the bumps vary along the first 3
+	 * @param seed shift of the bumps and seed of the noise
+	 */
+	static Img<FloatType> makeImage(ImgFactory<FloatType> factory, long[] dims, int seed)
+	{
+		Img<FloatType> img = factory.create(dims, new FloatType());
+		Random random = new Random(seed);
+		Cursor<FloatType> cursor = img.localizingCursor();
+		while( cursor.hasNext() )
+		{
+			cursor.fwd();
+			double value = 40 * Math.sin(cursor.getDoublePosition(0)/3 + seed) * Math.cos(cursor.getDoublePosition(1)/4);
+			if( dims.length > 2 )
+				value *= Math.cos(cursor.getDoublePosition(2)/2);
+			cursor.get().set( value > 0 ? (float)Math.floor(value) + random.nextInt(3) : 0 );
+		}
+		return img;
+	}
+	
+	
+	/** {@link #makeImage(ImgFactory, long[], int)} stored in an array */
+	static Img<FloatType> makeImage(long[] dims, int seed)
+	{
+		return makeImage(new ArrayImgFactory<FloatType>(), dims, seed);
+	}
+	
+	
+	/** trees of 2D and 3D test images, with and without a threshold */
+	static Tree[] makeTrees()
+	{
+		long[][] dims = { {40, 30}, {20, 16, 6} };
+		Tree[] trees = new Tree[4];
+		for(int i=0; i<trees.length; i++)
+			trees[i] = new HWatershedLabeling<FloatType>(makeImage(dims[i/2], i), 
+					i%2==0 ? Float.NEGATIVE_INFINITY : 1, Connectivity.FACE).getTree();
+		return trees;
+	}
+	
+	
+	/** the dynamics of the tree, values in between and values out of their range */
+	static double[] getCuts(Tree tree)
+	{
+		double[] dynamics = tree.getFeatureCopy("dynamics");
+		Arrays.sort(dynamics);
+		double[] cuts = new double[2*dynamics.length+2];
+		for(int i=0; i<dynamics.length; i++){
+			cuts[2*i] = dynamics[i];
+			cuts[2*i+1] = i+1<dynamics.length ? (dynamics[i]+dynamics[i+1])/2 : dynamics[i]+1;
+		}
+		cuts[cuts.length-2] = -1;
+		cuts[cuts.length-1] = Double.POSITIVE_INFINITY;
+		return cuts;
+	}
+	
+	
+	static SegmentHierarchyToLabelMap<FloatType> makeLabelMapper(HWatershedLabeling<FloatType> labeler, Img<FloatType> img)
+	{
+		return new SegmentHierarchyToLabelMap<FloatType>(labeler.getTree(), labeler.getLabelMapMaxTree(), img);
+	}
+	
+	
+	static void assertTreeEquals(Tree expected, Tree actual)
+	{
+		assertArrayEquals(expected.getParentsAsArray(), actual.getParentsAsArray());
+		assertArrayEquals(expected.child0, actual.child0);
+		assertArrayEquals(expected.child1, actual.child1);
+		assertEquals(expected.getFeatureNames(), actual.getFeatureNames());
+		for( String feature : expected.getFeatureNames() )
+			assertArrayEquals(feature, expected.getFeatureCopy(feature), actual.getFeatureCopy(feature), 0);
+	}
+	
+	
+	static void assertLabelingEquals(TreeLabeling expected, TreeLabeling actual)
+	{
+		assertArrayEquals(expected.getLabels(), actual.getLabels());
+		assertArrayEquals(expected.getLabelRoots(), actual.getLabelRoots());
+		assertEquals(expected.getNumberOfLabels(), actual.getNumberOfLabels());
+	}
+	
+	
+	static void assertImageEquals(RandomAccessibleInterval<IntType> expected, RandomAccessibleInterval<IntType> actual)
+	{
+		long[] dims = new long[expected.numDimensions()];
+		long[] dims2 = new long[actual.numDimensions()];
+		expected.dimensions(dims);
+		actual.dimensions(dims2);
+		assertArrayEquals(dims, dims2);
+		Cursor<IntType> c1 = Views.flatIterable(expected).cursor();
+		Cursor<IntType> c2 = Views.flatIterable(actual).cursor();
+		while( c1.hasNext() )
+			assertEquals(c1.next().get(), c2.next().get());
+		assertFalse(c2.hasNext());
+	}
+	
+}
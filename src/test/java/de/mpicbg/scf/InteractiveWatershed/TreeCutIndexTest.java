@@ -0,0 +1,94 @@
+package de.mpicbg.scf.InteractiveWatershed;
+
+
+/*
+Author: Benoit Lombardot, Scientific Computing Facility, MPI-CBG, Dresden  
+
+Copyright 2017 Max Planck Institute of Molecular Cell Biology and Genetics, Dresden, Germany
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following 
+conditions are met:
+
+1 - Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+
+2 - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer 
+in the documentation and/or other materials provided with the distribution.
+
+3 - Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived 
+from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+
+
+
+
+
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+
+public class TreeCutIndexTest {
+	
+	@Test
+	public void testLabeling() {
+		for( Tree tree : TestImages.makeTrees() )
+		{
+			TreeCutIndex index = new TreeCutIndex(tree, "dynamics");
+			for( double cut : TestImages.getCuts(tree) )
+			for( boolean makeNewLabels : new boolean[] {false, true} )
+				TestImages.assertLabelingEquals(TreeUtils.getLabeling(tree, "dynamics", cut, makeNewLabels), index.getLabeling(cut, makeNewLabels));
+		}
+	}
+	
+	@Test
+	public void testUpdateLabeling() {
+		Random random = new Random(0);
+		for( Tree tree : TestImages.makeTrees() )
+		{
+			TreeCutIndex index = new TreeCutIndex(tree, "dynamics");
+			double[] cuts = TestImages.getCuts(tree);
+			double cut = cuts[0];
+			TreeLabeling labeling = index.getLabeling(cut, false);
+			int[] labels = labeling.getLabels();
+			int[] labelRoots = labeling.getLabelRoots();
+			for(int i=0; i<100; i++)
+			{
+				double newCut = cuts[random.nextInt(cuts.length)];
+				int[] oldLabels = labels.clone();
+				int[] changed = index.updateLabeling(labels, labelRoots, cut, newCut);
+				TreeLabeling expected = TreeUtils.getLabeling(tree, "dynamics", newCut, false);
+				assertArrayEquals(expected.getLabels(), labels);
+				assertArrayEquals(expected.getLabelRoots(), labelRoots);
+				
+				// labels that gained or lost nodes
+				TreeSet<Integer> expectedChanged = new TreeSet<Integer>();
+				for(int node=0; node<labels.length; node++)
+					if( oldLabels[node] != labels[node] ){
+						if( oldLabels[node] != 0 )
+							expectedChanged.add(oldLabels[node]);
+						if( labels[node] != 0 )
+							expectedChanged.add(labels[node]);
+					}
+				int[] expectedChangedArray = new int[expectedChanged.size()];
+				int k = 0;
+				for( int label : expectedChanged )
+					expectedChangedArray[k++] = label;
+				assertArrayEquals(expectedChangedArray, changed);
+				cut = newCut;
+			}
+		}
+	}
+	
+}
@@ -0,0 +1,110 @@
+package de.mpicbg.scf.InteractiveWatershed;
+
+
+/*
+Author: Benoit Lombardot, Scientific Computing Facility, MPI-CBG, Dresden  
+
+Copyright 2017 Max Planck Institute of Molecular Cell Biology and Genetics, Dresden, Germany
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following 
+conditions are met:
+
+1 - Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+
+2 - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer 
+in the documentation and/or other materials provided with the distribution.
+
+3 - Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived 
+from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+
+
+
+
+
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+
+import org.junit.Test;
+
+
+public class TreeTest {
+	
+	// node 0 is the background, nodes 1 and 2 the leaves of node 3
+	private static Tree makeTree()
+	{
+		Tree tree = new Tree(new int[] {0, 3, 3, 3}, new int[] {-1, -1, -1, 1}, new int[] {-1, -1, -1, 2});
+		tree.setFeature("area", new double[] {0, 2, 3, 5});
+		tree.setFeature("Imax", new double[] {0, 1.5, 2.5, 2.5});
+		tree.setFeature("dynamics", new double[] {0, 0.1, 0.7, 2.5});
+		return tree;
+	}
+	
+	@Test
+	public void testCompact() {
+		Tree tree = makeTree();
+		tree.compact(4);
+		assertTrue( tree.getColumn("area") instanceof int[] );
+		assertTrue( tree.getColumn("Imax") instanceof float[] );
+		assertTrue( tree.getColumn("dynamics") instanceof double[] );
+		assertArrayEquals( new double[] {0, 2, 3, 5}, tree.getFeatureCopy("area"), 0 );
+		assertArrayEquals( new double[] {0, 1.5, 2.5, 2.5}, tree.getFeatureCopy("Imax"), 0 );
+		assertTrue( tree.getColumn("area") instanceof int[] );
+		assertEquals( 3, tree.getFeatureNames().size() );
+		assertNull( tree.getFeature("volume") );
+	}
+	
+	@Test
+	public void testFeatureWriteAfterCompact() {
+		Tree tree = makeTree();
+		tree.compact(4);
+		double[] area = tree.getFeature("area");
+		assertArrayEquals( new double[] {0, 2, 3, 5}, area, 0 );
+		area[1] = 7;
+		assertSame( area, tree.getFeature("area") );
+		assertSame( area, tree.getColumn("area") );
+		assertEquals( 7, tree.getFeatureCopy("area")[1], 0 );
+		tree.compact(4);
+		assertTrue( tree.getColumn("area") instanceof int[] );
+		assertEquals( 7, tree.getFeature("area")[1], 0 );
+	}
+	
+	@Test
+	@SuppressWarnings("deprecation")
+	public void testFeatureMapIsLive() {
+		Tree tree = makeTree();
+		tree.compact(4);
+		HashMap<String,double[]> features = tree.getFeatures();
+		// the compacted features are expanded and stay expanded
+		assertTrue( tree.getColumn("Imax") instanceof double[] );
+		assertTrue( tree.getColumn("area") instanceof double[] );
+		assertEquals( tree.getFeatureNames(), features.keySet() );
+		features.get("Imax")[2] = 4;
+		features.put("volume", new double[] {0, 1, 1, 2});
+		assertEquals( 4, tree.getFeature("Imax")[2], 0 );
+		assertArrayEquals( new double[] {0, 1, 1, 2}, tree.getFeature("volume"), 0 );
+		assertEquals( 4, tree.getFeatureNames().size() );
+	}
+	
+	@Test
+	public void testFeatureCopy() {
+		Tree tree = makeTree();
+		double[] dynamics = tree.getFeatureCopy("dynamics");
+		dynamics[1] = 9;
+		assertEquals( 0.1, tree.getFeature("dynamics")[1], 0 );
+	}
+}
@@ -0,0 +1,81 @@
+package de.mpicbg.scf.InteractiveWatershed;
+
+
+/*
+Author: Benoit Lombardot, Scientific Computing Facility, MPI-CBG, Dresden  
+
+Copyright 2017 Max Planck Institute of Molecular Cell Biology and Genetics, Dresden, Germany
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following 
+conditions are met:
+
+1 - Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+
+2 - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer 
+in the documentation and/or other materials provided with the distribution.
+
+3 - Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived 
+from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+
+
+import org.junit.Test;
+
+import net.imglib2.img.Img;
+import net.imglib2.type.numeric.real.FloatType;
+
+import de.mpicbg.scf.InteractiveWatershed.HWatershedLabeling.Connectivity;
+import de.mpicbg.scf.InteractiveWatershed.HWatershedLabeling.Engine;
+
+
+public class UnionFindEngineTest {
+	
+	@Test
+	public void testUnionFind2D() {
+		testUnionFind(new long[] {40, 30});
+	}
+	
+	@Test
+	public void testUnionFind3D() {
+		testUnionFind(new long[] {20, 16, 6});
+	}
+	
+	// FULL has 80 neighbors in 4D, more than the union-find edge mask holds, the flooding is used instead
+	@Test
+	public void testUnionFind4D() {
+		testUnionFind(new long[] {10, 9, 6, 4});
+	}
+	
+	
+	// both engines give the same tree and label map, plateaus included, whatever the number of threads
+	private static void testUnionFind(long[] dims)
+	{
+		for(int seed=0; seed<3; seed++)
+		{
+			Img<FloatType> img = TestImages.makeImage(dims, seed);
+			for( Connectivity connectivity : Connectivity.values() )
+			for( float threshold : new float[] {Float.NEGATIVE_INFINITY, 1} )
+			{
+				HWatershedLabeling<FloatType> flooding = new HWatershedLabeling<FloatType>(img, threshold, connectivity);
+				flooding.setNumThreads(1);
+				for( int numThreads : new int[] {1, 2, 4} )
+				{
+					HWatershedLabeling<FloatType> unionFind = new HWatershedLabeling<FloatType>(img, threshold, connectivity);
+					unionFind.setEngine(Engine.UNION_FIND);
+					unionFind.setNumThreads(numThreads);
+					TestImages.assertTreeEquals(flooding.getTree(), unionFind.getTree());
+					TestImages.assertImageEquals(flooding.getLabelMapMaxTree(), unionFind.getLabelMapMaxTree());
+				}
+			}
+		}
+	}
+	
+}